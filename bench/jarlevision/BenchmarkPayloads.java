@@ -0,0 +1,136 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pre-serialised payloads for the benchmarks, generated with VariantWriter
+ * or taken from a StreamRecorder recording.
+ */
+final class BenchmarkPayloads {
+	
+	private BenchmarkPayloads()
+	{
+	}
+	
+	static int width(String size)
+	{
+		return Integer.parseInt(size.substring(0, size.indexOf('x')));
+	}
+	
+	static int height(String size)
+	{
+		return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+	}
+	
+	/**
+	 * @return the CvMatData value as CvMatData.readFrom expects it, without
+	 * the QVariant header and user type name
+	 */
+	static byte[] cvMatData(String format, String size)
+	{
+		int cvType = SyntheticServer.cvType(format);
+		int width = width(size);
+		int height = height(size);
+		byte[] data = SyntheticServer.pattern(cvType, width, height);
+		
+		byte[] variant = VariantWriter.encodeCvMatData(cvType, width, height, data);
+		int header = 4 + 4 + VariantWriter.CVMATDATA_NAME.length();
+		byte[] value = new byte[variant.length - header];
+		System.arraycopy(variant, header, value, 0, value.length);
+		return value;
+	}
+	
+	/**
+	 * @return a single QVariant of the given type: int, double, string, 
+	 * image (PNG encoded QImage) or any of the SyntheticServer CvMatData 
+	 * formats
+	 */
+	static byte[] variant(String type, String size) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		VariantWriter writer = new VariantWriter(bytes);
+		if( type.equals("int") )
+			writer.writeInt(42);
+		else if( type.equals("double") )
+			writer.writeDouble(42.0);
+		else if( type.equals("string") )
+			writer.writeString("Synthetic frame 42");
+		else
+		{
+			SyntheticServer.Options options = new SyntheticServer.Options();
+			options.format = type.equals("image") ? "png" : type;
+			options.width = width(size);
+			options.height = height(size);
+			options.images = 1;
+			bytes.write(SyntheticServer.encodeImages(options));
+		}
+		writer.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * @return a complete PROTO_FRAME message, without size prefix, like 
+	 * the SyntheticServer sends: a String, an Int and the images
+	 */
+	static byte[] frame(String format, String size, int images) throws IOException
+	{
+		SyntheticServer.Options options = new SyntheticServer.Options();
+		options.format = format;
+		options.width = width(size);
+		options.height = height(size);
+		options.images = images;
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		VariantWriter writer = new VariantWriter(bytes);
+		java.io.DataOutputStream header = new java.io.DataOutputStream(bytes);
+		header.writeInt(Frame.PROTO_FRAME);
+		header.writeInt(42);
+		header.writeInt(2 + images);
+		writer.writeString("Synthetic frame 42");
+		writer.writeInt(42);
+		writer.flush();
+		bytes.write(SyntheticServer.encodeImages(options));
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * @return up to max messages from a recording made by StreamRecorder
+	 */
+	static List<byte[]> recording(String base, int max) throws IOException
+	{
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		StreamReplay replay = new StreamReplay(new File(base), new FrameParser.Listener() {
+			public void frameReceived(Frame frame) {
+				frames.add(frame.toByteArray());
+			}
+		});
+		replay.setPaced(false);
+		replay.run();
+		return frames.size() > max ? frames.subList(0, max) : frames;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the decoder benchmarks with the GC profiler, so every result comes
+ * with its allocation rate. Runs headless; no display is needed.
+ * 
+ * Usage: Benchmarks [regexp]  e.g. "Benchmarks CvMatData" 
+ */
+public class Benchmarks {
+	
+	public static void main(String[] args) throws RunnerException
+	{
+		ChainedOptionsBuilder options = new OptionsBuilder()
+			.include(args.length > 0 ? args[0] : "jarlevision\\..*Benchmark")
+			.addProfiler(GCProfiler.class)
+			.jvmArgsAppend("-Djava.awt.headless=true")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,76 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.trolltech.qt.core.QBuffer;
+import com.trolltech.qt.core.QByteArray;
+import com.trolltech.qt.core.QDataStream;
+import com.trolltech.qt.core.QIODevice;
+
+/**
+ * Decoding of a CvMatData value into a QImage, per format and frame size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CvMatDataBenchmark {
+	
+	@Param({"640x480", "1280x720", "1920x1080"})
+	public String size;
+	
+	@Param({"gray8", "bgr", "bgra"})
+	public String format;
+	
+	private QBuffer buffer;
+	private QDataStream stream;
+	
+	@Setup
+	public void setup()
+	{
+		buffer = new QBuffer(new QByteArray(BenchmarkPayloads.cvMatData(format, size)));
+		buffer.open(QIODevice.OpenModeFlag.ReadOnly);
+		stream = new QDataStream(buffer);
+		stream.setVersion( QDataStream.Version.Qt_4_0.value() );
+	}
+	
+	@Benchmark
+	public boolean readFrom()
+	{
+		buffer.seek(0);
+		CvMatData cvmatdata = new CvMatData();
+		boolean valid = cvmatdata.readFrom(stream);
+		if( valid )
+			cvmatdata.free();
+		return valid;
+	}
+}
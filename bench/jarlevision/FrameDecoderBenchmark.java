@@ -0,0 +1,102 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding complete multi-argument frames, as the decode workers do. Set
+ * the recording parameter to the base name of a StreamRecorder recording 
+ * to decode captured frames instead of generated ones. With direct set the
+ * frames are decoded in place from direct buffers, like received frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+	
+	@Param({"640x480", "1280x720", "1920x1080"})
+	public String size;
+	
+	@Param({"bgr"})
+	public String format;
+	
+	@Param({"1", "4"})
+	public int images;
+	
+	@Param({""})
+	public String recording;
+	
+	@Param({"false", "true"})
+	public boolean direct;
+	
+	private FrameDecoder decoder;
+	private List<ByteBuffer> frames;
+	private int next;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		decoder = new FrameDecoder();
+		List<byte[]> messages;
+		if( recording.length() > 0 )
+			messages = BenchmarkPayloads.recording(recording, 256);
+		else
+			messages = Collections.singletonList(BenchmarkPayloads.frame(format, size, images));
+		
+		frames = new ArrayList<ByteBuffer>();
+		for( int i=0; i < messages.size(); ++i )
+		{
+			byte[] message = messages.get(i);
+			ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(message.length) : ByteBuffer.allocate(message.length);
+			buffer.put(message);
+			buffer.flip();
+			frames.add(buffer);
+		}
+	}
+	
+	@Benchmark
+	public int decode()
+	{
+		ByteBuffer message = frames.get(next).duplicate();
+		next = (next + 1) % frames.size();
+		
+		DecodedFrame frame = decoder.decode(message);
+		int arguments = frame.getArguments().size();
+		frame.dispose();
+		return arguments;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a single QVariant of every supported type with the 
+ * VariantDecoder. The visitor hands scalars and strings to the blackhole 
+ * without converting them, so the int, double and string cases should 
+ * report no allocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoadVariantBenchmark {
+	
+	/**
+	 * Consumes every value, freeing decoded matrices right away.
+	 */
+	static class Consumer extends VariantDecoder.Visitor {
+		Blackhole blackhole;
+		
+		@Override
+		public void onInt(int value) {
+			blackhole.consume(value);
+		}
+		
+		@Override
+		public void onDouble(double value) {
+			blackhole.consume(value);
+		}
+		
+		@Override
+		public void onString(CharSequence value) {
+			blackhole.consume(value.length());
+		}
+		
+		@Override
+		public void onImage(ByteBuffer png, int length) {
+			blackhole.consume(length);
+		}
+		
+		@Override
+		public void onUserType(VariantDecoder.UserType type, ByteBuffer data, int length)
+		{
+			CvMatData cvmatdata = new CvMatData();
+			if( cvmatdata.readFrom(data) )
+				cvmatdata.free();
+			blackhole.consume(cvmatdata);
+		}
+	}
+	
+	@Param({"int", "double", "string", "image", "gray8", "bgr", "bgra"})
+	public String type;
+	
+	@Param({"640x480"})
+	public String size;
+	
+	private ByteBuffer buffer;
+	private VariantDecoder decoder;
+	private Consumer consumer;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		byte[] variant = BenchmarkPayloads.variant(type, size);
+		buffer = ByteBuffer.allocateDirect(variant.length);
+		buffer.put(variant);
+		decoder = new VariantDecoder();
+		decoder.register(CvMatData.USER_TYPE);
+		consumer = new Consumer();
+	}
+	
+	@Benchmark
+	public boolean loadVariant(Blackhole blackhole)
+	{
+		buffer.position(0);
+		consumer.blackhole = blackhole;
+		return decoder.read(buffer, consumer);
+	}
+}
@@ -0,0 +1,83 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The pixel conversion kernels on their own. These do not need Qt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PixelKernelsBenchmark {
+	
+	@Param({"640x480", "1280x720", "1920x1080"})
+	public String size;
+	
+	private byte[] src;
+	private long dst;
+	private int pixels;
+	
+	@Setup
+	public void setup()
+	{
+		pixels = BenchmarkPayloads.width(size) * BenchmarkPayloads.height(size);
+		src = SyntheticServer.pattern(CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, 4), 
+				BenchmarkPayloads.width(size), BenchmarkPayloads.height(size));
+		dst = NativeMemory.allocate(pixels * 4L);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		NativeMemory.free(dst);
+	}
+	
+	@Benchmark
+	public void gray8()
+	{
+		PixelKernels.gray8(src, 0, dst, pixels);
+	}
+	
+	@Benchmark
+	public void bgrToArgb32()
+	{
+		PixelKernels.bgrToArgb32(src, 0, dst, pixels);
+	}
+	
+	@Benchmark
+	public void bgraToArgb32()
+	{
+		PixelKernels.bgraToArgb32(src, 0, dst, pixels);
+	}
+}
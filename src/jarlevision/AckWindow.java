@@ -0,0 +1,326 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Credit based flow control for acknowledgements. A frame is acked as soon
+ * as it is received, as long as fewer than window acked frames are still 
+ * waiting to be consumed by the decoder. Beyond that the ack is held back
+ * until a frame is consumed, which in turn stops the server from sending.
+ * The client thus never buffers much more than the window, while the 
+ * server does not have to wait a round trip for every frame.
+ *
+ * Acks which are ready are collected and written by the transport in one
+ * go per event loop pass, see drain(). They are not cumulative: a 
+ * Parlevision server takes one frame off its count of unacknowledged 
+ * frames for every PROTO_ACK, whatever its serial, so one ack for the 
+ * highest serial would return only one credit. Every frame therefore
+ * still gets its own ack, but they share one write.
+ *
+ * A server which confirmed the window in its PROTO_INIT answer never has
+ * more than that unacknowledged, so at most that many acks are queued; 
+ * if it sends more it breaks the protocol, and received() throws an 
+ * OverrunException instead of buffering without bound, see 
+ * setServerWindow(). A server which ignores INIT keeps its own window, 
+ * possibly a larger one, so for it the queues grow as needed and the 
+ * acks beyond the window are still held back.
+ *
+ * A Policy can adjust the window at runtime, e.g. to shrink it when the
+ * decoder falls behind.
+ */
+public class AckWindow {
+	
+	final static int ACK_MESSAGE_SIZE = 3 * 4;
+	
+	public interface Policy {
+		/**
+		 * Called whenever a frame is received or consumed.
+		 * 
+		 * @param configured the window this AckWindow was configured with
+		 * @param current the window currently in effect
+		 * @return the window to use from now on, at least 1
+		 */
+		int window(int configured, int current);
+	}
+	
+	/** Always uses the configured window */
+	public final static Policy FIXED = new Policy() {
+		public int window(int configured, int current) {
+			return configured;
+		}
+	};
+	
+	/**
+	 * Halves the window whenever the decode queue of the pipeline backs up
+	 * and grows it back by one frame at a time while it keeps up.
+	 */
+	public static class DecodeLagPolicy implements Policy {
+		private final DecodePipeline pipeline;
+		private final int threshold;
+		
+		/**
+		 * @param threshold number of messages waiting for a decode worker 
+		 * above which the decoder is considered to fall behind
+		 */
+		public DecodeLagPolicy(DecodePipeline pipeline, int threshold)
+		{
+			this.pipeline = pipeline;
+			this.threshold = threshold;
+		}
+		
+		public int window(int configured, int current)
+		{
+			if( pipeline.getQueueSize() > threshold )
+				return Math.max(1, current / 2);
+			return Math.min(configured, current + 1);
+		}
+	}
+	
+	/**
+	 * Thrown by received() when the server sends more frames than the 
+	 * window without waiting for their acks.
+	 */
+	public static class OverrunException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+		
+		OverrunException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Growable FIFO of serials with the time their frame was received. It
+	 * starts at the window, so it only grows for a server which does not 
+	 * keep to it.
+	 */
+	private static class SerialQueue {
+		private int[] serials;
+		private long[] times;
+		private int head;
+		private int size;
+		
+		SerialQueue(int capacity)
+		{
+			serials = new int[capacity];
+			times = new long[capacity];
+		}
+		
+		void add(int serial, long nanos)
+		{
+			if( size == serials.length )
+			{
+				int[] grown = new int[serials.length * 2];
+				long[] grownTimes = new long[serials.length * 2];
+				for( int i=0; i < size; ++i )
+				{
+					grown[i] = serials[(head + i) % serials.length];
+					grownTimes[i] = times[(head + i) % serials.length];
+				}
+				serials = grown;
+				times = grownTimes;
+				head = 0;
+			}
+			serials[(head + size) % serials.length] = serial;
+			times[(head + size) % serials.length] = nanos;
+			++size;
+		}
+		
+		int peekSerial() {
+			return serials[head];
+		}
+		
+		long peekTime() {
+			return times[head];
+		}
+		
+		void remove()
+		{
+			head = (head + 1) % serials.length;
+			--size;
+		}
+		
+		void clear()
+		{
+			head = 0;
+			size = 0;
+		}
+	}
+	
+	private final int configured;
+	private final SerialQueue held;
+	private final SerialQueue ready;
+	private final ClientMetrics metrics;
+	private Policy policy;
+	private Runnable wakeup;
+	private int window;
+	private boolean bounded;
+	private int outstanding;
+	private long sent;
+	
+	public AckWindow(int window)
+	{
+		if( window < 1 )
+			throw new IllegalArgumentException("Window must be at least 1");
+		this.configured = window;
+		this.window = window;
+		this.held = new SerialQueue(window);
+		this.ready = new SerialQueue(window);
+		this.metrics = ClientMetrics.getDefault();
+		this.policy = FIXED;
+	}
+	
+	public synchronized void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+	
+	/**
+	 * Sets the action which tells the writer that acks are ready. Called
+	 * by the transport using this window.
+	 */
+	synchronized void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+	
+	public synchronized int getWindow() {
+		return window;
+	}
+	
+	public int getConfiguredWindow() {
+		return configured;
+	}
+	
+	/**
+	 * @return number of received frames which have not been consumed yet
+	 */
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+	
+	/**
+	 * @return number of acks written so far
+	 */
+	public synchronized long getSentCount() {
+		return sent;
+	}
+	
+	/**
+	 * Forgets all state, e.g. for a new connection.
+	 */
+	public synchronized void reset()
+	{
+		held.clear();
+		ready.clear();
+		outstanding = 0;
+		window = configured;
+		bounded = false;
+	}
+	
+	/**
+	 * Tells the window what the server answered in its PROTO_INIT. If it 
+	 * keeps to at most the configured window, sending more is an error 
+	 * from then on. Called by the transport; reset() forgets it.
+	 * 
+	 * @param serverWindow window of the server, 0 if it did not say
+	 */
+	synchronized void setServerWindow(int serverWindow) {
+		bounded = serverWindow > 0 && serverWindow <= configured;
+	}
+	
+	/**
+	 * Registers a frame received at the given System.nanoTime(). Called by 
+	 * the transport.
+	 * 
+	 * @throws OverrunException if the server confirmed the window, but 
+	 * sent more frames than that without waiting for their acks
+	 */
+	synchronized void received(int serial, long nanos)
+	{
+		if( bounded && held.size + ready.size >= configured )
+			throw new OverrunException("Server sent more than " + configured + " frames without waiting for their acks");
+		++outstanding;
+		updateWindow();
+		held.add(serial, nanos);
+		release();
+	}
+	
+	/**
+	 * Registers that a frame was decoded or dropped, which frees its
+	 * credit. May be called from any thread.
+	 */
+	public synchronized void consumed()
+	{
+		if( outstanding > 0 )
+			--outstanding;
+		updateWindow();
+		if( release() && wakeup != null )
+			wakeup.run();
+	}
+	
+	/**
+	 * Moves held acks to the ready queue while the window allows.
+	 * 
+	 * @return true if the ready queue went from empty to non empty
+	 */
+	private boolean release()
+	{
+		boolean wasEmpty = ready.size == 0;
+		while( held.size > 0 && outstanding - held.size < window )
+		{
+			ready.add(held.peekSerial(), held.peekTime());
+			held.remove();
+		}
+		return wasEmpty && ready.size > 0;
+	}
+	
+	private void updateWindow()
+	{
+		window = Math.max(1, policy.window(configured, window));
+	}
+	
+	synchronized boolean hasReady() {
+		return ready.size > 0;
+	}
+	
+	/**
+	 * Writes as many ready acks into the buffer as fit.
+	 * 
+	 * @return number of acks written
+	 */
+	synchronized int drain(ByteBuffer out)
+	{
+		int count = 0;
+		long now = System.nanoTime();
+		while( ready.size > 0 && out.remaining() >= ACK_MESSAGE_SIZE )
+		{
+			out.putInt(2*4); // size of message excluding 4 bytes for size
+			out.putInt(Frame.PROTO_ACK);
+			out.putInt(ready.peekSerial());
+			metrics.frameToAck.record(now - ready.peekTime());
+			ready.remove();
+			++count;
+		}
+		sent += count;
+		return count;
+	}
+}
@@ -0,0 +1,343 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocation regression check for the steady state receive, decode and 
+ * ack loop. It streams frames through the real FrameParser, AckWindow and
+ * DecodePipeline with its decode workers, takes decoded frames the way 
+ * the display does and drains the acks the way the transport writes 
+ * them. After a warm up it measures the heap allocated by all threads of
+ * the process with ThreadMXBean.getThreadAllocatedBytes, summed over all
+ * live threads so the common ForkJoinPool threads decoding row bands 
+ * count too, and exits with status 1 when the average per frame exceeds
+ * the limit.
+ *
+ * The frames are generated or come from a recording made with --record.
+ * They are played from memory in a loop with increasing serials, so the
+ * check needs neither a network nor a server, and it runs without a 
+ * display. Two cases run: generated 640x480 BGR frames at full size and 
+ * 1920x1080 BGR frames shown at 480x270, which are decoded at a reduced
+ * size in row bands. A recording runs at full size and at 480x270. The
+ * larger frames run proportionally fewer frames.
+ *
+ * Usage: AllocationCheck [--replay base] [--frames n] [--warmup n] [--max-bytes n]
+ */
+public class AllocationCheck {
+	
+	final static int DEFAULT_FRAMES = 20000;
+	final static int DEFAULT_WARMUP = 20000;
+	final static long DEFAULT_MAX_BYTES = 64;
+	/** Display size of the reduced case */
+	final static int DISPLAY_WIDTH = 480;
+	final static int DISPLAY_HEIGHT = 270;
+	/** Pixels per frame the frame counts are given for */
+	final static int BASE_PIXELS = 640 * 480;
+	/** Fewest frames a case runs */
+	final static long MIN_FRAMES = 1000;
+	
+	/**
+	 * Plays messages as a Parlevision byte stream, one frame after the 
+	 * other and each with the next serial. Like a server it does not start
+	 * a frame while the window is full of frames without an ack.
+	 */
+	private static class Stream implements ReadableByteChannel {
+		private final ByteBuffer[] frames;
+		private final AckWindow ackWindow;
+		private final int window;
+		private ByteBuffer current;
+		private int next;
+		private int serial;
+		
+		Stream(List<ByteBuffer> messages, AckWindow ackWindow, int window)
+		{
+			this.ackWindow = ackWindow;
+			this.window = window;
+			frames = new ByteBuffer[messages.size()];
+			for( int i=0; i < frames.length; ++i )
+			{
+				ByteBuffer message = messages.get(i);
+				frames[i] = ByteBuffer.allocateDirect(4 + message.remaining());
+				frames[i].putInt(message.remaining()).put(message.duplicate()).flip();
+			}
+		}
+		
+		public int read(ByteBuffer dst)
+		{
+			if( current == null || !current.hasRemaining() )
+			{
+				if( serial - ackWindow.getSentCount() >= window )
+					return 0;
+				current = frames[next];
+				next = (next + 1) % frames.length;
+				current.clear();
+				current.putInt(8, serial++);
+			}
+			int n = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + n);
+			dst.put(current);
+			current.limit(limit);
+			return n;
+		}
+		
+		public boolean isOpen() {
+			return true;
+		}
+		
+		public void close() {
+		}
+	}
+	
+	private final com.sun.management.ThreadMXBean threads;
+	private final Stream stream;
+	private final FrameParser parser;
+	private final AckWindow ackWindow;
+	private final DecodePipeline pipeline;
+	private final ByteBuffer acks;
+	private final int window;
+	private long received;
+	private long displayed;
+	
+	/**
+	 * @param displayWidth display size set on the decoder, 0 for full size
+	 */
+	AllocationCheck(List<ByteBuffer> messages, int displayWidth, int displayHeight)
+	{
+		window = Client.ACK_WINDOW;
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		ackWindow = new AckWindow(window);
+		stream = new Stream(messages, ackWindow, window);
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.setDisplaySize(displayWidth, displayHeight);
+		pipeline = new DecodePipeline(decoder, ackWindow, new Runnable() {
+			public void run() {
+			}
+		}, DecodePipeline.defaultWorkerCount(), window);
+		acks = ByteBuffer.allocateDirect(1024);
+		parser = new FrameParser(new FrameParser.Listener() {
+			public void frameReceived(Frame frame)
+			{
+				ClientMetrics.getDefault().frameReceived(frame.size, frame.startNanos, frame.receivedNanos);
+				ackWindow.received(frame.serial, frame.receivedNanos);
+				pipeline.submit(frame.claim());
+				++received;
+			}
+		});
+	}
+	
+	/**
+	 * Runs the loop until the given number of frames was received and 
+	 * all of them were decoded.
+	 */
+	void run(long frames) throws IOException
+	{
+		long target = received + frames;
+		while( received < target )
+		{
+			if( parser.read(stream, 64 * 1024) == 0 )
+				Thread.onSpinWait();
+			display();
+		}
+		while( ackWindow.getOutstanding() > 0 )
+		{
+			display();
+			Thread.onSpinWait();
+		}
+		display();
+	}
+	
+	private void display()
+	{
+		DecodedFrame frame = pipeline.takeLatest();
+		if( frame != null )
+		{
+			frame.dispose();
+			++displayed;
+		}
+		if( ackWindow.hasReady() )
+		{
+			ackWindow.drain(acks);
+			acks.clear();
+		}
+	}
+	
+	/**
+	 * @return bytes allocated so far by all live threads: this one, the 
+	 * decode workers and the pool threads running row bands. Threads which
+	 * ended are not counted.
+	 */
+	long allocatedBytes()
+	{
+		long[] allocated = threads.getThreadAllocatedBytes(threads.getAllThreadIds());
+		long total = 0;
+		for( int i=0; i < allocated.length; ++i )
+		{
+			// -1 for a thread which ended meanwhile
+			if( allocated[i] > 0 )
+				total += allocated[i];
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the messages of a recording, without size prefixes
+	 */
+	static List<ByteBuffer> readRecording(File base) throws IOException
+	{
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		for( int s=0; StreamRecorder.segmentFile(base, s).exists(); ++s )
+		{
+			RandomAccessFile raf = new RandomAccessFile(StreamRecorder.segmentFile(base, s), "r");
+			try
+			{
+				MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				while( segment.remaining() >= StreamRecorder.RECORD_HEADER_SIZE )
+				{
+					int size = segment.getInt();
+					if( size == 0 )
+						break;
+					segment.position(segment.position() + StreamRecorder.RECORD_HEADER_SIZE - 4);
+					ByteBuffer message = segment.duplicate();
+					message.limit(message.position() + size);
+					if( message.getInt(message.position()) == Frame.PROTO_FRAME )
+						messages.add(message);
+					segment.position(segment.position() + size);
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		if( messages.isEmpty() )
+			throw new IOException("No frames recorded at " + base);
+		return messages;
+	}
+	
+	/**
+	 * @return a few frames like the SyntheticServer sends, a string and a
+	 * BGR matrix of the given size
+	 */
+	static List<ByteBuffer> generate(int width, int height) throws IOException
+	{
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		byte[] pixels = new byte[width * height * 3];
+		for( int i=0; i < 4; ++i )
+		{
+			for( int p=0; p < pixels.length; ++p )
+				pixels[p] = (byte) (p * 7 + i * 31);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			VariantWriter writer = new VariantWriter(out);
+			writer.writeString("frame " + i);
+			writer.writeCvMatData(CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, 3), width, height, pixels);
+			writer.flush();
+			ByteBuffer message = ByteBuffer.allocate(Frame.HEADER_SIZE + out.size());
+			message.putInt(Frame.PROTO_FRAME).putInt(i).putInt(2).put(out.toByteArray()).flip();
+			messages.add(message);
+		}
+		return messages;
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		File replay = null;
+		long frames = DEFAULT_FRAMES;
+		long warmup = DEFAULT_WARMUP;
+		long maxBytes = DEFAULT_MAX_BYTES;
+		for( int i=0; i < args.length; ++i )
+		{
+			if( i+1 >= args.length )
+			{
+				System.err.println("Usage: AllocationCheck [--replay base] [--frames n] [--warmup n] [--max-bytes n]");
+				System.exit(2);
+			}
+			else if( args[i].equals("--replay") )
+				replay = new File(args[++i]);
+			else if( args[i].equals("--frames") )
+				frames = Long.parseLong(args[++i]);
+			else if( args[i].equals("--warmup") )
+				warmup = Long.parseLong(args[++i]);
+			else if( args[i].equals("--max-bytes") )
+				maxBytes = Long.parseLong(args[++i]);
+		}
+		
+		boolean passed;
+		if( replay != null )
+		{
+			List<ByteBuffer> messages = readRecording(replay);
+			passed = check("recording, full size", messages, 0, 0, warmup, frames, maxBytes);
+			passed &= check("recording, shown at " + DISPLAY_WIDTH + "x" + DISPLAY_HEIGHT, messages, 
+					DISPLAY_WIDTH, DISPLAY_HEIGHT, warmup, frames, maxBytes);
+		}
+		else
+		{
+			passed = check("640x480, full size", generate(640, 480), 0, 0, warmup, frames, maxBytes);
+			long scale = 1920 * 1080 / BASE_PIXELS;
+			passed &= check("1920x1080, shown at " + DISPLAY_WIDTH + "x" + DISPLAY_HEIGHT, generate(1920, 1080), 
+					DISPLAY_WIDTH, DISPLAY_HEIGHT, Math.max(MIN_FRAMES, warmup / scale), 
+					Math.max(MIN_FRAMES, frames / scale), maxBytes);
+		}
+		if( !passed )
+		{
+			System.out.println("FAILED: the steady state allocates");
+			System.exit(1);
+		}
+		System.out.println("OK");
+		System.exit(0);
+	}
+	
+	/**
+	 * Runs one case and prints its result.
+	 * 
+	 * @return whether it stayed within the limit
+	 */
+	static boolean check(String name, List<ByteBuffer> messages, int displayWidth, int displayHeight, 
+			long warmup, long frames, long maxBytes) throws IOException
+	{
+		AllocationCheck check = new AllocationCheck(messages, displayWidth, displayHeight);
+		check.run(warmup);
+		long before = check.allocatedBytes();
+		long displayedBefore = check.displayed;
+		check.run(frames);
+		long allocated = check.allocatedBytes() - before;
+		long displayed = check.displayed - displayedBefore;
+		
+		double perFrame = allocated / (double) frames;
+		System.out.printf("%s: %d frames, %d displayed, %d bytes allocated: %.1f bytes per frame (limit %d)%n",
+				name, frames, displayed, allocated, perFrame, maxBytes);
+		return perFrame <= maxBytes;
+	}
+}
@@ -0,0 +1,265 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+/**
+ * Keeps the latency from receiving a frame to displaying it below a bound
+ * when the client cannot keep up with the server. Without it the only 
+ * backpressure is the ack window, and a window full of frames that each
+ * take longer to decode than the next one takes to arrive adds latency 
+ * which grows with every frame the socket buffers hold.
+ *
+ * The controller keeps moving averages of the time between arriving 
+ * frames, the time a worker needs to decode a frame, the time the GUI 
+ * thread needs to show one and the receive to display latency. From the
+ * decode and display costs it estimates the frame rate the client can 
+ * sustain and reacts in three ways:
+ * <ul>
+ * <li>it skips decoding of intermediate frames when they arrive faster 
+ *     than that rate. Skipped frames are acked right away, the display 
+ *     only shows the newest frame anyway.</li>
+ * <li>as the AckWindow Policy it holds acks back while the latency is 
+ *     above the bound, halving the window, and grows the window again by
+ *     one frame at a time once the latency is well below it.</li>
+ * <li>when the server answered our PROTO_INIT, it asks the server for the
+ *     sustainable frame rate with a new PROTO_INIT, so the skipped frames
+ *     are not sent in the first place.</li>
+ * </ul>
+ * While frames queue up and the latency stays above the bound the 
+ * estimated rate is scaled down further, and recovers gradually when the
+ * latency drops again.
+ *
+ * The methods are called from the network, decode and GUI threads and 
+ * are synchronized; they run once per frame and do little work.
+ */
+public class BackpressureController implements AckWindow.Policy {
+	
+	final static long DEFAULT_MAX_LATENCY_NANOS = 200000000L;
+	
+	// weight of a new sample in the moving averages
+	private final static double ALPHA = 1.0 / 16;
+	// fraction of the estimated capacity we aim to use
+	private final static double UTILIZATION = 0.9;
+	// least time between two rate requests to the server
+	private final static long REQUEST_INTERVAL_NANOS = 1000000000L;
+	// change of the sustainable rate which is worth a new request
+	private final static double REQUEST_HYSTERESIS = 0.2;
+	
+	private final int workers;
+	private final long maxLatencyNanos;
+	private NioTransport transport;
+	private Capabilities capabilities;
+	private int maxDisplayFps;
+	
+	private long lastArrival;
+	private double interarrival;
+	private double decodeCost;
+	private double displayCost;
+	private double latency;
+	private double scale = 1.0;
+	private double credit;
+	private long lastAdjust;
+	private int requestedFps;
+	private long lastRequest;
+	
+	/**
+	 * @param workers number of threads decoding in parallel
+	 * @param maxLatencyNanos bound on the receive to display latency
+	 */
+	public BackpressureController(int workers, long maxLatencyNanos)
+	{
+		this.workers = Math.max(1, workers);
+		this.maxLatencyNanos = maxLatencyNanos;
+	}
+	
+	/**
+	 * Lets the controller ask the server for a lower or higher frame rate
+	 * by sending the given capabilities with an updated fps cap. Only 
+	 * done when the server replied to the PROTO_INIT of the connection.
+	 */
+	public synchronized void setTransport(NioTransport transport, Capabilities capabilities)
+	{
+		this.transport = transport;
+		this.capabilities = capabilities;
+	}
+	
+	/**
+	 * Caps the useful frame rate at the display refresh rate, 0 for none.
+	 */
+	public synchronized void setMaxDisplayFps(int maxFps) {
+		this.maxDisplayFps = maxFps;
+	}
+	
+	/**
+	 * Forgets all estimates, e.g. for a new connection.
+	 */
+	public synchronized void reset()
+	{
+		lastArrival = 0;
+		interarrival = 0;
+		decodeCost = 0;
+		displayCost = 0;
+		latency = 0;
+		scale = 1.0;
+		credit = 0;
+		requestedFps = 0;
+	}
+	
+	/**
+	 * Registers an arriving frame and decides whether to decode it. Called
+	 * by the pipeline on the network thread.
+	 * 
+	 * @param busy whether earlier frames are still waiting for a worker;
+	 * frames are only skipped when there is a newer one to show instead
+	 * @return false to skip decoding the frame
+	 */
+	synchronized boolean admit(long receivedNanos, boolean busy)
+	{
+		if( lastArrival != 0 )
+			interarrival = average(interarrival, receivedNanos - lastArrival);
+		lastArrival = receivedNanos;
+		
+		requestRate(receivedNanos);
+		
+		double sustainable = getSustainableFps();
+		double arrivalFps = interarrival > 0 ? 1e9 / interarrival : 0;
+		if( sustainable <= 0 || arrivalFps <= sustainable )
+		{
+			credit = 0;
+			return true;
+		}
+		
+		// decode an evenly spread share of the frames
+		credit = Math.min(1.0, credit + sustainable / arrivalFps);
+		if( credit >= 1.0 || !busy )
+		{
+			credit = Math.max(0, credit - 1.0);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Registers the time a worker spent decoding a frame.
+	 */
+	synchronized void decoded(long decodeNanos) {
+		decodeCost = average(decodeCost, decodeNanos);
+	}
+	
+	/**
+	 * Registers a displayed frame. Called on the GUI thread.
+	 * 
+	 * @param displayNanos time spent showing the frame
+	 * @param latencyNanos time from receiving the frame until it was shown
+	 */
+	public synchronized void displayed(long displayNanos, long latencyNanos)
+	{
+		displayCost = average(displayCost, displayNanos);
+		latency = average(latency, latencyNanos);
+		
+		// adjust the scale at most every tenth of the bound, so a change 
+		// can show in the latency before the next one
+		long now = System.nanoTime();
+		if( now - lastAdjust < maxLatencyNanos / 10 )
+			return;
+		lastAdjust = now;
+		// below the cost of decoding and showing a single frame the bound 
+		// cannot be met by sending fewer frames, only queueing can be cut
+		double queueing = latency - decodeCost - displayCost;
+		if( latency > maxLatencyNanos && queueing > decodeCost + displayCost )
+			scale = Math.max(0.05, scale * 0.8);
+		else if( latency < maxLatencyNanos / 2 )
+			scale = Math.min(1.0, scale + 0.05);
+	}
+	
+	/**
+	 * Holds acks back while the latency is above the bound.
+	 */
+	public synchronized int window(int configured, int current)
+	{
+		if( latency > maxLatencyNanos )
+			return Math.max(1, current / 2);
+		if( latency < maxLatencyNanos / 2 )
+			return Math.min(configured, current + 1);
+		return current;
+	}
+	
+	/**
+	 * @return frames per second the client is estimated to decode and 
+	 * show within the latency bound, 0 while unknown
+	 */
+	public synchronized double getSustainableFps()
+	{
+		if( decodeCost <= 0 )
+			return 0;
+		double fps = workers * 1e9 / decodeCost;
+		if( displayCost > 0 )
+			fps = Math.min(fps, 1e9 / displayCost);
+		if( maxDisplayFps > 0 )
+			fps = Math.min(fps, maxDisplayFps);
+		return fps * UTILIZATION * scale;
+	}
+	
+	/**
+	 * @return moving average of the receive to display latency
+	 */
+	public synchronized long getLatencyNanos() {
+		return (long) latency;
+	}
+	
+	/**
+	 * @return the frame rate last asked from the server, 0 for none
+	 */
+	public synchronized int getRequestedFps() {
+		return requestedFps;
+	}
+	
+	private void requestRate(long now)
+	{
+		if( transport == null || transport.getNegotiated() == null )
+			return;
+		if( now - lastRequest < REQUEST_INTERVAL_NANOS )
+			return;
+		
+		// the rate the server was asked for last, 0 for no limit
+		int cap = capabilities.getMaxFps();
+		int current = requestedFps > 0 ? requestedFps : cap;
+		int fps = (int) getSustainableFps();
+		if( fps <= 0 || (cap > 0 && fps >= cap) )
+			fps = cap;
+		if( fps == current )
+			return;
+		// small changes are not worth a renegotiation
+		if( current > 0 && fps > 0 && Math.abs(fps - current) < current * REQUEST_HYSTERESIS )
+			return;
+		
+		Capabilities request = capabilities.copy();
+		request.setMaxFps(fps);
+		transport.send(request.toMessage());
+		requestedFps = fps;
+		lastRequest = now;
+	}
+	
+	private static double average(double average, double sample) {
+		return average == 0 ? sample : average + ALPHA * (sample - average);
+	}
+}
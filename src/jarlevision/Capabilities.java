@@ -0,0 +1,300 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The contents of a PROTO_INIT message, which lets the client tell the 
+ * server what it needs so the server does not send bytes the client 
+ * would throw away. The client sends its capabilities right after 
+ * connecting: the image formats it accepts in order of preference, the 
+ * largest image it wants, a downscale factor, a frame rate cap and its 
+ * ack window. A server which understands INIT answers with a PROTO_INIT 
+ * describing what it will actually send, i.e. a single format, the image 
+ * size, the frame rate and the window. Servers which do not understand 
+ * INIT simply ignore it and the client works as before.
+ *
+ * The arguments are pairs of a String key and an Int or String value.
+ * Unknown keys are skipped, so either side can add keys later. Formats
+ * use the names of SyntheticServer: gray8, bgr, bgra, depth16 and float
+ * for CvMatData, png for QImage and jpeg and wrapped-png for QImageWrapper.
+ */
+public class Capabilities {
+	
+	final static String KEY_FORMATS    = "formats";
+	final static String KEY_MAX_WIDTH  = "maxWidth";
+	final static String KEY_MAX_HEIGHT = "maxHeight";
+	final static String KEY_DOWNSCALE  = "downscale";
+	final static String KEY_MAX_FPS    = "maxFps";
+	final static String KEY_WINDOW     = "window";
+	
+	/**
+	 * All formats the client decodes, fastest first: BGRA only needs its
+	 * alpha set, gray and BGR are widened per pixel, depth and float are
+	 * mapped through a min/max pass and compressed images have to be 
+	 * decompressed.
+	 */
+	public final static List<String> DEFAULT_FORMATS = Collections.unmodifiableList(Arrays.asList(
+			"bgra", "gray8", "bgr", "depth16", "float", "jpeg", "png", "wrapped-png"));
+	
+	private List<String> formats = DEFAULT_FORMATS;
+	private int maxWidth;
+	private int maxHeight;
+	private int downscale = 1;
+	private int maxFps;
+	private int window;
+	
+	/**
+	 * @return accepted formats in order of preference, or for a server 
+	 * reply the one format it sends
+	 */
+	public List<String> getFormats() {
+		return formats;
+	}
+	
+	public void setFormats(List<String> formats) {
+		this.formats = Collections.unmodifiableList(new ArrayList<String>(formats));
+	}
+	
+	/**
+	 * @return maximum image width, 0 for no limit
+	 */
+	public int getMaxWidth() {
+		return maxWidth;
+	}
+	
+	/**
+	 * @return maximum image height, 0 for no limit
+	 */
+	public int getMaxHeight() {
+		return maxHeight;
+	}
+	
+	/**
+	 * Limits the image size, 0 for no limit. The server scales larger 
+	 * images down to fit, keeping their aspect ratio.
+	 */
+	public void setMaxSize(int maxWidth, int maxHeight)
+	{
+		this.maxWidth = Math.max(0, maxWidth);
+		this.maxHeight = Math.max(0, maxHeight);
+	}
+	
+	public int getDownscale() {
+		return downscale;
+	}
+	
+	/**
+	 * Asks the server to divide the width and height of its images by the 
+	 * given factor, 1 for full resolution.
+	 */
+	public void setDownscale(int downscale) {
+		this.downscale = Math.max(1, downscale);
+	}
+	
+	/**
+	 * @return maximum frames per second, 0 for no limit
+	 */
+	public int getMaxFps() {
+		return maxFps;
+	}
+	
+	public void setMaxFps(int maxFps) {
+		this.maxFps = Math.max(0, maxFps);
+	}
+	
+	/**
+	 * @return number of unacknowledged frames the server may send ahead, 
+	 * 0 if not specified
+	 */
+	public int getWindow() {
+		return window;
+	}
+	
+	public void setWindow(int window) {
+		this.window = Math.max(0, window);
+	}
+	
+	/**
+	 * @return an independent copy, e.g. to send with a changed value
+	 */
+	public Capabilities copy()
+	{
+		Capabilities copy = new Capabilities();
+		copy.formats = formats;
+		copy.maxWidth = maxWidth;
+		copy.maxHeight = maxHeight;
+		copy.downscale = downscale;
+		copy.maxFps = maxFps;
+		copy.window = window;
+		return copy;
+	}
+	
+	/**
+	 * Scales an image size by the downscale factor and then down to fit 
+	 * the maximum size, keeping the aspect ratio. Used by servers to 
+	 * decide what to send.
+	 * 
+	 * @return the width and height to send, both at least 1
+	 */
+	public int[] fit(int width, int height)
+	{
+		double scale = 1.0 / downscale;
+		if( maxWidth > 0 )
+			scale = Math.min(scale, (double) maxWidth / width);
+		if( maxHeight > 0 )
+			scale = Math.min(scale, (double) maxHeight / height);
+		return new int[] { 
+				Math.max(1, (int) (width * scale)), 
+				Math.max(1, (int) (height * scale)) };
+	}
+	
+	/**
+	 * Picks the most preferred of our formats which the other side can 
+	 * produce.
+	 * 
+	 * @return the format, or null if none of them is available
+	 */
+	public String choose(List<String> available)
+	{
+		for( int i=0; i < formats.size(); ++i )
+			if( available.contains(formats.get(i)) )
+				return formats.get(i);
+		return null;
+	}
+	
+	/**
+	 * Encodes a PROTO_INIT message, size prefix included, ready to be 
+	 * written to the socket.
+	 */
+	public ByteBuffer toMessage()
+	{
+		try
+		{
+			ByteArrayOutputStream args = new ByteArrayOutputStream(256);
+			VariantWriter writer = new VariantWriter(args);
+			StringBuilder list = new StringBuilder();
+			for( int i=0; i < formats.size(); ++i )
+				list.append(i > 0 ? "," : "").append(formats.get(i));
+			writer.writeString(KEY_FORMATS);
+			writer.writeString(list.toString());
+			writer.writeString(KEY_MAX_WIDTH);
+			writer.writeInt(maxWidth);
+			writer.writeString(KEY_MAX_HEIGHT);
+			writer.writeInt(maxHeight);
+			writer.writeString(KEY_DOWNSCALE);
+			writer.writeInt(downscale);
+			writer.writeString(KEY_MAX_FPS);
+			writer.writeInt(maxFps);
+			writer.writeString(KEY_WINDOW);
+			writer.writeInt(window);
+			writer.flush();
+			
+			ByteBuffer message = ByteBuffer.allocate(4 + Frame.HEADER_SIZE + args.size());
+			message.putInt(Frame.HEADER_SIZE + args.size());
+			message.putInt(Frame.PROTO_INIT);
+			message.putInt(0);
+			message.putInt(2 * 6); // six key value pairs
+			message.put(args.toByteArray());
+			message.flip();
+			return message;
+		}
+		catch( IOException e )
+		{
+			// writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Decodes the arguments of a PROTO_INIT message.
+	 * 
+	 * @param args big endian buffer positioned at the first argument
+	 * @param numargs number of arguments in the message
+	 * @return the capabilities, or null if the message is malformed
+	 */
+	public static Capabilities read(ByteBuffer args, int numargs)
+	{
+		final Capabilities caps = new Capabilities();
+		final Object[] value = new Object[1];
+		VariantDecoder decoder = new VariantDecoder();
+		VariantDecoder.Visitor visitor = new VariantDecoder.Visitor() {
+			public void onInt(int v) {
+				value[0] = Integer.valueOf(v);
+			}
+			
+			public void onString(CharSequence v) {
+				// a null QString reads as an empty string
+				value[0] = v == null ? "" : v.toString();
+			}
+		};
+		
+		for( int i=0; i+1 < numargs; i += 2 )
+		{
+			value[0] = null;
+			if( !decoder.read(args, visitor) || !(value[0] instanceof String) )
+				return null;
+			String key = (String) value[0];
+			value[0] = null;
+			if( !decoder.read(args, visitor) )
+				return null;
+			
+			if( key.equals(KEY_FORMATS) && value[0] instanceof String )
+			{
+				String formats = (String) value[0];
+				caps.setFormats(formats.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(formats.split(",")));
+			}
+			else if( value[0] instanceof Integer )
+			{
+				int v = ((Integer) value[0]).intValue();
+				if( key.equals(KEY_MAX_WIDTH) )
+					caps.maxWidth = Math.max(0, v);
+				else if( key.equals(KEY_MAX_HEIGHT) )
+					caps.maxHeight = Math.max(0, v);
+				else if( key.equals(KEY_DOWNSCALE) )
+					caps.setDownscale(v);
+				else if( key.equals(KEY_MAX_FPS) )
+					caps.setMaxFps(v);
+				else if( key.equals(KEY_WINDOW) )
+					caps.setWindow(v);
+			}
+		}
+		return caps;
+	}
+	
+	public String toString()
+	{
+		return "formats " + formats 
+			+ ", max size " + (maxWidth > 0 || maxHeight > 0 
+					? (maxWidth > 0 ? maxWidth : "any") + "x" + (maxHeight > 0 ? maxHeight : "any") : "any")
+			+ ", downscale " + downscale 
+			+ ", " + (maxFps > 0 ? maxFps + " fps" : "unlimited fps")
+			+ ", window " + (window > 0 ? window : "any");
+	}
+}
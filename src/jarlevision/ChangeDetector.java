@@ -0,0 +1,185 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * Detects whether an image differs from the previous one shown, so the 
+ * pixmap upload can be skipped when a static camera keeps sending the 
+ * same content. The image is divided into tiles of TILE_ROWS rows by 
+ * TILE_BYTES bytes, each of which is hashed; an image is unchanged when
+ * its size and every tile hash match. Hashing reads the image once,
+ * in parallel row bands for large images, which is far cheaper than 
+ * converting and uploading it.
+ *
+ * Padding at the end of the lines is not hashed. A detector keeps the 
+ * hashes of one display and must only be used by one thread.
+ */
+public class ChangeDetector {
+	
+	final static int TILE_ROWS  = 64;
+	final static int TILE_BYTES = 256;
+	
+	private static final long PRIME = 0x9e3779b97f4a7c15L;
+	
+	private long[] hashes;
+	private long[] next;
+	private int[] bandChanges;
+	private int width, height, rowBytes;
+	private int changedTiles;
+	
+	public ChangeDetector()
+	{
+		hashes = new long[0];
+		next = new long[0];
+		bandChanges = new int[0];
+	}
+	
+	/**
+	 * @return number of tiles which differed in the last update, or all 
+	 * of them when the size changed
+	 */
+	public int getChangedTiles() {
+		return changedTiles;
+	}
+	
+	/**
+	 * Forgets the previous image, so the next one counts as changed.
+	 */
+	public void reset()
+	{
+		width = height = rowBytes = 0;
+	}
+	
+	public boolean update(NativeBuffer buffer)
+	{
+		int bytesPerPixel = buffer.getFormat() == QImage.Format.Format_Indexed8 ? 1 : 4;
+		return update(buffer.address(), buffer.getBytesPerLine(), 
+				buffer.getWidth() * bytesPerPixel, buffer.getWidth(), buffer.getHeight());
+	}
+	
+	public boolean update(QImage image)
+	{
+		int rowBytes;
+		switch( image.format() )
+		{
+			case Format_Indexed8:
+				rowBytes = image.width();
+				break;
+			case Format_RGB32:
+			case Format_ARGB32:
+			case Format_ARGB32_Premultiplied:
+				rowBytes = image.width() * 4;
+				break;
+			default:
+				rowBytes = image.bytesPerLine();
+		}
+		return update(image.bits().pointer(), image.bytesPerLine(), rowBytes, image.width(), image.height());
+	}
+	
+	/**
+	 * Hashes an image in native memory and compares it with the previous
+	 * one.
+	 * 
+	 * @param rowBytes number of bytes of pixel data in each line
+	 * @return true if the image differs from the previous one
+	 */
+	public boolean update(final long address, final int bytesPerLine, final int rowBytes, int width, final int height)
+	{
+		final int columns  = (rowBytes + TILE_BYTES - 1) / TILE_BYTES;
+		final int tileRows = (height + TILE_ROWS - 1) / TILE_ROWS;
+		int tiles = columns * tileRows;
+		boolean resized = width != this.width || height != this.height || rowBytes != this.rowBytes;
+		
+		if( next.length < tiles )
+		{
+			next = new long[tiles];
+			hashes = new long[tiles];
+			resized = true;
+		}
+		int bands = Math.max(1, Math.min(RowBands.bandCount(rowBytes / 4, height), tileRows));
+		if( bandChanges.length < bands )
+			bandChanges = new int[bands];
+		
+		final long[] previous = hashes;
+		final long[] current = next;
+		final int[] changes = bandChanges;
+		RowBands.run(tileRows, bands, new RowBands.Task() {
+			public void run(int band, int fromTile, int toTile) {
+				changes[band] = hash(address, bytesPerLine, rowBytes, height, columns, 
+						fromTile, toTile, current, previous);
+			}
+		});
+		
+		int changed = 0;
+		for( int b=0; b < bands; ++b )
+			changed += changes[b];
+		
+		hashes = current;
+		next = previous;
+		this.width = width;
+		this.height = height;
+		this.rowBytes = rowBytes;
+		changedTiles = resized ? tiles : changed;
+		return changedTiles > 0;
+	}
+	
+	/**
+	 * Hashes the tiles of rows fromTile to toTile.
+	 * 
+	 * @return number of tiles whose hash differs from the previous one
+	 */
+	private static int hash(long address, int bytesPerLine, int rowBytes, int height, int columns,
+			int fromTile, int toTile, long[] current, long[] previous)
+	{
+		for( int t = fromTile * columns; t < toTile * columns; ++t )
+			current[t] = 0;
+		
+		int toRow = Math.min(height, toTile * TILE_ROWS);
+		for( int y = fromTile * TILE_ROWS; y < toRow; ++y )
+		{
+			long line = address + (long) y * bytesPerLine;
+			int tile = (y / TILE_ROWS) * columns;
+			for( int c=0; c < columns; ++c )
+			{
+				int from = c * TILE_BYTES;
+				int to = Math.min(rowBytes, from + TILE_BYTES);
+				long h = current[tile + c];
+				int x = from;
+				for( ; x + 8 <= to; x += 8 )
+					h = (h ^ NativeMemory.getLong(line + x)) * PRIME;
+				for( ; x < to; ++x )
+					h = (h ^ NativeMemory.getByte(line + x)) * PRIME;
+				current[tile + c] = h;
+			}
+		}
+		
+		int changed = 0;
+		for( int t = fromTile * columns; t < toTile * columns; ++t )
+		{
+			if( current[t] != previous[t] )
+				++changed;
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,643 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.trolltech.qt.core.Qt;
+import com.trolltech.qt.gui.*;
+
+public class Client extends QWidget {
+
+    private QLabel hostLabel;
+    private QLabel portLabel;
+    private QLabel statusLabel;
+    private QLabel imageLabel;
+    private QPushButton quitButton;
+    private QPushButton connectButton;
+    private QDialogButtonBox buttonBox;
+    private NioTransport transport;
+    private DecodePipeline pipeline;
+    private AckWindow ackWindow;
+    private StreamRecorder recorder;
+    private StreamReplay replay;
+    private DisplayThrottle throttle;
+    private ChangeDetector changeDetector;
+    private Capabilities capabilities;
+    private BackpressureController controller;
+    private FrameProcessor processor;
+    private FrameDecoder decoder;
+    private FrameExporter exporter;
+    private boolean fit;
+    private volatile SharedFrameRing ring;
+    // reused for every displayed image
+    private QPixmap pixmap;
+    // the status last set by displayLatestFrame, cleared when anything else writes the label
+    private String shownStatus;
+    QLineEdit hostLineEdit;
+    QLineEdit portLineEdit;
+    String currentFortune;
+    int serial;
+    
+    // number of frames the server may send ahead of the decoder
+    final static int ACK_WINDOW = 4;
+        
+    Client(QWidget parent) 
+    {
+    	hostLabel = new QLabel("Server address:");
+        portLabel = new QLabel("Port:");
+        
+        hostLineEdit = new QLineEdit();
+        portLineEdit = new QLineEdit();
+        
+        portLineEdit.setValidator(new QIntValidator(1, 65535, this));
+
+        hostLabel.setBuddy(hostLineEdit);
+        portLabel.setBuddy(portLineEdit);
+        
+        statusLabel = new QLabel(tr("This program requires that you run the Parlevision Server as well."));
+        
+        connectButton = new QPushButton(tr("Connect"));
+        connectButton.setDefault(true);
+        connectButton.setEnabled(false);
+
+        quitButton = new QPushButton(tr("Quit"));
+
+        buttonBox = new QDialogButtonBox();
+        buttonBox.addButton( connectButton, QDialogButtonBox.ButtonRole.ActionRole);
+        buttonBox.addButton( quitButton, QDialogButtonBox.ButtonRole.RejectRole);
+
+        imageLabel = new QLabel();
+        QImage img  = new QImage( 640, 480, QImage.Format.Format_ARGB32 );
+        img.fill( new QColor( Qt.GlobalColor.black ).rgb() );
+        pixmap = QPixmap.fromImage( img );
+        imageLabel.setPixmap( pixmap );
+
+        throttle = new DisplayThrottle(new Runnable() {
+        	public void run() { displayLatestFrame(); }
+        }, DisplayThrottle.DEFAULT_MAX_FPS);
+        
+        ackWindow = new AckWindow(ACK_WINDOW);
+        processor = new FrameProcessor();
+        decoder = new FrameDecoder();
+        decoder.setProcessor(processor);
+        pipeline = new DecodePipeline(decoder, ackWindow,
+        		new Runnable() {
+        			public void run() 
+        			{
+        				QApplication.invokeLater(new Runnable() {
+        					public void run() { throttle.request(); }
+        				});
+        			}
+        		},
+        		DecodePipeline.defaultWorkerCount(), ACK_WINDOW);
+        transport = new NioTransport(new NioTransport.Listener() {
+			public void connected() 
+			{
+				QApplication.invokeLater(new Runnable() {
+					public void run() { onConnect(); }
+				});
+			}
+
+			public void frameReceived(Frame frame) 
+			{
+				SharedFrameRing r = ring;
+				if( r != null )
+					r.publish(frame);
+				// take the buffer over from the parser, the decode 
+				// workers read the frame in place and release it
+				pipeline.submit(frame.claim());
+			}
+
+			public void disconnected(final IOException cause) 
+			{
+				pipeline.clear();
+				QApplication.invokeLater(new Runnable() {
+					public void run() 
+					{
+						if( cause != null )
+							displayError(cause);
+						onDisconnect();
+					}
+				});
+			}
+		});
+        transport.setAckWindow(ackWindow);
+        
+        // tell the server what we decode, so it can shape the stream
+        capabilities = new Capabilities();
+        capabilities.setWindow(ACK_WINDOW);
+        capabilities.setMaxFps(DisplayThrottle.DEFAULT_MAX_FPS);
+        transport.setCapabilities(capabilities);
+        setMaxLatency(BackpressureController.DEFAULT_MAX_LATENCY_NANOS / 1000000);
+
+        hostLineEdit.textChanged.connect( this, "enableConnectButton()" );
+        portLineEdit.textChanged.connect( this, "enableConnectButton()" );
+        
+        connectButton.clicked.connect( this, "onConnectButtonPressed()" );
+        quitButton.clicked.connect( this, "close()" );
+
+        QGridLayout mainLayout = new QGridLayout();
+        mainLayout.addWidget(hostLabel, 0, 0);
+        mainLayout.addWidget(hostLineEdit, 0, 1);
+        mainLayout.addWidget(portLabel, 1, 0);
+        mainLayout.addWidget(portLineEdit, 1, 1);
+        mainLayout.addWidget(statusLabel, 2, 0, 1, 2);
+        mainLayout.addWidget(buttonBox, 3, 0, 1, 2);
+        mainLayout.addWidget(imageLabel, 4, 0, 1, 2);
+        setLayout(mainLayout);
+
+        setWindowTitle(tr("Parlevision Test Client"));
+        hostLineEdit.setText("localhost");
+        portLineEdit.setFocus();
+    }
+    
+    void onConnectButtonPressed()
+    {
+    	if( !transport.isRunning() )
+    	{
+	    	connectButton.setEnabled(false);
+	        
+	        transport.connectToHost( hostLineEdit.text(), Integer.parseInt( portLineEdit.text() ) );
+	             
+	        connectButton.setEnabled(false);
+	        connectButton.setText(tr("Connecting..."));
+    	}
+    	else
+    	{
+    		//disconnect
+    		transport.close();
+    	}
+    }
+    
+    void onConnect()
+    {
+    	//connectButton.setEnabled(false);
+    	connectButton.setText(tr("Disconnect"));
+        connectButton.setEnabled(true);
+    }
+    
+    void onDisconnect()
+    {
+    	connectButton.setEnabled(false);	
+    	connectButton.setText(tr("Connect"));
+        connectButton.setEnabled(true);
+        
+        // show the first image after reconnecting even if it is the same
+        if( changeDetector != null )
+        	changeDetector.reset();
+        if( controller != null )
+        	controller.reset();
+        shownStatus = null;
+    }
+
+    /**
+     * Limits the display to maxFps refreshes per second, 0 for no limit.
+     */
+    void setMaxFps(int maxFps)
+    {
+        throttle.setMaxFps(maxFps);
+        capabilities.setMaxFps(maxFps);
+        if( controller != null )
+        	controller.setMaxDisplayFps(maxFps);
+    }
+    
+    /**
+     * Keeps the latency from receiving to showing a frame below the given
+     * bound by skipping frames, holding acks back and asking the server 
+     * for a lower rate. 0 turns this off and only shrinks the ack window
+     * when the decode queue backs up.
+     */
+    void setMaxLatency(long millis)
+    {
+        if( millis > 0 )
+        {
+        	controller = new BackpressureController(DecodePipeline.defaultWorkerCount(), millis * 1000000);
+        	controller.setMaxDisplayFps(capabilities.getMaxFps());
+        	controller.setTransport(transport, capabilities);
+        	ackWindow.setPolicy(controller);
+        }
+        else
+        {
+        	controller = null;
+        	ackWindow.setPolicy(new AckWindow.DecodeLagPolicy(pipeline, 1));
+        }
+        pipeline.setController(controller);
+    }
+    
+    /**
+     * Asks the server for images of at most the given size, scaled down by
+     * the given factor. Takes effect on the next connection.
+     */
+    void setMaxSize(int maxWidth, int maxHeight, int downscale)
+    {
+        capabilities.setMaxSize(maxWidth, maxHeight);
+        capabilities.setDownscale(downscale);
+    }
+    
+    /**
+     * Turns the PROTO_INIT handshake on or off, e.g. for servers which 
+     * do not cope with it.
+     */
+    void setSendInit(boolean send)
+    {
+        transport.setCapabilities(send ? capabilities : null);
+    }
+    
+    /**
+     * Converts images while frames arrive instead of after, which hides 
+     * the conversion behind the transfer of large frames.
+     */
+    void setProgressive(boolean progressive)
+    {
+        transport.setProgressiveDecoder(progressive ? new ProgressiveDecoder() : null);
+    }
+    
+    /**
+     * Adds a stage decoded images go through before they are displayed.
+     */
+    void addProcessingStage(ProcessingStage stage)
+    {
+        processor.add(stage);
+    }
+    
+    /**
+     * Scales images to the size of the window. They are decoded at about 
+     * that size instead of at full size, see FrameDecoder.setDisplaySize().
+     */
+    void setFit(boolean fit)
+    {
+        this.fit = fit;
+        imageLabel.setScaledContents(fit);
+        // the size of the placeholder image until a frame is shown
+        decoder.setDisplaySize(fit ? 640 : 0, fit ? 480 : 0);
+    }
+    
+    /**
+     * Skips the pixmap upload for images identical to the one shown.
+     */
+    void setSkipUnchanged(boolean skip)
+    {
+        changeDetector = skip ? new ChangeDetector() : null;
+    }
+    
+    /**
+     * Shows the newest decoded frame. Runs on the GUI thread, the only
+     * place where pixmaps can be created. Only the last image and status
+     * of a frame would remain visible, so only those are shown.
+     */
+    void displayLatestFrame()
+    {
+        DecodedFrame frame = pipeline.takeLatest();
+        if( frame == null )
+            return;
+        long start = System.nanoTime();
+        
+        Object image = null;
+        String status = null;
+        List<Object> arguments = frame.getArguments();
+        for( int i=0; i < arguments.size(); ++i )
+        {
+	        Object object = arguments.get(i);
+	        
+	        if( object instanceof QImage || object instanceof CvMatData )
+	        	image = object;
+	        else if( object instanceof String )
+	        	status = (String) object;
+        }
+        
+        // the decoder hands out the same String for a repeated status
+        if( status != null && status != shownStatus )
+        {
+        	statusLabel.setText( status );
+        	shownStatus = status;
+        }
+        if( image != null )
+        	showImage( image );
+        // follow the window size, the next frames are decoded to match
+        if( fit )
+        	decoder.setDisplaySize( imageLabel.width(), imageLabel.height() );
+        
+        long now = System.nanoTime();
+        ClientMetrics.getDefault().decodedToDisplayed.record(now - frame.getDecodedNanos());
+        if( controller != null )
+        	controller.displayed(now - start, now - frame.getReceivedNanos());
+        
+        boolean corrupt = frame.isCorrupt();
+        // we need to explicitly free CvMatData after use!
+        frame.dispose();
+        
+        if( corrupt )
+        {
+        	statusLabel.setText( "Datastream corrupt" );
+        	shownStatus = null;
+        	System.err.println("Datastream corrupt, closing the connection");
+        	transport.close();
+        	if( replay != null )
+        		replay.stop();
+        }
+    }
+    
+    private void showImage(Object image)
+    {
+    	ClientMetrics metrics = ClientMetrics.getDefault();
+    	if( image instanceof CvMatData )
+    	{
+    		CvMatData cvmatdata = (CvMatData) image;
+    		if( changeDetector != null && !changeDetector.update(cvmatdata.getBuffer()) )
+    		{
+    			metrics.frameUnchanged();
+    			return;
+    		}
+    		setImage( cvmatdata.getImage() );
+    	}
+    	else
+    	{
+    		QImage img = (QImage) image;
+    		if( changeDetector != null && !changeDetector.update(img) )
+    		{
+    			metrics.frameUnchanged();
+    			return;
+    		}
+    		setImage( img );
+    	}
+    	metrics.frameDisplayed();
+    }
+    
+    private void setImage(QImage img)
+    {
+    	pixmap.convertFromImage( img );
+    	imageLabel.setPixmap( pixmap );
+    }
+    
+    void displayError(IOException error)
+    {
+        if( error instanceof UnknownHostException )
+        {
+            QMessageBox.information(this, tr("ParleVision Client"),
+                                     tr("The host was not found. Please check the " +
+                                        "host name and port settings."));
+        }
+        else if( error instanceof ConnectException )
+        {
+            QMessageBox.information(this, tr("ParleVision Client"),
+                                     tr("The connection was refused by the peer. " +
+                                        "Make sure the ParleVision server is running, " +
+                                        "and check that the host name and port " +
+                                        "settings are correct."));
+        }
+        else
+        {
+            QMessageBox.information(this, tr("ParleVision Client"),
+            		tr("The following error occurred:") + error.getMessage());
+        }
+        
+        connectButton.setText("Connect");
+        connectButton.setEnabled(true);
+    }
+
+    void enableConnectButton()
+    {
+        String hostStr = hostLineEdit.text();
+        String portStr = portLineEdit.text();
+    	    	
+        if( hostStr != null && portStr != null )
+        {
+        	connectButton.setEnabled( !(hostLineEdit.text().length() == 0) && !(portLineEdit.text().length() == 0) );
+        }
+    }
+
+    void sessionOpened()
+    {
+        statusLabel.setText(tr("This examples requires that you run the ParleVision Server as well."));
+        shownStatus = null;
+        enableConnectButton();
+    }
+    
+    /**
+     * Records all frames received from the server to a StreamRecorder 
+     * recording with the given base name.
+     */
+    void startRecording(File base) throws IOException
+    {
+    	stopRecording();
+    	recorder = new StreamRecorder(base);
+    	transport.setRecorder(recorder);
+    }
+    
+    void stopRecording()
+    {
+    	if( recorder == null )
+    		return;
+    	
+    	transport.setRecorder(null);
+    	try
+    	{
+    		recorder.close();
+    	}
+    	catch( IOException e )
+    	{
+    		System.err.println("Failed to close recording: " + e.getMessage());
+    	}
+    	recorder = null;
+    }
+    
+    /**
+     * Publishes the CvMatData arguments of all received frames to a shared
+     * memory ring for other processes on this host.
+     * 
+     * @param name file name under /dev/shm, or a path
+     */
+    void startSharing(String name, int slots) throws IOException
+    {
+    	stopSharing();
+    	ring = new SharedFrameRing(SharedFrameRing.path(name), slots, SharedFrameRing.DEFAULT_SLOT_SIZE);
+    }
+    
+    void stopSharing()
+    {
+    	if( ring == null )
+    		return;
+    	
+    	SharedFrameRing r = ring;
+    	ring = null;
+    	r.close();
+    	if( r.getOversizedCount() > 0 )
+    		System.err.println(r.getOversizedCount() + " matrices did not fit the shared ring");
+    }
+    
+    /**
+     * Saves the images of frames matching the exporter's rule.
+     */
+    void startExport(FrameExporter exporter)
+    {
+    	stopExport();
+    	this.exporter = exporter;
+    	decoder.setExporter(exporter);
+    }
+    
+    void stopExport()
+    {
+    	if( exporter == null )
+    		return;
+    	
+    	decoder.setExporter(null);
+    	exporter.close();
+    	System.out.println(exporter);
+    	exporter = null;
+    }
+    
+    /**
+     * Replays a recording instead of connecting to a server.
+     */
+    void startReplay(File base, boolean paced) throws IOException
+    {
+    	replay = new StreamReplay(base, new FrameParser.Listener() {
+			public void frameReceived(Frame frame) 
+			{
+				SharedFrameRing r = ring;
+				if( r != null )
+					r.publish(frame);
+				// no server to ack to: the ack window is left alone, or 
+				// its acks would pile up with nobody writing them
+				pipeline.submit(frame.claim());
+			}
+		});
+    	replay.setPaced(paced);
+    	
+    	Thread thread = new Thread(replay, "jarlevision-replay");
+    	thread.setDaemon(true);
+    	thread.start();
+    	
+    	connectButton.setEnabled(false);
+    	statusLabel.setText(tr("Replaying ") + base.getPath());
+    	shownStatus = null;
+    }
+
+    public static void main(String[] args) {
+        QApplication.initialize(args);
+        ClientMetrics.getDefault().register();
+        
+        Client client = new Client(null);
+        client.show();
+        
+        // --record <base> records the session, --replay <base> [--fast] replays one,
+        // --stats <seconds> prints throughput and latencies periodically,
+        // --max-fps <n> caps the display refresh rate (0 for no limit),
+        // --skip-unchanged skips uploading images identical to the last one,
+        // --max-size <WxH> and --downscale <n> ask the server for smaller images,
+        // --no-init does not send the PROTO_INIT handshake,
+        // --max-latency <ms> bounds the receive to display latency (0 to not adapt),
+        // --shm <name> [--shm-slots <n>] publishes CvMatData to a ring in /dev/shm,
+        // --process <stage> adds a processing stage, e.g. threshold:128 or crop:0,0,320x240,
+        // --progressive converts images while frames are still arriving,
+        // --fit scales images to the window and decodes them at about that size,
+        // --export <dir> saves images of frames matching --export-rule <rule> (all, every:<n>,
+        // serials:<first>-<last> or status:<regex>) as --export-format <png,jpeg,raw> on 
+        // --export-workers <n> threads, dropping images when they are busy unless --export-block is given
+        client.setSkipUnchanged(Arrays.asList(args).contains("--skip-unchanged"));
+        client.setSendInit(!Arrays.asList(args).contains("--no-init"));
+        client.setProgressive(Arrays.asList(args).contains("--progressive"));
+        client.setFit(Arrays.asList(args).contains("--fit"));
+        int maxWidth = 0, maxHeight = 0, downscale = 1;
+        String shm = null;
+        int shmSlots = SharedFrameRing.DEFAULT_SLOTS;
+        File replayBase = null;
+        File exportDir = null;
+        String exportFormats = "png";
+        String exportRule = "all";
+        int exportWorkers = FrameExporter.defaultWorkerCount();
+        try
+        {
+	        for( int i=0; i+1 < args.length; ++i )
+	        {
+	        	if( args[i].equals("--stats") )
+	        		ClientMetrics.getDefault().startLogging(Integer.parseInt(args[i+1]));
+	        	else if( args[i].equals("--record") )
+	        		client.startRecording(new File(args[i+1]));
+	        	else if( args[i].equals("--max-fps") )
+	        		client.setMaxFps(Integer.parseInt(args[i+1]));
+	        	else if( args[i].equals("--max-size") )
+	        	{
+	        		int x = args[i+1].indexOf('x');
+	        		maxWidth  = Integer.parseInt(args[i+1].substring(0, x));
+	        		maxHeight = Integer.parseInt(args[i+1].substring(x+1));
+	        	}
+	        	else if( args[i].equals("--shm") )
+	        		shm = args[i+1];
+	        	else if( args[i].equals("--shm-slots") )
+	        		shmSlots = Integer.parseInt(args[i+1]);
+	        	else if( args[i].equals("--max-latency") )
+	        		client.setMaxLatency(Long.parseLong(args[i+1]));
+	        	else if( args[i].equals("--downscale") )
+	        		downscale = Integer.parseInt(args[i+1]);
+	        	else if( args[i].equals("--replay") )
+	        		replayBase = new File(args[i+1]);
+	        	else if( args[i].equals("--process") )
+	        		client.addProcessingStage(FrameProcessor.createStage(args[i+1]));
+	        	else if( args[i].equals("--export") )
+	        		exportDir = new File(args[i+1]);
+	        	else if( args[i].equals("--export-format") )
+	        		exportFormats = args[i+1];
+	        	else if( args[i].equals("--export-rule") )
+	        		exportRule = args[i+1];
+	        	else if( args[i].equals("--export-workers") )
+	        		exportWorkers = Integer.parseInt(args[i+1]);
+	        }
+	        client.setMaxSize(maxWidth, maxHeight, downscale);
+	        if( exportDir != null )
+	        	client.startExport(new FrameExporter(exportDir, FrameExporter.parseFormats(exportFormats), 
+	        			FrameExporter.parseRule(exportRule), 
+	        			Arrays.asList(args).contains("--export-block") ? FrameExporter.Policy.BLOCK : FrameExporter.Policy.DROP,
+	        			exportWorkers, FrameExporter.DEFAULT_QUEUE_CAPACITY));
+	        // share before replaying, so the ring gets the first frames too
+	        if( shm != null )
+	        	client.startSharing(shm, shmSlots);
+	        if( replayBase != null )
+	        	client.startReplay(replayBase, !Arrays.asList(args).contains("--fast"));
+        }
+        catch( IOException e )
+        {
+        	System.err.println(e.getMessage());
+        }
+        catch( ReflectiveOperationException e )
+        {
+        	System.err.println("Unknown processing stage: " + e.getMessage());
+        }
+        catch( IllegalArgumentException e )
+        {
+        	System.err.println(e.getMessage());
+        }
+
+        QApplication.exec();
+        
+        client.stopRecording();
+        client.stopSharing();
+        client.stopExport();
+    }
+}
@@ -0,0 +1,287 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and per stage latency histograms of the client. Recording is
+ * cheap enough for every frame: counters are LongAdders and histograms 
+ * are lock free. The stages are
+ * <ul>
+ * <li>receive to parsed: first bytes of a frame read until the complete
+ *     frame is handed out by the parser</li>
+ * <li>parsed to decoded: frame handed out until a worker decoded it, 
+ *     including the time spent in the decode queue</li>
+ * <li>decode: time a worker spent decoding a frame, which includes 
+ *     decompressing QImageWrapper images</li>
+ * <li>decoded to displayed: decoding done until the image was shown</li>
+ * <li>frame to ack: frame handed out until its ack was written</li>
+ * <li>one per processing stage: time a FrameProcessor spent in the stage
+ *     for an image</li>
+ * </ul>
+ * Everything is available through JMX after register(), and optionally as
+ * a periodic log line.
+ */
+public class ClientMetrics implements ClientMetricsMBean {
+	
+	private static final ClientMetrics defaultMetrics = new ClientMetrics();
+	
+	final LatencyHistogram receiveToParsed    = new LatencyHistogram("receiveToParsed");
+	final LatencyHistogram parsedToDecoded    = new LatencyHistogram("parsedToDecoded");
+	final LatencyHistogram decode             = new LatencyHistogram("decode");
+	final LatencyHistogram decodedToDisplayed = new LatencyHistogram("decodedToDisplayed");
+	final LatencyHistogram frameToAck         = new LatencyHistogram("frameToAck");
+	
+	private final LongAdder frames = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder corrupt = new LongAdder();
+	private final LongAdder unsupported = new LongAdder();
+	private final LongAdder displayed = new LongAdder();
+	private final LongAdder unchanged = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final List<LatencyHistogram> stages = new CopyOnWriteArrayList<LatencyHistogram>();
+	private ScheduledExecutorService logger;
+	private boolean registered;
+	
+	/**
+	 * @return the metrics all client components record to
+	 */
+	public static ClientMetrics getDefault() {
+		return defaultMetrics;
+	}
+	
+	LatencyHistogram[] histograms()
+	{
+		LatencyHistogram[] fixed = { receiveToParsed, parsedToDecoded, decode, decodedToDisplayed, frameToAck };
+		Object[] processing = stages.toArray();
+		LatencyHistogram[] all = new LatencyHistogram[fixed.length + processing.length];
+		System.arraycopy(fixed, 0, all, 0, fixed.length);
+		for( int i=0; i < processing.length; ++i )
+			all[fixed.length + i] = (LatencyHistogram) processing[i];
+		return all;
+	}
+	
+	/**
+	 * @return the histogram of the processing stage with the given name, 
+	 * which is created and registered if it did not exist
+	 */
+	LatencyHistogram processingStage(String name) {
+		return stage("process." + name);
+	}
+	
+	/**
+	 * @return the histogram of the encode time of an export format, see 
+	 * FrameExporter
+	 */
+	LatencyHistogram exportFormat(String name) {
+		return stage("export." + name);
+	}
+	
+	private synchronized LatencyHistogram stage(String stage)
+	{
+		for( LatencyHistogram h : stages )
+			if( h.getName().equals(stage) )
+				return h;
+		LatencyHistogram histogram = new LatencyHistogram(stage);
+		stages.add(histogram);
+		if( registered )
+			register(histogram);
+		return histogram;
+	}
+	
+	void frameReceived(int size, long startNanos, long receivedNanos)
+	{
+		frames.increment();
+		bytes.add(size + 4);
+		receiveToParsed.record(receivedNanos - startNanos);
+	}
+	
+	void frameDropped() {
+		dropped.increment();
+	}
+	
+	void corruptStream() {
+		corrupt.increment();
+	}
+	
+	void unsupportedVariant() {
+		unsupported.increment();
+	}
+	
+	void frameDisplayed() {
+		displayed.increment();
+	}
+	
+	/**
+	 * Counts a frame whose upload was skipped because its image did not 
+	 * change.
+	 */
+	void frameUnchanged() {
+		unchanged.increment();
+	}
+	
+	/**
+	 * Counts a frame which was acked without decoding it because the 
+	 * client could not keep up.
+	 */
+	void frameSkipped() {
+		skipped.increment();
+	}
+	
+	public long getFrames() {
+		return frames.sum();
+	}
+	
+	public long getBytes() {
+		return bytes.sum();
+	}
+	
+	public long getDroppedFrames() {
+		return dropped.sum();
+	}
+	
+	public long getCorruptStreams() {
+		return corrupt.sum();
+	}
+	
+	public long getUnsupportedVariants() {
+		return unsupported.sum();
+	}
+	
+	public long getDisplayedFrames() {
+		return displayed.sum();
+	}
+	
+	public long getUnchangedFrames() {
+		return unchanged.sum();
+	}
+	
+	public long getSkippedFrames() {
+		return skipped.sum();
+	}
+	
+	/**
+	 * Registers the counters, the latency histograms and the default 
+	 * NativeBufferPool with the platform MBean server, under the 
+	 * jarlevision domain.
+	 */
+	public synchronized void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName("jarlevision:type=ClientMetrics"));
+			LatencyHistogram[] histograms = histograms();
+			for( int i=0; i < histograms.length; ++i )
+				server.registerMBean(histograms[i], 
+						new ObjectName("jarlevision:type=Latency,stage=" + histograms[i].getName()));
+			server.registerMBean(NativeBufferPool.getDefault(), new ObjectName("jarlevision:type=NativeBufferPool"));
+			registered = true;
+		}
+		catch( JMException e )
+		{
+			System.err.println("Failed to register metrics with JMX: " + e.getMessage());
+		}
+	}
+	
+	private void register(LatencyHistogram histogram)
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(histogram, 
+					new ObjectName("jarlevision:type=Latency,stage=" + histogram.getName()));
+		}
+		catch( JMException e )
+		{
+			System.err.println("Failed to register metrics with JMX: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Prints a line with throughput, drops and stage latencies over the 
+	 * last period every period seconds.
+	 */
+	public synchronized void startLogging(final int periodSeconds)
+	{
+		if( logger != null )
+			return;
+		
+		logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "jarlevision-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		logger.scheduleAtFixedRate(new Runnable() {
+			long lastFrames, lastBytes, lastDropped, lastDisplayed, lastUnchanged, lastSkipped;
+			
+			public void run()
+			{
+				long f = getFrames(), b = getBytes(), d = getDroppedFrames();
+				long s = getDisplayedFrames(), u = getUnchangedFrames(), k = getSkippedFrames();
+				StringBuilder line = new StringBuilder();
+				line.append(String.format("%.1f frames/s %.1f MB/s %d dropped %d skipped %.1f displayed/s %d unchanged", 
+						(f - lastFrames) / (double) periodSeconds, 
+						(b - lastBytes) / 1048576.0 / periodSeconds, d - lastDropped, k - lastSkipped,
+						(s - lastDisplayed) / (double) periodSeconds, u - lastUnchanged));
+				lastFrames = f;
+				lastBytes = b;
+				lastDropped = d;
+				lastDisplayed = s;
+				lastUnchanged = u;
+				lastSkipped = k;
+				
+				LatencyHistogram[] histograms = histograms();
+				for( int i=0; i < histograms.length; ++i )
+				{
+					long[] counts = histograms[i].snapshot();
+					line.append(String.format(" | %s p50 %.2f p99 %.2f ms", histograms[i].getName(),
+							LatencyHistogram.percentile(counts, 0.5) / 1e6, 
+							LatencyHistogram.percentile(counts, 0.99) / 1e6));
+				}
+				System.out.println(line);
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+	
+	public synchronized void stopLogging()
+	{
+		if( logger != null )
+			logger.shutdown();
+		logger = null;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * Cuts a region of interest out of every image. The region is clipped to
+ * the image; images which lie entirely inside it are passed on as they 
+ * are. The region is copied row by row into a buffer from the pool, which
+ * replaces the image.
+ */
+public class CropStage implements ProcessingStage {
+	
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	
+	public CropStage(int x, int y, int width, int height)
+	{
+		if( x < 0 || y < 0 || width < 1 || height < 1 )
+			throw new IllegalArgumentException("Invalid crop region " + width + "x" + height + " at " + x + "," + y);
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+	
+	public String getName() {
+		return "crop";
+	}
+	
+	public Object createState() {
+		return null;
+	}
+	
+	public NativeBuffer begin(Object state, NativeBuffer source, NativeBufferPool pool)
+	{
+		int w = Math.min(width, source.width - x);
+		int h = Math.min(height, source.height - y);
+		if( w <= 0 || h <= 0 || (w == source.width && h == source.height) )
+			return source;
+		return pool.acquire(w, h, source.format);
+	}
+	
+	public void process(Object state, int band, NativeBuffer source, NativeBuffer target, int fromRow, int toRow)
+	{
+		int bpp = NativeBuffer.bytesPerPixel(source.format);
+		long from = source.address() + (long) (y + fromRow) * source.bytesPerLine + (long) x * bpp;
+		long to = target.address() + (long) fromRow * target.bytesPerLine;
+		for( int row=fromRow; row < toRow; ++row )
+		{
+			NativeMemory.copy(from, to, (long) target.width * bpp);
+			from += source.bytesPerLine;
+			to += target.bytesPerLine;
+		}
+	}
+	
+	public void end(Object state, int serial, NativeBuffer target, int bands) {
+	}
+}
@@ -0,0 +1,468 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.lang.ref.Cleaner;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.trolltech.qt.core.QDataStream;
+import com.trolltech.qt.gui.QImage;
+import com.trolltech.qt.gui.QImage.Format;
+
+/**
+ * This class maps the plv::CvMatData wrapper around cv::Mat
+ * to a QImage. It can load CvMatData from a QDataStream or straight from
+ * a buffer holding the received message.
+ * 8-bit images with 1, 3 or 4 channels are converted directly, single 
+ * channel 16-bit and floating point images are rendered by the default 
+ * DepthRenderer. 8-bit images much larger than they are displayed can be
+ * shrunk while they are converted, see readFrom(ByteBuffer, int, int).
+ * Because Qt is native code, the data lives in native memory space.
+ * The memory is borrowed from a NativeBufferPool and returned to it when 
+ * the last reference is released. A Cleaner returns it should a caller
+ * forget to call free(). A CvMatData can be reused for new data after
+ * free(), which the FrameDecoder does to decode without allocating.
+ *
+ * @author Richard Loos
+ *
+ */
+public class CvMatData {
+	private static final Cleaner cleaner = Cleaner.create();
+	
+	/**
+	 * Cleaning action holding the buffer reference of a CvMatData. It must
+	 * not refer to the CvMatData itself, otherwise it is never collected.
+	 * It is registered once and follows the CvMatData through reuse.
+	 */
+	private static class Reference implements Runnable {
+		private NativeBuffer buffer;
+		
+		void attach(NativeBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		void free()
+		{
+			NativeBuffer b = buffer;
+			buffer = null;
+			b.release();
+		}
+		
+		public void run()
+		{
+			if( buffer != null )
+			{
+				System.err.println("Warning: CvMatData not freed explicitly, returning buffer to pool.");
+				free();
+			}
+		}
+	}
+	
+	/**
+	 * The plv::CvMatData user type, see RawMatrix.
+	 */
+	public static final VariantDecoder.UserType USER_TYPE = RawMatrix.USER_TYPE;
+	
+	/**
+	 * Shrinks one image in bands of target rows, see RowBands. Every 
+	 * decode thread reuses its own, with the scratch arrays of every band,
+	 * which the pool threads running the bands cannot keep themselves.
+	 */
+	private static class Reduction implements RowBands.Task {
+		ByteBuffer source;
+		int offset;
+		int width;
+		int channels;
+		int factor;
+		NativeBuffer target;
+		int[][] sums = new int[0][];
+		long[][] lanes = new long[0][];
+		byte[][] lines = new byte[0][];
+		
+		/**
+		 * Makes sure there is scratch for the given bands and row length.
+		 */
+		void prepare(int bands, int rowBytes)
+		{
+			if( sums.length < bands )
+			{
+				sums  = new int[bands][];
+				lanes = new long[bands][];
+				lines = new byte[bands][];
+			}
+			for( int b=0; b < bands; ++b )
+			{
+				if( sums[b] == null || sums[b].length < rowBytes )
+				{
+					sums[b]  = new int[rowBytes];
+					lanes[b] = new long[rowBytes / 4];
+					lines[b] = new byte[rowBytes];
+				}
+			}
+		}
+		
+		public void run(int band, int fromRow, int toRow) {
+			PixelKernels.box(source, offset, width, channels, factor, target.address(), target.width, 
+					fromRow, toRow, sums[band], lanes[band], lines[band]);
+		}
+	}
+	
+	private static final ThreadLocal<Reduction> reductions = new ThreadLocal<Reduction>() {
+		@Override
+		protected Reduction initialValue() {
+			return new Reduction();
+		}
+	};
+	
+	final NativeBufferPool pool;
+	NativeBuffer nativeBuffer;
+	QImage image;
+	Cleaner.Cleanable cleanable;
+	Reference reference;
+	
+	final static int CV_CN_MAX   = 64;
+	final static int CV_CN_SHIFT = 3;
+	
+	final static int CV_8U 		 = 0;
+	final static int CV_8S 		 = 1;
+	final static int CV_16U 	 = 2;
+	final static int CV_16S 	 = 3;
+	final static int CV_32S 	 = 4;
+	final static int CV_32F  	 = 5;
+	final static int CV_64F  	 = 6;
+	final static int CV_USRTYPE1 = 7;
+
+	final static int CV_DEPTH_MAX 		= (1 << CV_CN_SHIFT);
+	final static int CV_MAT_DEPTH_MASK 	= (CV_DEPTH_MAX - 1);
+	final static int CV_MAT_CN_MASK   	= (CV_CN_MAX - 1) << CV_CN_SHIFT;
+	final static int CV_MAT_TYPE_MASK 	= CV_DEPTH_MAX*CV_CN_MAX - 1;
+	
+	final static int CV_MAT_DEPTH(int flags) {
+		return (flags) & CV_MAT_DEPTH_MASK; 
+	}
+
+	final static int CV_MAKE_TYPE(int depth, int cn) {
+		return CV_MAT_DEPTH(depth) + ((cn -1) << CV_CN_SHIFT);
+	}
+	
+	final static int CV_MAT_CN(int flags) {
+		return (((flags) & CV_MAT_CN_MASK) >> CV_CN_SHIFT) + 1;
+	}
+			
+	final static int CV_MAT_TYPE(int flags) {
+		return (flags) & CV_MAT_TYPE_MASK;
+	}
+	
+	public CvMatData()
+	{
+		this(NativeBufferPool.getDefault());
+	}
+	
+	public CvMatData(NativeBufferPool pool)
+	{
+		this.pool = pool;
+		image = null;
+		nativeBuffer = null;
+	}
+	
+	/**
+	 * Releases this reference to the image data. The image returned by 
+	 * getImage() must not be used afterwards.
+	 */
+	public void free()
+	{
+		assert( image != null );
+		assert( nativeBuffer != null );
+		
+		// releases the buffer back into the pool
+		reference.free();
+		
+		image = null;
+		nativeBuffer = null;
+	}
+	
+	/**
+	 * Creates a second CvMatData sharing the same image data. Both have to
+	 * be freed; the buffer goes back to the pool after the last free().
+	 */
+	public CvMatData share()
+	{
+		CvMatData copy = new CvMatData(pool);
+		copy.attach(nativeBuffer.retain());
+		return copy;
+	}
+	
+	/**
+	 * Replaces the image data with a buffer holding a processed version of
+	 * it, see FrameProcessor. This takes over the buffer's reference and 
+	 * releases the reference to the old data.
+	 */
+	void replaceBuffer(NativeBuffer buffer)
+	{
+		free();
+		attach(buffer);
+	}
+	
+	/**
+	 * Takes over a reference to a buffer holding converted image data, 
+	 * see ProgressiveDecoder.
+	 */
+	void attach(NativeBuffer buffer)
+	{
+		if( reference == null )
+		{
+			reference = new Reference();
+			cleanable = cleaner.register(this, reference);
+		}
+		this.nativeBuffer = buffer;
+		this.image = buffer.getImage();
+		reference.attach(buffer);
+	}
+	
+	public boolean isValid() {
+		return image != null;
+	}
+	
+	public QImage getImage() {
+		return image;
+	}
+	
+	public NativeBuffer getBuffer() {
+		return nativeBuffer;
+	}
+	
+	final static String depthToString(int depth)
+	{
+		switch(depth)
+		{
+		case CV_8U:
+			return new String("CV_8U");
+		case CV_8S:
+			return new String("CV_8S");
+		case CV_16U:
+			return new String("CV_16U");
+		case CV_16S:
+			return new String("CV_16S");
+		case CV_32S:
+			return new String("CV_32S");
+		case CV_32F:
+			return new String("CV_32F");
+		case CV_64F:
+			return new String("CV_64F");
+		case CV_USRTYPE1:
+			return new String("CV_USRTYPE1");
+		default:
+			return new String("Invalid");
+		}
+	}
+	
+	public boolean readFrom(QDataStream s) 
+	{
+		int type   = s.readInt();
+	    int height = s.readInt();
+	    int width  = s.readInt();
+	    int length = s.readInt();
+	    if( length < 0 )
+	    	return false;
+	    
+	    // copy the input stream into a java buffer 
+	    // in one go because this is faster
+	    // than reading it byte for byte into
+	    // a native buffer
+	    byte[] buffer = new byte[length];
+	    s.readBytes(buffer, length);
+	    
+	    return convert(ByteBuffer.wrap(buffer), 0, type, width, height, length);
+	}
+	
+	/**
+	 * Reads the matrix at the position of a big endian buffer and advances 
+	 * the position past it. The pixels are converted straight from the 
+	 * buffer into the native image, without an intermediate copy.
+	 * 
+	 * @throws BufferUnderflowException if the buffer ends within the matrix
+	 */
+	public boolean readFrom(ByteBuffer in)
+	{
+		return readFrom(in, 0, 0);
+	}
+	
+	/**
+	 * Reads the matrix like readFrom(ByteBuffer), shrinking 8-bit images 
+	 * which are at least twice as large as the display by the largest 
+	 * integer factor which still covers it. Each block of factor x factor
+	 * pixels is averaged straight from the buffer into the smaller image, 
+	 * in bands of rows in parallel for large images, so the pixels which 
+	 * would never reach the screen are not converted. Images of other 
+	 * depths are converted at full size.
+	 * 
+	 * @param displayWidth width the image is displayed at, 0 for full size
+	 * @param displayHeight height the image is displayed at
+	 * @throws BufferUnderflowException if the buffer ends within the matrix
+	 */
+	public boolean readFrom(ByteBuffer in, int displayWidth, int displayHeight)
+	{
+		int type   = in.getInt();
+		int height = in.getInt();
+		int width  = in.getInt();
+		int length = in.getInt();
+		
+		if( length < 0 || length > in.remaining() )
+			throw new BufferUnderflowException();
+		
+		int offset = in.position();
+		in.position(offset + length);
+		int factor = reduction(width, height, displayWidth, displayHeight);
+		if( factor > 1 && reduce(in, offset, type, width, height, length, factor) )
+			return true;
+		return convert(in, offset, type, width, height, length);
+	}
+	
+	/**
+	 * @return the largest integer factor an image can be shrunk by and 
+	 * still cover the display size, 1 if no display size is given
+	 */
+	static int reduction(int width, int height, int displayWidth, int displayHeight)
+	{
+		if( displayWidth <= 0 || displayHeight <= 0 )
+			return 1;
+		int factor = Math.min(width / displayWidth, height / displayHeight);
+		return Math.max(1, Math.min(factor, PixelKernels.MAX_BOX_FACTOR));
+	}
+	
+	/**
+	 * Checks the header of an 8-bit matrix from the wire, for all paths 
+	 * which convert one: readFrom() at full or reduced size and the 
+	 * ProgressiveDecoder. Sizes are computed in long, so a malformed header
+	 * cannot overflow into a small size which passes the check.
+	 * 
+	 * @return the format of the image the matrix is converted to, or null 
+	 * if it is not an 8-bit matrix with 1, 3 or 4 channels, has no pixels, 
+	 * is too large or its length does not match its size
+	 */
+	static Format imageFormat(int type, int width, int height, int length)
+	{
+		if( width <= 0 || height <= 0 || length < 0 || CV_MAT_DEPTH(type) != CV_8U )
+			return null;
+		long pixels = (long) width * height;
+		// images take up to 4 bytes per pixel
+		if( pixels > Integer.MAX_VALUE / 4 )
+			return null;
+		switch( CV_MAT_CN(type) )
+		{
+		case 1:
+			return length >= pixels ? Format.Format_Indexed8 : null;
+		case 3:
+			return length == pixels * 3 ? Format.Format_RGB32 : null;
+		case 4:
+			return length == pixels * 4 ? Format.Format_ARGB32 : null;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Converts an 8-bit image into a target shrunk by factor.
+	 * 
+	 * @return false if this is not an 8-bit image imageFormat() accepts
+	 */
+	private boolean reduce(ByteBuffer buffer, int offset, int type, int width, int height, int length, int factor)
+	{
+		Format format = imageFormat(type, width, height, length);
+		if( format == null )
+			return false;
+		
+		int channels = CV_MAT_CN(type);
+		NativeBuffer target = pool.acquire(width / factor, height / factor, format);
+		int bands = Math.min(RowBands.bandCount(width, height), target.height);
+		Reduction task = reductions.get();
+		task.prepare(bands, width * channels);
+		task.source   = buffer;
+		task.offset   = offset;
+		task.width    = width;
+		task.channels = channels;
+		task.factor   = factor;
+		task.target   = target;
+		try
+		{
+			// the work grows with the source pixels read, not the target
+			RowBands.run(target.height, bands, task);
+		}
+		catch( RuntimeException e )
+		{
+			target.release();
+			throw e;
+		}
+		finally
+		{
+			task.source = null;
+			task.target = null;
+		}
+		attach(target);
+		return true;
+	}
+	
+	private boolean convert(ByteBuffer buffer, int offset, int type, int width, int height, int length)
+	{
+	    int channels = CV_MAT_CN(type);
+	    int depth    = CV_MAT_DEPTH(type);
+	    
+	    Format format = imageFormat(type, width, height, length);
+	    if( format != null )
+	    {
+	    	int pixels = width * height;
+	    	NativeBuffer target = pool.acquire(width, height, format);
+	    	if( channels == 1 )
+	    	{
+	    		// copy the buffer into the native buffer in one go
+	    		PixelKernels.gray8(buffer, offset, target.address(), pixels);
+	    	}
+	    	else if( channels == 3 )
+	    		PixelKernels.bgrToArgb32(buffer, offset, target.address(), pixels);
+	    	else
+	    		PixelKernels.bgraToArgb32(buffer, offset, target.address(), pixels);
+	    	attach(target);
+	    }
+	    else if( DepthRenderer.supports(depth, channels) && width > 0 && height > 0 
+	    		&& (long) width * height <= Integer.MAX_VALUE / 4 )
+	    {
+	    	if( length == (long) width * height * DepthRenderer.elementSize(depth) )
+	    	{
+	    		NativeBuffer target = pool.acquire(width, height, Format.Format_RGB32);
+	    		DepthRenderer.getDefault().render(buffer, offset, depth, width, height, target.address());
+	    		attach(target);
+	    	}
+	    }
+	    
+	    if( image == null )
+	    {
+	    	System.out.println("Failed to parse CvMatData with properties (" + depthToString(depth) + " " + width + "x" + height + "x" + channels 
+		    		+ " " + length + " bytes )" );
+	    	return false;
+	    }
+	    
+	    //System.out.println("Parsed CvMatData (" + depthToString(depth) + " " + cols + "x" + rows + "x" + channels 
+		//		+ " " + length + " bytes )" );
+	    return true;
+	}
+}
@@ -0,0 +1,431 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Staged frame pipeline: the network thread submits received messages, a 
+ * pool of decode workers turns them into DecodedFrames and the display 
+ * takes the newest decoded frame whenever it is ready for one.
+ *
+ * The stages are connected by bounded hand-offs. When the decode queue is
+ * full the oldest waiting message is dropped, so the network thread never
+ * blocks. The display stage holds a single frame: a newer frame replaces 
+ * one which was not displayed yet and frames older than the one shown are
+ * discarded. Every message, dropped or not, is reported to the AckWindow
+ * once the pipeline is done with it, which frees its credit.
+ *
+ * Workers finish frames in any order, for instance when a frame of small
+ * compressed images overtakes a large one. A reorder stage holds finished
+ * frames back until all frames submitted before them are finished or 
+ * dropped, so frames are published in the order they were received.
+ *
+ * With a BackpressureController the pipeline skips decoding frames the
+ * controller does not admit. They are released and acked right away.
+ *
+ * A pipeline either runs its own decode threads or borrows an Executor 
+ * shared with other pipelines, see MultiSourceClient. In the latter case 
+ * every submitted message schedules one decode task on the executor.
+ *
+ * Idle decode threads park instead of waiting on the queue's condition, 
+ * which would allocate a wait node every time a worker runs dry.
+ */
+public class DecodePipeline {
+	
+	private final FrameDecoder decoder;
+	private final AckWindow ackWindow;
+	private final Runnable displayNotifier;
+	private final ArrayBlockingQueue<Frame> queue;
+	private final AtomicReference<DecodedFrame> latest;
+	private final AtomicLong dropped;
+	private final ClientMetrics metrics;
+	private final Thread[] workers;
+	// 1 for each worker which is about to park or parked
+	private final AtomicIntegerArray parked;
+	private final Executor executor;
+	private final Runnable decodeTask;
+	private volatile int displayedSerial;
+	private volatile boolean displayedAny;
+	private volatile BackpressureController controller;
+	
+	// reorder stage, guarded by reorderLock
+	private static final DecodedFrame SKIPPED = new DecodedFrame();
+	private final Object reorderLock = new Object();
+	private final AtomicLong submitted;
+	private final DecodedFrame[] finished;
+	private long nextSequence;
+	
+	/**
+	 * @param decoder the decoder shared by all workers
+	 * @param ackWindow flow control window the consumed frames are reported to
+	 * @param displayNotifier called from a worker thread when a frame 
+	 * becomes available in an empty display slot. It should schedule a 
+	 * call to takeLatest() on the display thread.
+	 * @param workerCount number of decode threads
+	 * @param queueCapacity maximum number of messages waiting for a worker
+	 */
+	public DecodePipeline(FrameDecoder decoder, AckWindow ackWindow, Runnable displayNotifier, 
+			int workerCount, int queueCapacity)
+	{
+		this.decoder = decoder;
+		this.ackWindow = ackWindow;
+		this.displayNotifier = displayNotifier;
+		this.queue = new ArrayBlockingQueue<Frame>(queueCapacity);
+		this.latest = new AtomicReference<DecodedFrame>();
+		this.dropped = new AtomicLong();
+		this.metrics = ClientMetrics.getDefault();
+		this.workers = new Thread[workerCount];
+		this.parked = new AtomicIntegerArray(workerCount);
+		this.executor = null;
+		this.decodeTask = null;
+		this.submitted = new AtomicLong();
+		this.finished = new DecodedFrame[reorderCapacity(queueCapacity + workerCount)];
+		
+		for( int i=0; i < workerCount; ++i )
+		{
+			final int index = i;
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work(index);
+				}
+			}, "jarlevision-decode-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+	
+	/**
+	 * Creates a pipeline which decodes on a shared executor.
+	 * 
+	 * @param executor runs the decode tasks, typically shared by the 
+	 * pipelines of several sources
+	 */
+	public DecodePipeline(FrameDecoder decoder, AckWindow ackWindow, Runnable displayNotifier, 
+			Executor executor, int queueCapacity)
+	{
+		this.decoder = decoder;
+		this.ackWindow = ackWindow;
+		this.displayNotifier = displayNotifier;
+		this.queue = new ArrayBlockingQueue<Frame>(queueCapacity);
+		this.latest = new AtomicReference<DecodedFrame>();
+		this.dropped = new AtomicLong();
+		this.metrics = ClientMetrics.getDefault();
+		this.workers = new Thread[0];
+		this.parked = new AtomicIntegerArray(0);
+		this.executor = executor;
+		this.submitted = new AtomicLong();
+		this.finished = new DecodedFrame[reorderCapacity(queueCapacity + 2 * Runtime.getRuntime().availableProcessors())];
+		this.decodeTask = new Runnable() {
+			public void run() {
+				Frame job = queue.poll();
+				if( job != null )
+					decode(job);
+			}
+		};
+	}
+	
+	/**
+	 * Sets the controller deciding which frames to decode, or null to 
+	 * decode all of them.
+	 */
+	public void setController(BackpressureController controller) {
+		this.controller = controller;
+	}
+	
+	/**
+	 * @return a power of two of at least the number of frames in flight
+	 */
+	private static int reorderCapacity(int inFlight)
+	{
+		return Integer.highestOneBit(Math.max(1, inFlight) * 2 - 1) << 1;
+	}
+	
+	/**
+	 * @return a sensible number of decode workers for this host, leaving
+	 * one core for the network and GUI threads
+	 */
+	public static int defaultWorkerCount()
+	{
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+	
+	/**
+	 * Queues a frame for decoding. Called by the network thread with a 
+	 * claimed frame, which the pipeline releases once it is decoded or 
+	 * dropped.
+	 */
+	public void submit(Frame frame)
+	{
+		frame.sequence = submitted.getAndIncrement();
+		BackpressureController c = controller;
+		if( c != null && !c.admit(frame.receivedNanos, !queue.isEmpty()) )
+		{
+			long sequence = frame.sequence;
+			frame.release();
+			metrics.frameSkipped();
+			ackWindow.consumed();
+			finish(sequence, null);
+			return;
+		}
+		while( !queue.offer(frame) )
+		{
+			Frame stale = queue.poll();
+			if( stale != null )
+			{
+				long sequence = stale.sequence;
+				stale.release();
+				dropped.incrementAndGet();
+				metrics.frameDropped();
+				ackWindow.consumed();
+				finish(sequence, null);
+			}
+		}
+		if( executor != null )
+			executor.execute(decodeTask);
+		else
+			wakeWorker();
+	}
+	
+	/**
+	 * Unparks one parked worker, if any.
+	 */
+	private void wakeWorker()
+	{
+		for( int i=0; i < workers.length; ++i )
+		{
+			if( parked.get(i) == 1 && parked.compareAndSet(i, 1, 0) )
+			{
+				LockSupport.unpark(workers[i]);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Takes the newest decoded frame out of the display slot. The caller
+	 * has to dispose() the frame after displaying it.
+	 * 
+	 * @return the frame or null if no new frame is available
+	 */
+	public DecodedFrame takeLatest()
+	{
+		DecodedFrame frame = latest.getAndSet(null);
+		if( frame != null )
+		{
+			displayedSerial = frame.serial;
+			displayedAny = true;
+		}
+		return frame;
+	}
+	
+	/**
+	 * Drops all queued messages and the frame waiting for display, e.g. 
+	 * after the connection was closed.
+	 */
+	public void clear()
+	{
+		Frame stale;
+		while( (stale = queue.poll()) != null )
+			stale.release();
+		synchronized( reorderLock )
+		{
+			for( int i=0; i < finished.length; ++i )
+			{
+				if( finished[i] != null && finished[i] != SKIPPED )
+					finished[i].dispose();
+				finished[i] = null;
+			}
+			// frames still being decoded are dropped when they finish
+			nextSequence = submitted.get();
+		}
+		DecodedFrame frame = latest.getAndSet(null);
+		if( frame != null )
+			frame.dispose();
+		displayedAny = false;
+	}
+	
+	/**
+	 * @return number of frames dropped before they were displayed
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * @return the pipeline's own decode threads, none if it decodes on a
+	 * shared executor
+	 */
+	Thread[] getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * @return number of messages waiting for a decode worker
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+	
+	private void work(int index)
+	{
+		while( !Thread.currentThread().isInterrupted() )
+		{
+			Frame job = queue.poll();
+			if( job == null )
+			{
+				// announce the park before polling again, so a submit 
+				// either sees the flag or its frame is found here
+				parked.set(index, 1);
+				job = queue.poll();
+				if( job == null )
+				{
+					LockSupport.park(this);
+					parked.set(index, 0);
+					continue;
+				}
+				parked.set(index, 0);
+			}
+			decode(job);
+		}
+	}
+	
+	private void decode(Frame job)
+	{
+		// once released the parser may reuse the job for the next frame
+		long sequence = job.sequence;
+		long receivedNanos = job.receivedNanos;
+		int serial = job.serial;
+		DecodedFrame frame;
+		try
+		{
+			frame = decoder.decode(job);
+		}
+		catch( RuntimeException e )
+		{
+			System.err.println("Failed to decode frame " + serial + ": " + e);
+			ackWindow.consumed();
+			finish(sequence, null);
+			return;
+		}
+		finally
+		{
+			// the pixels are in the native images now
+			job.release();
+		}
+		
+		ackWindow.consumed();
+		frame.receivedNanos = receivedNanos;
+		frame.decodedNanos = System.nanoTime();
+		metrics.parsedToDecoded.record(frame.decodedNanos - receivedNanos);
+		metrics.decode.record(frame.decodeNanos);
+		BackpressureController c = controller;
+		if( c != null )
+			c.decoded(frame.decodeNanos);
+		finish(sequence, frame);
+	}
+	
+	/**
+	 * Hands a finished frame, or null for a dropped one, to the reorder 
+	 * stage and publishes all frames which are next in line.
+	 */
+	private void finish(long sequence, DecodedFrame frame)
+	{
+		synchronized( reorderLock )
+		{
+			if( sequence < nextSequence )
+			{
+				// cleared, or given up on because it took too long
+				if( frame != null )
+					drop(frame);
+				return;
+			}
+			
+			int mask = finished.length - 1;
+			while( sequence - nextSequence >= finished.length )
+			{
+				// should not happen as long as the ring covers all frames in 
+				// flight; skip the oldest missing frames to make room
+				DecodedFrame oldest = finished[(int) (nextSequence & mask)];
+				finished[(int) (nextSequence & mask)] = null;
+				++nextSequence;
+				if( oldest != null && oldest != SKIPPED )
+					publish(oldest);
+			}
+			
+			finished[(int) (sequence & mask)] = frame != null ? frame : SKIPPED;
+			
+			DecodedFrame next;
+			while( (next = finished[(int) (nextSequence & mask)]) != null )
+			{
+				finished[(int) (nextSequence & mask)] = null;
+				++nextSequence;
+				if( next != SKIPPED )
+					publish(next);
+			}
+		}
+	}
+	
+	/**
+	 * Puts a decoded frame in the display slot unless a newer frame is 
+	 * already there or has been displayed. Serials are compared with 
+	 * wrap around in mind.
+	 */
+	private void publish(DecodedFrame frame)
+	{
+		if( displayedAny && frame.serial - displayedSerial <= 0 && !frame.corrupt )
+		{
+			drop(frame);
+			return;
+		}
+		
+		while( true )
+		{
+			DecodedFrame current = latest.get();
+			if( current != null && current.serial - frame.serial > 0 && !frame.corrupt )
+			{
+				drop(frame);
+				return;
+			}
+			if( latest.compareAndSet(current, frame) )
+			{
+				if( current != null )
+					drop(current);
+				else
+					displayNotifier.run();
+				return;
+			}
+		}
+	}
+	
+	private void drop(DecodedFrame frame)
+	{
+		dropped.incrementAndGet();
+		metrics.frameDropped();
+		frame.dispose();
+	}
+}
@@ -0,0 +1,127 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of decoding one message: the header and the arguments which
+ * can be displayed, in the order they were received. These are QImage, 
+ * CvMatData and String objects. A DecodedFrame owns its CvMatData 
+ * arguments and frees them in dispose(). Disposed frames go back to the 
+ * FrameDecoder which made them and are reused, together with their 
+ * CvMatData objects, so a frame must not be touched after dispose().
+ */
+public class DecodedFrame {
+	int type;
+	int serial;
+	int numargs;
+	int size;
+	boolean corrupt;
+	long receivedNanos;
+	long decodedNanos;
+	long decodeNanos;
+	final List<Object> arguments = new ArrayList<Object>();
+	// CvMatData objects freed by dispose(), for the next decode
+	final List<CvMatData> spareMatrices = new ArrayList<CvMatData>();
+	FrameDecoder decoder;
+	boolean disposed;
+	
+	public int getType() {
+		return type;
+	}
+	
+	public int getSerial() {
+		return serial;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return System.nanoTime() when the message was received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+	
+	/**
+	 * @return System.nanoTime() when decoding finished
+	 */
+	public long getDecodedNanos() {
+		return decodedNanos;
+	}
+	
+	/**
+	 * @return time spent decoding this frame in nanoseconds, excluding 
+	 * the time it waited for a decoder
+	 */
+	public long getDecodeNanos() {
+		return decodeNanos;
+	}
+	
+	/**
+	 * @return true if the data stream was corrupt. Arguments decoded before 
+	 * the corrupt one are kept.
+	 */
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+	
+	public List<Object> getArguments() {
+		return arguments;
+	}
+	
+	/**
+	 * @return a freed CvMatData of this frame, or a new one
+	 */
+	CvMatData takeMatrix()
+	{
+		int n = spareMatrices.size();
+		return n > 0 ? spareMatrices.remove(n - 1) : new CvMatData();
+	}
+	
+	/**
+	 * Frees all native image data held by this frame and hands the frame 
+	 * back to its decoder.
+	 */
+	public void dispose()
+	{
+		if( disposed )
+			return;
+		disposed = true;
+		for( int i=0; i < arguments.size(); ++i )
+		{
+			Object object = arguments.get(i);
+			if( object instanceof CvMatData )
+			{
+				((CvMatData) object).free();
+				spareMatrices.add((CvMatData) object);
+			}
+		}
+		arguments.clear();
+		if( decoder != null )
+			decoder.recycle(this);
+	}
+}
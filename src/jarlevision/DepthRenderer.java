@@ -0,0 +1,393 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Renders single channel CV_16U, CV_16S, CV_32F and CV_64F matrices, such 
+ * as depth maps and filter responses, to ARGB32 so they can be displayed.
+ *
+ * Values are normalised to 256 levels, either over the minimum and maximum
+ * of the frame, found in a single pass, or over a fixed range. The levels 
+ * are shown as gray or through a false colour palette. The 16-bit types go
+ * through a 64K entry lookup table mapping every possible value straight 
+ * to a colour. Large frames are processed in parallel row bands.
+ *
+ * Rendering allocates nothing once warmed up: every calling thread keeps
+ * its range, row and lookup table scratch. The table is only rebuilt when
+ * the type or palette changes, or the range moved by more than half a 
+ * level since it was built, so an automatic range which jitters slightly
+ * from frame to frame does not rebuild it every frame.
+ *
+ * Matrix data is expected in little endian order, the byte order of the 
+ * hosts OpenCV runs on. It is read in place from a buffer, which may be a 
+ * slice of the receive buffer.
+ */
+public class DepthRenderer {
+	
+	private static final VarHandle SHORT  = 
+		MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle FLOAT  = 
+		MethodHandles.byteBufferViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle DOUBLE = 
+		MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	/** Levels the range may move before the lookup table is rebuilt */
+	final static double LUT_TOLERANCE = 0.5;
+	
+	private static final DepthRenderer defaultRenderer = new DepthRenderer();
+	
+	/**
+	 * The scratch of one rendering thread and the frame it renders. The 
+	 * bands run on pool threads, which do not keep thread locals, so they
+	 * use the arrays of the calling thread, one row per band.
+	 */
+	private static class Rendering {
+		final double[] mins = new double[RowBands.maxBands()];
+		final double[] maxs = new double[RowBands.maxBands()];
+		final int[][] rows = new int[RowBands.maxBands()][];
+		
+		// lookup table for the 16-bit types and the mapping it was built for
+		final int[] lut = new int[65536];
+		int lutDepth = -1;
+		double lutMin;
+		double lutMax;
+		int[] lutPalette;
+		
+		ByteBuffer src;
+		int srcOffset;
+		int depth;
+		int width;
+		long dst;
+		double lo;
+		double scale;
+		int[] palette;
+		int[] table;
+		
+		final RowBands.Task range = new RowBands.Task() {
+			public void run(int band, int fromRow, int toRow) {
+				minMax(src, srcOffset, depth, fromRow * width, toRow * width, mins, maxs, band);
+			}
+		};
+		
+		final RowBands.Task map = new RowBands.Task() {
+			public void run(int band, int fromRow, int toRow)
+			{
+				int[] row = rows[band];
+				for( int y=fromRow; y < toRow; ++y )
+				{
+					int offset = y * width;
+					if( table != null )
+						mapShorts(src, srcOffset, depth, offset, row, width, table);
+					else
+						mapFloats(src, srcOffset, depth, offset, row, width, lo, scale, palette);
+					NativeMemory.copy(row, 0, dst + 4L * offset, width);
+				}
+			}
+		};
+	}
+	
+	private static final ThreadLocal<Rendering> renderings = new ThreadLocal<Rendering>() {
+		@Override
+		protected Rendering initialValue() {
+			return new Rendering();
+		}
+	};
+	
+	private volatile boolean autoRange;
+	private volatile double rangeMin;
+	private volatile double rangeMax;
+	private volatile int[] palette;
+	
+	public DepthRenderer()
+	{
+		autoRange = true;
+		palette = grayPalette();
+	}
+	
+	/**
+	 * @return the renderer CvMatData uses
+	 */
+	public static DepthRenderer getDefault() {
+		return defaultRenderer;
+	}
+	
+	/**
+	 * Normalises every frame over its own minimum and maximum.
+	 */
+	public void setAutoRange() {
+		autoRange = true;
+	}
+	
+	/**
+	 * Normalises over a fixed range; values outside it are clamped.
+	 */
+	public synchronized void setRange(double min, double max)
+	{
+		rangeMin = min;
+		rangeMax = max;
+		autoRange = false;
+	}
+	
+	public void setFalseColour(boolean falseColour) {
+		palette = falseColour ? falseColourPalette() : grayPalette();
+	}
+	
+	/**
+	 * @return true if the depth can be rendered
+	 */
+	static boolean supports(int depth, int channels)
+	{
+		return channels == 1 && (depth == CvMatData.CV_16U || depth == CvMatData.CV_16S 
+				|| depth == CvMatData.CV_32F || depth == CvMatData.CV_64F);
+	}
+	
+	static int elementSize(int depth)
+	{
+		switch( depth )
+		{
+		case CvMatData.CV_16U:
+		case CvMatData.CV_16S:
+			return 2;
+		case CvMatData.CV_32F:
+			return 4;
+		case CvMatData.CV_64F:
+			return 8;
+		default:
+			return 1;
+		}
+	}
+	
+	/**
+	 * Renders a continuous single channel matrix to ARGB32 native memory 
+	 * with width * 4 bytes per line.
+	 */
+	public void render(byte[] src, int depth, int width, int height, long dst)
+	{
+		render(ByteBuffer.wrap(src), 0, depth, width, height, dst);
+	}
+	
+	/**
+	 * Renders a matrix starting at srcOffset in a buffer. The offset is 
+	 * relative to the start of the buffer, its position is ignored.
+	 */
+	public void render(ByteBuffer src, int srcOffset, int depth, int width, int height, long dst)
+	{
+		int[] palette = this.palette;
+		int bands = RowBands.bandCount(width, height);
+		Rendering r = renderings.get();
+		for( int b=0; b < bands; ++b )
+		{
+			if( r.rows[b] == null || r.rows[b].length < width )
+				r.rows[b] = new int[width];
+		}
+		r.src       = src;
+		r.srcOffset = srcOffset;
+		r.depth     = depth;
+		r.width     = width;
+		r.dst       = dst;
+		r.palette   = palette;
+		try
+		{
+			// find the range, in parallel bands for large frames
+			double min, max;
+			synchronized( this )
+			{
+				min = rangeMin;
+				max = rangeMax;
+			}
+			if( autoRange )
+			{
+				RowBands.run(height, bands, r.range);
+				min = r.mins[0];
+				max = r.maxs[0];
+				for( int b=1; b < bands; ++b )
+				{
+					min = Math.min(min, r.mins[b]);
+					max = Math.max(max, r.maxs[b]);
+				}
+			}
+			r.lo = min;
+			r.scale = max > min ? 255.0 / (max - min) : 0.0;
+			r.table = depth == CvMatData.CV_16U || depth == CvMatData.CV_16S ? lut(r, min, max) : null;
+			RowBands.run(height, bands, r.map);
+		}
+		finally
+		{
+			r.src = null;
+			r.palette = null;
+			r.table = null;
+		}
+	}
+	
+	private static void minMax(ByteBuffer src, int base, int depth, int from, int to, double[] mins, double[] maxs, int band)
+	{
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		switch( depth )
+		{
+		case CvMatData.CV_16U:
+		{
+			int lo = 0xffff, hi = 0;
+			for( int i=from; i < to; ++i )
+			{
+				int v = (short) SHORT.get(src, base + i*2) & 0xffff;
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+			}
+			min = lo;
+			max = hi;
+			break;
+		}
+		case CvMatData.CV_16S:
+		{
+			int lo = Short.MAX_VALUE, hi = Short.MIN_VALUE;
+			for( int i=from; i < to; ++i )
+			{
+				int v = (short) SHORT.get(src, base + i*2);
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+			}
+			min = lo;
+			max = hi;
+			break;
+		}
+		case CvMatData.CV_32F:
+			for( int i=from; i < to; ++i )
+			{
+				float v = (float) FLOAT.get(src, base + i*4);
+				// NaN and infinities are skipped, they are mapped to the ends of the range
+				if( v - v == 0 )
+				{
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+			}
+			break;
+		case CvMatData.CV_64F:
+			for( int i=from; i < to; ++i )
+			{
+				double v = (double) DOUBLE.get(src, base + i*8);
+				if( v - v == 0 )
+				{
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+			}
+			break;
+		}
+		mins[band] = min;
+		maxs[band] = max;
+	}
+	
+	/**
+	 * @return the lookup table for the frame being rendered, rebuilt only 
+	 * if the one built before maps the range differently by more than 
+	 * LUT_TOLERANCE levels
+	 */
+	private static int[] lut(Rendering r, double min, double max)
+	{
+		double scale = r.scale;
+		if( r.lutDepth != r.depth || r.lutPalette != r.palette || (max > min) != (r.lutMax > r.lutMin)
+				|| Math.abs(min - r.lutMin) * scale > LUT_TOLERANCE 
+				|| Math.abs(max - r.lutMax) * scale > LUT_TOLERANCE )
+		{
+			int offset = r.depth == CvMatData.CV_16S ? Short.MIN_VALUE : 0;
+			for( int i=0; i < 65536; ++i )
+				r.lut[i] = r.palette[level(i + offset, min, scale)];
+			r.lutDepth = r.depth;
+			r.lutMin = min;
+			r.lutMax = max;
+			r.lutPalette = r.palette;
+		}
+		return r.lut;
+	}
+	
+	private static int level(double v, double min, double scale)
+	{
+		double l = (v - min) * scale;
+		// also maps NaN to 0
+		if( !(l > 0) )
+			return 0;
+		return l >= 255 ? 255 : (int) l;
+	}
+	
+	private static void mapShorts(ByteBuffer src, int base, int depth, int offset, int[] row, int width, int[] lut)
+	{
+		// signed values are offset by 32768 into the table
+		int bias = depth == CvMatData.CV_16S ? 0x8000 : 0;
+		for( int x=0; x < width; ++x )
+		{
+			int v = ((short) SHORT.get(src, base + (offset + x)*2) + bias) & 0xffff;
+			row[x] = lut[v];
+		}
+	}
+	
+	private static void mapFloats(ByteBuffer src, int base, int depth, int offset, int[] row, int width, 
+			double min, double scale, int[] palette)
+	{
+		if( depth == CvMatData.CV_32F )
+		{
+			for( int x=0; x < width; ++x )
+				row[x] = palette[level((float) FLOAT.get(src, base + (offset + x)*4), min, scale)];
+		}
+		else
+		{
+			for( int x=0; x < width; ++x )
+				row[x] = palette[level((double) DOUBLE.get(src, base + (offset + x)*8), min, scale)];
+		}
+	}
+	
+	static int[] grayPalette()
+	{
+		int[] palette = new int[256];
+		for( int i=0; i < 256; ++i )
+			palette[i] = 0xff000000 | (i << 16) | (i << 8) | i;
+		return palette;
+	}
+	
+	/**
+	 * Blue over cyan, green and yellow to red, like the OpenCV jet map.
+	 */
+	static int[] falseColourPalette()
+	{
+		int[] palette = new int[256];
+		for( int i=0; i < 256; ++i )
+		{
+			double v = i / 255.0 * 4;
+			int r = clamp(Math.min(v - 1.5, -v + 4.5));
+			int g = clamp(Math.min(v - 0.5, -v + 3.5));
+			int b = clamp(Math.min(v + 0.5, -v + 2.5));
+			palette[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		return palette;
+	}
+	
+	private static int clamp(double v)
+	{
+		return (int) (Math.max(0, Math.min(1, v)) * 255);
+	}
+}
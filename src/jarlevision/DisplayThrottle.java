@@ -0,0 +1,87 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import com.trolltech.qt.core.QTimer;
+
+/**
+ * Coalesces display refreshes to a maximum rate. Frames usually arrive
+ * faster than the monitor shows them, and converting an image to a pixmap
+ * nobody sees is wasted work. Requests are therefore merged: the first 
+ * request after a quiet period refreshes right away, later ones schedule
+ * a single refresh for the start of the next interval, which then shows 
+ * whatever frame is newest by that time. The display work scales with 
+ * the refresh rate instead of the incoming frame rate.
+ *
+ * Qt 4 does not report the refresh rate of the monitor, so the rate is a
+ * configurable cap which defaults to the common 60 Hz. All methods must 
+ * be called on the GUI thread.
+ */
+public class DisplayThrottle {
+	
+	final static int DEFAULT_MAX_FPS = 60;
+	
+	private final Runnable refresh;
+	private final QTimer timer;
+	private long intervalNanos;
+	private long lastRefresh;
+	
+	/**
+	 * @param refresh called on the GUI thread to show the newest frame
+	 * @param maxFps maximum refreshes per second, 0 for no limit
+	 */
+	public DisplayThrottle(Runnable refresh, int maxFps)
+	{
+		this.refresh = refresh;
+		this.timer = new QTimer();
+		this.timer.setSingleShot(true);
+		this.timer.timeout.connect(this, "fire()");
+		setMaxFps(maxFps);
+	}
+	
+	public void setMaxFps(int maxFps) {
+		intervalNanos = maxFps > 0 ? 1000000000L / maxFps : 0;
+	}
+	
+	/**
+	 * Asks for a refresh, which happens now or at the start of the next 
+	 * interval.
+	 */
+	public void request()
+	{
+		// a refresh is already scheduled and will pick up the newest frame
+		if( timer.isActive() )
+			return;
+		
+		long wait = lastRefresh + intervalNanos - System.nanoTime();
+		if( wait <= 0 )
+			fire();
+		else
+			timer.start((int) ((wait + 999999) / 1000000));
+	}
+	
+	void fire()
+	{
+		lastRefresh = System.nanoTime();
+		refresh.run();
+	}
+}
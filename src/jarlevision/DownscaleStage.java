@@ -0,0 +1,103 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * Shrinks every image by an integer factor, averaging each block of 
+ * factor x factor pixels, into a buffer from the pool which replaces the
+ * image. Rows and columns which do not fill a whole block are dropped.
+ */
+public class DownscaleStage implements ProcessingStage {
+	
+	private final int factor;
+	
+	public DownscaleStage(int factor)
+	{
+		if( factor < 1 )
+			throw new IllegalArgumentException("Downscale factor must be at least 1");
+		this.factor = factor;
+	}
+	
+	public String getName() {
+		return "downscale";
+	}
+	
+	public Object createState() {
+		return null;
+	}
+	
+	public NativeBuffer begin(Object state, NativeBuffer source, NativeBufferPool pool)
+	{
+		int w = source.width / factor;
+		int h = source.height / factor;
+		if( factor == 1 || w == 0 || h == 0 )
+			return source;
+		return pool.acquire(w, h, source.format);
+	}
+	
+	public void process(Object state, int band, NativeBuffer source, NativeBuffer target, int fromRow, int toRow)
+	{
+		int n = factor;
+		int area = n * n;
+		int round = area / 2;
+		boolean gray = NativeBuffer.bytesPerPixel(source.format) == 1;
+		for( int ty=fromRow; ty < toRow; ++ty )
+		{
+			long block = source.address() + (long) ty * n * source.bytesPerLine;
+			long out = target.address() + (long) ty * target.bytesPerLine;
+			for( int tx=0; tx < target.width; ++tx )
+			{
+				if( gray )
+				{
+					int sum = 0;
+					long row = block + (long) tx * n;
+					for( int dy=0; dy < n; ++dy, row += source.bytesPerLine )
+						for( int dx=0; dx < n; ++dx )
+							sum += NativeMemory.getByte(row + dx) & 0xFF;
+					NativeMemory.putByte(out + tx, (byte) ((sum + round) / area));
+				}
+				else
+				{
+					int a = 0, r = 0, g = 0, b = 0;
+					long row = block + 4L * tx * n;
+					for( int dy=0; dy < n; ++dy, row += source.bytesPerLine )
+					{
+						for( int dx=0; dx < n; ++dx )
+						{
+							int p = NativeMemory.getInt(row + 4L * dx);
+							a += p >>> 24;
+							r += (p >> 16) & 0xFF;
+							g += (p >> 8) & 0xFF;
+							b += p & 0xFF;
+						}
+					}
+					NativeMemory.putInt(out + 4L * tx, ((a + round) / area) << 24 | ((r + round) / area) << 16 
+							| ((g + round) / area) << 8 | (b + round) / area);
+				}
+			}
+		}
+	}
+	
+	public void end(Object state, int serial, NativeBuffer target, int bands) {
+	}
+}
@@ -0,0 +1,142 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compressed image argument as it was received: a QImage, which Qt 
+ * streams as a PNG file, or a plv::QImageWrapper holding a PNG or JPEG 
+ * file. The file is not decompressed and no Qt classes are involved, so 
+ * headless consumers can store or forward it as is. Like RawMatrix it is
+ * a view on the receive buffer.
+ */
+public class EncodedImage {
+	
+	/**
+	 * The plv::QImageWrapper user type: width, height and QImage format of
+	 * the image followed by the size and contents of the file.
+	 */
+	public static final VariantDecoder.UserType WRAPPER_TYPE = new VariantDecoder.UserType("plv::QImageWrapper") {
+		@Override
+		protected int length(ByteBuffer in, int offset)
+		{
+			if( in.limit() - offset < 16 )
+				throw new BufferUnderflowException();
+			int length = in.getInt(offset + 12);
+			if( length < 0 )
+				throw new BufferUnderflowException();
+			return 16 + length;
+		}
+	};
+	
+	String format;
+	int width;
+	int height;
+	ByteBuffer data;
+	
+	/**
+	 * Wraps a PNG file of a QImage argument.
+	 */
+	static EncodedImage ofPng(ByteBuffer in, int length)
+	{
+		EncodedImage image = new EncodedImage();
+		image.data = slice(in, length);
+		image.format = formatOf(image.data);
+		return image;
+	}
+	
+	/**
+	 * Reads a plv::QImageWrapper value at the position of a big endian 
+	 * buffer and advances the position past it.
+	 */
+	static EncodedImage readWrapper(ByteBuffer in)
+	{
+		EncodedImage image = new EncodedImage();
+		image.width  = in.getInt();
+		image.height = in.getInt();
+		in.getInt(); // QImage format
+		int length   = in.getInt();
+		if( length < 0 || length > in.remaining() )
+			throw new BufferUnderflowException();
+		image.data = slice(in, length);
+		image.format = formatOf(image.data);
+		return image;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer in, int length)
+	{
+		ByteBuffer data = in.duplicate();
+		data.limit(in.position() + length);
+		in.position(in.position() + length);
+		return data.slice();
+	}
+	
+	/**
+	 * @return "png" or "jpeg" for the file signature at the start of the 
+	 * buffer, or null if it is neither
+	 */
+	static String formatOf(ByteBuffer data)
+	{
+		int p = data.position();
+		if( data.limit() - p >= 4 && (data.get(p) & 0xff) == 0x89 && data.get(p+1) == 'P' 
+				&& data.get(p+2) == 'N' && data.get(p+3) == 'G' )
+			return "png";
+		if( data.limit() - p >= 2 && (data.get(p) & 0xff) == 0xff && (data.get(p+1) & 0xff) == 0xd8 )
+			return "jpeg";
+		return null;
+	}
+	
+	/**
+	 * @return "png", "jpeg" or null if unknown
+	 */
+	public String getFormat() {
+		return format;
+	}
+	
+	/**
+	 * @return the width the server reported, 0 for a QImage argument
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * @return the height the server reported, 0 for a QImage argument
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return the file contents from position 0 to the limit
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+	
+	public String toString() {
+		return (format != null ? format : "unknown") + " image of " + data.limit() + " bytes";
+	}
+}
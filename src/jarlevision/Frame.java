@@ -0,0 +1,183 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A complete Parlevision protocol message as handed out by the FrameParser.
+ * The buffer holds the message without the 4 byte size prefix, so it starts
+ * with the type, serial and number of arguments header followed by the
+ * QVariant encoded arguments.
+ *
+ * The buffer is owned by the parser and is reused for the next frame. A
+ * frame is therefore only valid for the duration of the callback it was
+ * handed to. Listeners which need the data afterwards claim() the frame:
+ * the parser then leaves the buffer to the claimed frame and receives 
+ * the next frame into another one. This hands the received bytes to the 
+ * decoder without copying them. Released frames go back to the parser 
+ * together with their buffer and are handed out again by a later claim(),
+ * so claiming allocates nothing once the parser has warmed up.
+ */
+public class Frame {
+	final static int PROTO_FRAME = 0x000000;
+	final static int PROTO_INIT  = 0x000001;
+	final static int PROTO_ACK   = 0x000003;
+	
+	final static int HEADER_SIZE = 3 * 4;
+
+	int type;
+	int serial;
+	int numargs;
+	int size;
+	ByteBuffer buffer;
+	long startNanos;
+	long receivedNanos;
+	FrameParser parser;
+	boolean claimed;
+	// position in the DecodePipeline, which may decode frames out of order
+	long sequence;
+	// images converted while the frame was received, see ProgressiveDecoder
+	ProgressiveDecoder.Result converted;
+	// view returned by message(), kept as long as the buffer stays the same
+	private ByteBuffer view;
+	private ByteBuffer viewOf;
+	private boolean released;
+	
+	public int getType() {
+		return type;
+	}
+	
+	public int getSerial() {
+		return serial;
+	}
+	
+	public int getNumArgs() {
+		return numargs;
+	}
+	
+	/**
+	 * @return size of the message in bytes, excluding the size prefix
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return System.nanoTime() when the complete frame was received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+	
+	/**
+	 * @return read only view of the message, positioned at the first argument
+	 */
+	public ByteBuffer getArguments()
+	{
+		ByteBuffer args = buffer.asReadOnlyBuffer();
+		args.position(HEADER_SIZE);
+		args.limit(size);
+		return args;
+	}
+	
+	/**
+	 * Takes over the buffer of a frame handed to a listener, so its data 
+	 * stays valid after the callback returns. The returned frame has to be
+	 * released once it is no longer needed, which lets the parser reuse 
+	 * its buffer.
+	 * 
+	 * @return a frame owning the buffer
+	 */
+	public Frame claim()
+	{
+		Frame owner = parser != null ? parser.owner() : new Frame();
+		owner.type    = type;
+		owner.serial  = serial;
+		owner.numargs = numargs;
+		owner.size    = size;
+		owner.buffer  = buffer;
+		owner.startNanos    = startNanos;
+		owner.receivedNanos = receivedNanos;
+		owner.parser  = parser;
+		owner.converted = converted;
+		converted = null;
+		claimed = true;
+		return owner;
+	}
+	
+	/**
+	 * Returns the buffer of a claimed frame to the parser. The frame must 
+	 * not be used afterwards.
+	 */
+	public void release()
+	{
+		if( released )
+			return;
+		released = true;
+		if( converted != null )
+			converted.release();
+		converted = null;
+		if( parser != null && buffer != null )
+			parser.recycle(this);
+		else
+			buffer = null;
+	}
+	
+	/**
+	 * Prepares a recycled frame for another claim().
+	 */
+	void reuse() {
+		released = false;
+	}
+	
+	/**
+	 * @return the message as a big endian buffer from the header to the 
+	 * end of the last argument. The buffer shares the frame's data and is
+	 * reused by the next call on this frame.
+	 */
+	ByteBuffer message()
+	{
+		if( viewOf != buffer )
+		{
+			view = buffer.duplicate();
+			viewOf = buffer;
+		}
+		view.clear();
+		view.limit(size);
+		return view;
+	}
+	
+	/**
+	 * Copies the complete message, header included, into a new array. This
+	 * is the format FrameDecoder.decode(byte[]) expects.
+	 */
+	public byte[] toByteArray()
+	{
+		byte[] bytes = new byte[size];
+		ByteBuffer b = buffer.duplicate();
+		b.position(0);
+		b.limit(size);
+		b.get(bytes);
+		return bytes;
+	}
+}
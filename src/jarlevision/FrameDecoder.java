@@ -0,0 +1,380 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.trolltech.qt.core.QByteArray;
+import com.trolltech.qt.core.Qt;
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * Decodes complete Parlevision messages into DecodedFrames. The decoder 
+ * has no state and does not touch any widgets, so it can be called from 
+ * any thread; the resulting frames are displayed on the GUI thread.
+ *
+ * Messages are decoded straight from the buffer they were received in. 
+ * Header fields are read in place and matrix data is converted directly
+ * into the native image memory, so the pixels are copied only once. The
+ * arguments are read by a VariantDecoder; every thread has its own 
+ * decoder and visitor, which collects the arguments the client displays.
+ * Decoded CvMatData images go through the FrameProcessor, if one is set,
+ * before the frame is returned, and then offered to the FrameExporter, if
+ * one is set.
+ *
+ * With a display size set, images much larger than they are shown are 
+ * decoded at a reduced size, see setDisplaySize().
+ *
+ * Decoding allocates nothing in the steady state: disposed DecodedFrames
+ * and their CvMatData objects are reused, pixels go into pooled native 
+ * buffers and strings which repeat, like a status text, are reused 
+ * instead of being created again for every frame.
+ */
+public class FrameDecoder {
+	
+	/** Disposed frames kept for reuse */
+	final static int MAX_SPARE_FRAMES = 16;
+	/** Strings each thread remembers to reuse */
+	final static int RECENT_STRINGS = 8;
+	
+	private final ArrayBlockingQueue<DecodedFrame> spares = new ArrayBlockingQueue<DecodedFrame>(MAX_SPARE_FRAMES);
+	private volatile FrameProcessor processor;
+	private volatile FrameExporter exporter;
+	private volatile int displayWidth;
+	private volatile int displayHeight;
+	
+	/**
+	 * Adds CvMatData, QImage, QImageWrapper and String arguments to a frame.
+	 */
+	private static class ArgumentCollector extends VariantDecoder.Visitor {
+		final VariantDecoder decoder;
+		DecodedFrame frame;
+		// images the ProgressiveDecoder already converted
+		ProgressiveDecoder.Result converted;
+		final String[] recent = new String[RECENT_STRINGS];
+		int nextRecent;
+		// display size of the current frame, 0 for full size
+		int displayWidth;
+		int displayHeight;
+		
+		ArgumentCollector()
+		{
+			decoder = new VariantDecoder();
+			decoder.register(CvMatData.USER_TYPE);
+			decoder.register(QImageWrapper.USER_TYPE);
+		}
+		
+		@Override
+		public void onString(CharSequence value)
+		{
+			if( value != null )
+				frame.arguments.add(intern(value));
+		}
+		
+		/**
+		 * @return a recently decoded string equal to the value, or the 
+		 * value as a new string
+		 */
+		private String intern(CharSequence value)
+		{
+			for( int i=0; i < recent.length; ++i )
+			{
+				if( recent[i] != null && recent[i].contentEquals(value) )
+					return recent[i];
+			}
+			String s = value.toString();
+			recent[nextRecent] = s;
+			nextRecent = (nextRecent + 1) % recent.length;
+			return s;
+		}
+		
+		@Override
+		public void onImage(ByteBuffer png, int length)
+		{
+			if( length == 0 )
+				return;
+			
+			// QImage decodes the compressed data from its own copy
+			byte[] data = new byte[length];
+			png.get(data);
+			QImage img = new QImage();
+			if( img.loadFromData(new QByteArray(data), "PNG") && !img.isNull() )
+				frame.arguments.add(fit(img));
+		}
+		
+		@Override
+		public void onUserType(VariantDecoder.UserType type, ByteBuffer data, int length)
+		{
+			if( type == CvMatData.USER_TYPE )
+			{
+				CvMatData cvmatdata = frame.takeMatrix();
+				NativeBuffer image = converted != null ? converted.take(data.position()) : null;
+				if( image != null )
+				{
+					cvmatdata.attach(image);
+					frame.arguments.add(cvmatdata);
+				}
+				else
+				{
+					boolean read;
+					try
+					{
+						read = cvmatdata.readFrom(data, displayWidth, displayHeight);
+					}
+					catch( RuntimeException e )
+					{
+						// readFrom released its image already
+						frame.spareMatrices.add(cvmatdata);
+						throw e;
+					}
+					if( read )
+						frame.arguments.add(cvmatdata);
+					else
+						frame.spareMatrices.add(cvmatdata);
+				}
+			}
+			else if( type == QImageWrapper.USER_TYPE )
+			{
+				QImage img = QImageWrapper.decode(data);
+				if( img != null )
+					frame.arguments.add(fit(img));
+			}
+		}
+		
+		/**
+		 * Scales a decompressed image down to the display size on the 
+		 * decode thread, so the GUI thread does not have to.
+		 */
+		private QImage fit(QImage img)
+		{
+			int factor = CvMatData.reduction(img.width(), img.height(), displayWidth, displayHeight);
+			if( factor == 1 )
+				return img;
+			return img.scaled(img.width() / factor, img.height() / factor, 
+					Qt.AspectRatioMode.IgnoreAspectRatio, Qt.TransformationMode.SmoothTransformation);
+		}
+		
+		@Override
+		public void onUnsupported(int type, CharSequence name)
+		{
+			if( name != null )
+				System.out.println("Warning: Usertype with name " + name + " is not supported.");
+			else
+				System.out.println( "Warning, Received QVariant of type " + type + " which is unsupported" );
+			ClientMetrics.getDefault().unsupportedVariant();
+		}
+	}
+	
+	private static final ThreadLocal<ArgumentCollector> collectors = new ThreadLocal<ArgumentCollector>() {
+		@Override
+		protected ArgumentCollector initialValue() {
+			return new ArgumentCollector();
+		}
+	};
+	
+	/**
+	 * Sets the processing stages decoded images run through, or null to 
+	 * display them as received.
+	 */
+	public void setProcessor(FrameProcessor processor) {
+		this.processor = processor;
+	}
+	
+	public FrameProcessor getProcessor() {
+		return processor;
+	}
+	
+	/**
+	 * Sets the exporter decoded frames are offered to, or null to export
+	 * nothing.
+	 */
+	public void setExporter(FrameExporter exporter) {
+		this.exporter = exporter;
+	}
+	
+	public FrameExporter getExporter() {
+		return exporter;
+	}
+	
+	/**
+	 * Sets the size images are displayed at, or 0 to decode them at full 
+	 * size. CvMatData images at least twice as large are shrunk by an 
+	 * integer factor while they are converted and compressed images are
+	 * scaled down after decompressing, so they still cover the display 
+	 * and Qt only has to scale them by less than two. Can be changed at 
+	 * any time, e.g. when the view is zoomed; frames decoded afterwards 
+	 * use the new size.
+	 *
+	 * Frames go through processing stages and the exporter at full size,
+	 * which is why nothing is shrunk while either is set. Images which the
+	 * ProgressiveDecoder converted while they arrived keep their size too.
+	 */
+	public void setDisplaySize(int width, int height)
+	{
+		this.displayWidth = width;
+		this.displayHeight = height;
+	}
+	
+	/**
+	 * Decodes a message as received from the transport, without the size 
+	 * prefix.
+	 */
+	public DecodedFrame decode(byte[] message)
+	{
+		return decode(ByteBuffer.wrap(message));
+	}
+	
+	/**
+	 * Decodes a received frame in place. The frame's buffer is not needed
+	 * anymore once this returns.
+	 */
+	public DecodedFrame decode(Frame frame)
+	{
+		ArgumentCollector collector = collectors.get();
+		collector.converted = frame.converted;
+		try
+		{
+			return decode(frame.message());
+		}
+		finally
+		{
+			collector.converted = null;
+		}
+	}
+	
+	/**
+	 * Decodes the message between the position and the limit of a big 
+	 * endian buffer. The position is advanced past the decoded arguments.
+	 * If decoding throws, the images decoded so far are freed and the 
+	 * frame is recycled before the exception is passed on.
+	 */
+	public DecodedFrame decode(ByteBuffer message)
+	{
+		long start = System.nanoTime();
+		DecodedFrame frame = obtain();
+		frame.size = message.remaining();
+		
+		if( message.remaining() < Frame.HEADER_SIZE )
+		{
+			frame.corrupt = true;
+			ClientMetrics.getDefault().corruptStream();
+			return frame;
+		}
+		frame.type    = message.getInt();
+		frame.serial  = message.getInt();
+		frame.numargs = message.getInt();
+		
+		if( frame.type == Frame.PROTO_FRAME )
+		{
+			ArgumentCollector collector = collectors.get();
+			collector.frame = frame;
+			FrameProcessor p = processor;
+			boolean fullSize = (p != null && !p.isEmpty()) || exporter != null;
+			collector.displayWidth  = fullSize ? 0 : displayWidth;
+			collector.displayHeight = fullSize ? 0 : displayHeight;
+			try
+			{
+				for( int i=0; i < frame.numargs; ++i )
+				{
+					if( !collector.decoder.read(message, collector) )
+					{
+						frame.corrupt = true;
+						ClientMetrics.getDefault().corruptStream();
+						break;
+					}
+				}
+				process(frame);
+				FrameExporter e = exporter;
+				if( e != null && !frame.corrupt )
+					e.export(frame);
+			}
+			catch( RuntimeException e )
+			{
+				// nobody else gets to free the images decoded so far
+				frame.dispose();
+				throw e;
+			}
+			finally
+			{
+				collector.frame = null;
+			}
+		}
+		else if(frame.type == Frame.PROTO_INIT)
+		{
+			System.out.println("PROTO_INIT message not supported.");
+		}
+		else if(frame.type == Frame.PROTO_ACK)
+		{
+			System.out.println("PROTO_ACK message not supported.");
+		}
+		else
+		{
+			System.out.println("Unknown message type received.");
+		}
+		frame.decodeNanos = System.nanoTime() - start;
+		return frame;
+	}
+	
+	/**
+	 * @return a disposed frame with its fields reset, or a new frame
+	 */
+	private DecodedFrame obtain()
+	{
+		DecodedFrame frame = spares.poll();
+		if( frame == null )
+		{
+			frame = new DecodedFrame();
+			frame.decoder = this;
+			return frame;
+		}
+		frame.disposed = false;
+		frame.type = 0;
+		frame.serial = 0;
+		frame.numargs = 0;
+		frame.corrupt = false;
+		frame.receivedNanos = 0;
+		frame.decodedNanos = 0;
+		return frame;
+	}
+	
+	/**
+	 * Takes back a disposed frame. Frames beyond MAX_SPARE_FRAMES are left
+	 * to the garbage collector.
+	 */
+	void recycle(DecodedFrame frame) {
+		spares.offer(frame);
+	}
+	
+	private void process(DecodedFrame frame)
+	{
+		FrameProcessor p = processor;
+		if( p == null || p.isEmpty() )
+			return;
+		for( int i=0; i < frame.arguments.size(); ++i )
+		{
+			Object argument = frame.arguments.get(i);
+			if( argument instanceof CvMatData )
+				p.process((CvMatData) argument, frame.serial);
+		}
+	}
+}
@@ -0,0 +1,641 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+
+package jarlevision;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import com.trolltech.qt.core.QBuffer;
+import com.trolltech.qt.core.QByteArray;
+import com.trolltech.qt.core.QIODevice;
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * Saves the images of selected frames to disk, e.g. as evidence for QA, 
+ * without holding up decoding or display. The FrameDecoder hands every 
+ * decoded frame to export(), which checks the Rule and queues the image 
+ * arguments of matching frames. CvMatData images are shared, not copied:
+ * a queued image holds a reference to its native buffer until it is 
+ * encoded.
+ *
+ * A bounded pool of encoder threads turns the images into PNG, JPEG or 
+ * raw files and a single writer thread writes them in batches: it takes
+ * all files the encoders finished since its last round, writes them and
+ * appends their lines to the manifest, exports.txt, in one write. When 
+ * the encoder queue is full, images of further matching frames are 
+ * either dropped or the decode thread waits for room, which holds back
+ * the ack and so slows the server down.
+ *
+ * Raw files use the plv::CvMatData layout of the stream, so 
+ * RawMatrix.readFrom() reads them back: type, rows, columns and length as
+ * big endian ints followed by the pixels. They hold the image as decoded
+ * for display, 8-bit gray images as CV_8UC1 and all others as CV_8UC4 in
+ * BGRA order.
+ *
+ * The encode time of every format is recorded in the ClientMetrics as 
+ * "export.<format>"; toString() reports the encode throughput of one 
+ * encoder thread for every format.
+ */
+public class FrameExporter {
+	
+	public enum Format {
+		PNG("png"), JPEG("jpg"), RAW("cvmat");
+		
+		final String extension;
+		
+		Format(String extension) {
+			this.extension = extension;
+		}
+	}
+	
+	public enum Policy {
+		/** drop the images of a matching frame when the queue is full */
+		DROP,
+		/** wait on the decode thread until there is room */
+		BLOCK
+	}
+	
+	/**
+	 * Selects the frames to export. Called on the decode threads.
+	 */
+	public interface Rule {
+		/**
+		 * @param status the last string argument of the frame, or null
+		 */
+		boolean matches(int serial, String status);
+	}
+	
+	final static int DEFAULT_QUEUE_CAPACITY = 16;
+	final static int JPEG_QUALITY = 90;
+	final static int MAX_BATCH = 32;
+	final static String MANIFEST = "exports.txt";
+	
+	/**
+	 * An image on its way through the encoders and the writer.
+	 */
+	private static class Job {
+		int serial;
+		int index;
+		String status;
+		// a shared reference, freed once the image is encoded
+		CvMatData matrix;
+		QImage image;
+		ByteBuffer[] encoded;
+	}
+	
+	private static final Job STOP = new Job();
+	
+	private final File directory;
+	private final Format[] formats;
+	private final Rule rule;
+	private final Policy policy;
+	private final ArrayBlockingQueue<Job> jobs;
+	private final ArrayBlockingQueue<Job> encoded;
+	private final Thread[] encoders;
+	private final Thread writer;
+	private final FileChannel manifest;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	// per format, indexed like formats
+	private final LongAdder[] images;
+	private final LongAdder[] pixelBytes;
+	private final LongAdder[] encodeNanos;
+	private final LatencyHistogram[] encodeTimes;
+	private volatile boolean closed;
+	
+	/**
+	 * Starts the encoder and writer threads. Exports are added to the 
+	 * directory, which is created if needed.
+	 * 
+	 * @param formats every image is saved once in each of these formats
+	 * @param workers number of encoder threads
+	 * @param queueCapacity maximum number of images waiting for an encoder
+	 */
+	public FrameExporter(File directory, Format[] formats, Rule rule, Policy policy, 
+			int workers, int queueCapacity) throws IOException
+	{
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException("Cannot create export directory " + directory);
+		
+		this.directory = directory;
+		this.formats = formats.clone();
+		this.rule = rule;
+		this.policy = policy;
+		this.jobs = new ArrayBlockingQueue<Job>(queueCapacity);
+		this.encoded = new ArrayBlockingQueue<Job>(queueCapacity + workers);
+		this.manifest = new FileOutputStream(new File(directory, MANIFEST), true).getChannel();
+		
+		images      = new LongAdder[formats.length];
+		pixelBytes  = new LongAdder[formats.length];
+		encodeNanos = new LongAdder[formats.length];
+		encodeTimes = new LatencyHistogram[formats.length];
+		for( int i=0; i < formats.length; ++i )
+		{
+			images[i]      = new LongAdder();
+			pixelBytes[i]  = new LongAdder();
+			encodeNanos[i] = new LongAdder();
+			encodeTimes[i] = ClientMetrics.getDefault().exportFormat(formats[i].name().toLowerCase());
+		}
+		
+		encoders = new Thread[workers];
+		for( int i=0; i < workers; ++i )
+		{
+			encoders[i] = new Thread(new Runnable() {
+				public void run() {
+					encode();
+				}
+			}, "jarlevision-export-" + i);
+			encoders[i].setDaemon(true);
+			encoders[i].start();
+		}
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "jarlevision-export-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * @return a sensible number of encoder threads, which leaves most of 
+	 * the cores to decoding
+	 */
+	public static int defaultWorkerCount()
+	{
+		return Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+	}
+	
+	/**
+	 * @return a rule matching every frame
+	 */
+	public static Rule all()
+	{
+		return new Rule() {
+			public boolean matches(int serial, String status) {
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * @return a rule matching the first frame it sees and every n-th 
+	 * frame after it
+	 */
+	public static Rule everyNth(final int n)
+	{
+		if( n < 1 )
+			throw new IllegalArgumentException("Expected n >= 1, got " + n);
+		final AtomicLong seen = new AtomicLong();
+		return new Rule() {
+			public boolean matches(int serial, String status) {
+				return seen.getAndIncrement() % n == 0;
+			}
+		};
+	}
+	
+	/**
+	 * @return a rule matching the frames with serials from first to last,
+	 * both included
+	 */
+	public static Rule serials(final int first, final int last)
+	{
+		return new Rule() {
+			public boolean matches(int serial, String status) {
+				return serial >= first && serial <= last;
+			}
+		};
+	}
+	
+	/**
+	 * @return a rule matching the frames whose status string contains a 
+	 * match of the regular expression
+	 */
+	public static Rule statusMatches(String regex)
+	{
+		final Pattern pattern = Pattern.compile(regex);
+		return new Rule() {
+			public boolean matches(int serial, String status) {
+				return status != null && pattern.matcher(status).find();
+			}
+		};
+	}
+	
+	/**
+	 * Creates a rule from a command line specification: "all", 
+	 * "every:<n>", "serials:<first>-<last>" or "status:<regex>".
+	 */
+	public static Rule parseRule(String spec)
+	{
+		int colon = spec.indexOf(':');
+		String name = colon < 0 ? spec : spec.substring(0, colon);
+		String value = colon < 0 ? "" : spec.substring(colon + 1);
+		if( name.equals("all") )
+			return all();
+		if( name.equals("every") )
+			return everyNth(Integer.parseInt(value));
+		if( name.equals("status") )
+			return statusMatches(value);
+		if( name.equals("serials") )
+		{
+			int dash = value.indexOf('-', 1);
+			if( dash < 0 )
+				throw new IllegalArgumentException("Expected serials:<first>-<last>, got " + spec);
+			return serials(Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash + 1)));
+		}
+		throw new IllegalArgumentException("Unknown export rule " + spec);
+	}
+	
+	/**
+	 * Parses a comma separated list of formats, e.g. "png,raw".
+	 */
+	public static Format[] parseFormats(String spec)
+	{
+		String[] names = spec.split(",");
+		Format[] formats = new Format[names.length];
+		for( int i=0; i < names.length; ++i )
+		{
+			String name = names[i].trim().toUpperCase();
+			formats[i] = name.equals("JPG") ? Format.JPEG : Format.valueOf(name);
+		}
+		return formats;
+	}
+	
+	/**
+	 * Queues the images of a decoded frame if it matches the rule. Called
+	 * on a decode thread; the frame stays with the caller.
+	 */
+	public void export(DecodedFrame frame)
+	{
+		if( closed )
+			return;
+		List<Object> arguments = frame.arguments;
+		String status = null;
+		for( int i=0; i < arguments.size(); ++i )
+		{
+			if( arguments.get(i) instanceof String )
+				status = (String) arguments.get(i);
+		}
+		if( !rule.matches(frame.serial, status) )
+			return;
+		
+		for( int i=0; i < arguments.size(); ++i )
+		{
+			Object argument = arguments.get(i);
+			if( !(argument instanceof CvMatData) && !(argument instanceof QImage) )
+				continue;
+			
+			Job job = new Job();
+			job.serial = frame.serial;
+			job.index  = i;
+			job.status = status;
+			if( argument instanceof CvMatData )
+				job.matrix = ((CvMatData) argument).share();
+			else
+				job.image = (QImage) argument;
+			queue(job);
+		}
+	}
+	
+	private void queue(Job job)
+	{
+		if( policy == Policy.DROP )
+		{
+			if( !jobs.offer(job) )
+				discard(job);
+			return;
+		}
+		try
+		{
+			jobs.put(job);
+		}
+		catch( InterruptedException e )
+		{
+			discard(job);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void discard(Job job)
+	{
+		dropped.increment();
+		if( job.matrix != null )
+			job.matrix.free();
+		job.matrix = null;
+		job.image = null;
+	}
+	
+	private void encode()
+	{
+		while( true )
+		{
+			Job job;
+			try
+			{
+				job = jobs.take();
+			}
+			catch( InterruptedException e )
+			{
+				return;
+			}
+			if( job == STOP )
+				return;
+			
+			job.encoded = new ByteBuffer[formats.length];
+			try
+			{
+				for( int i=0; i < formats.length; ++i )
+				{
+					long start = System.nanoTime();
+					ByteBuffer data = encode(job, formats[i]);
+					long nanos = System.nanoTime() - start;
+					if( data == null )
+					{
+						System.err.println("Failed to encode frame " + job.serial + " as " + formats[i]);
+						failed.increment();
+						continue;
+					}
+					job.encoded[i] = data;
+					images[i].increment();
+					pixelBytes[i].add(pixelBytes(job));
+					encodeNanos[i].add(nanos);
+					encodeTimes[i].record(nanos);
+				}
+			}
+			catch( RuntimeException e )
+			{
+				System.err.println("Failed to encode frame " + job.serial + ": " + e);
+				failed.increment();
+			}
+			finally
+			{
+				if( job.matrix != null )
+					job.matrix.free();
+				job.matrix = null;
+				job.image = null;
+			}
+			
+			try
+			{
+				encoded.put(job);
+			}
+			catch( InterruptedException e )
+			{
+				return;
+			}
+		}
+	}
+	
+	private static long pixelBytes(Job job)
+	{
+		if( job.matrix != null )
+			return job.matrix.getBuffer().getByteCount();
+		return (long) job.image.bytesPerLine() * job.image.height();
+	}
+	
+	/**
+	 * @return the encoded file or null if Qt could not encode the image
+	 */
+	private static ByteBuffer encode(Job job, Format format)
+	{
+		if( format == Format.RAW )
+			return job.matrix != null ? raw(job.matrix.getBuffer()) : raw(job.image);
+		
+		QImage image = job.matrix != null ? job.matrix.getImage() : job.image;
+		QBuffer device = new QBuffer();
+		device.open(QIODevice.OpenModeFlag.WriteOnly);
+		boolean saved = format == Format.JPEG 
+				? image.save(device, "JPEG", JPEG_QUALITY) 
+				: image.save(device, "PNG");
+		device.close();
+		QByteArray bytes = device.data();
+		if( !saved || bytes == null )
+			return null;
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+	
+	private static ByteBuffer raw(NativeBuffer buffer)
+	{
+		int channels = buffer.getFormat() == QImage.Format.Format_Indexed8 ? 1 : 4;
+		ByteBuffer out = rawHeader(channels, buffer.getWidth(), buffer.getHeight());
+		// rows are not padded, see NativeBuffer
+		NativeMemory.copy(buffer.address(), out.array(), out.position(), buffer.getByteCount());
+		out.position(0);
+		return out;
+	}
+	
+	private static ByteBuffer raw(QImage image)
+	{
+		if( image.format() != QImage.Format.Format_ARGB32 )
+			image = image.convertToFormat(QImage.Format.Format_ARGB32);
+		int rowBytes = 4 * image.width();
+		ByteBuffer out = rawHeader(4, image.width(), image.height());
+		long address = image.bits().pointer();
+		for( int y=0; y < image.height(); ++y )
+			NativeMemory.copy(address + (long) y * image.bytesPerLine(), out.array(), 
+					out.position() + y * rowBytes, rowBytes);
+		out.position(0);
+		return out;
+	}
+	
+	/**
+	 * @return a buffer for a raw matrix, positioned after its header
+	 */
+	private static ByteBuffer rawHeader(int channels, int width, int height)
+	{
+		int length = width * height * channels;
+		ByteBuffer out = ByteBuffer.allocate(16 + length);
+		out.putInt(CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, channels));
+		out.putInt(height);
+		out.putInt(width);
+		out.putInt(length);
+		return out;
+	}
+	
+	private void write()
+	{
+		List<Job> batch = new ArrayList<Job>(MAX_BATCH);
+		StringBuilder lines = new StringBuilder();
+		boolean stop = false;
+		while( !stop )
+		{
+			try
+			{
+				batch.add(encoded.take());
+			}
+			catch( InterruptedException e )
+			{
+				return;
+			}
+			encoded.drainTo(batch, MAX_BATCH - 1);
+			
+			for( int i=0; i < batch.size(); ++i )
+			{
+				Job job = batch.get(i);
+				if( job == STOP )
+				{
+					stop = true;
+					continue;
+				}
+				for( int j=0; j < formats.length; ++j )
+				{
+					if( job.encoded[j] == null )
+						continue;
+					String name = String.format("%08d-%d.%s", job.serial, job.index, formats[j].extension);
+					int size = job.encoded[j].remaining();
+					try
+					{
+						writeFile(new File(directory, name), job.encoded[j]);
+						written.increment();
+						lines.append(job.serial).append('\t').append(name).append('\t').append(size);
+						if( job.status != null )
+							lines.append('\t').append(job.status.replace('\n', ' ').replace('\t', ' '));
+						lines.append('\n');
+					}
+					catch( IOException e )
+					{
+						System.err.println("Failed to write " + name + ": " + e.getMessage());
+						failed.increment();
+					}
+				}
+			}
+			batch.clear();
+			
+			if( lines.length() > 0 )
+			{
+				try
+				{
+					ByteBuffer data = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+					while( data.hasRemaining() )
+						manifest.write(data);
+				}
+				catch( IOException e )
+				{
+					System.err.println("Failed to write the export manifest: " + e.getMessage());
+				}
+				lines.setLength(0);
+			}
+		}
+	}
+	
+	private static void writeFile(File file, ByteBuffer data) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			while( data.hasRemaining() )
+				channel.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * @return number of images dropped because the encoders were busy
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+	
+	/**
+	 * @return number of files written
+	 */
+	public long getWrittenCount() {
+		return written.sum();
+	}
+	
+	/**
+	 * @return number of images which could not be encoded or written
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+	
+	/**
+	 * Stops accepting frames, waits until the queued images are encoded 
+	 * and written and closes the manifest.
+	 */
+	public void close()
+	{
+		if( closed )
+			return;
+		closed = true;
+		try
+		{
+			for( int i=0; i < encoders.length; ++i )
+				jobs.put(STOP);
+			for( int i=0; i < encoders.length; ++i )
+				encoders[i].join();
+			// images a decode thread queued while closing
+			Job job;
+			while( (job = jobs.poll()) != null )
+				discard(job);
+			encoded.put(STOP);
+			writer.join();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		try
+		{
+			manifest.close();
+		}
+		catch( IOException e )
+		{
+			System.err.println("Failed to close the export manifest: " + e.getMessage());
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("FrameExporter(");
+		s.append(written.sum()).append(" written, ");
+		s.append(dropped.sum()).append(" dropped, ");
+		s.append(failed.sum()).append(" failed");
+		for( int i=0; i < formats.length; ++i )
+		{
+			long n = images[i].sum();
+			double seconds = encodeNanos[i].sum() / 1e9;
+			s.append(String.format(", %s %d images %.1f images/s %.1f MB/s", formats[i], n,
+					seconds > 0 ? n / seconds : 0.0, seconds > 0 ? pixelBytes[i].sum() / seconds / 1e6 : 0.0));
+		}
+		return s.append(')').toString();
+	}
+}
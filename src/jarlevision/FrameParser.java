@@ -0,0 +1,295 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Incremental parser for the Parlevision framing. Every message is prefixed
+ * with a 32-bit big endian size, followed by a header of three 32-bit
+ * integers (type, serial and number of arguments) and the arguments.
+ *
+ * The parser is a resumable state machine: read() pulls whatever the
+ * channel has available and continues where the previous call stopped, so
+ * partial size prefixes, headers and payloads are all handled the same way.
+ * Data is read straight into reusable direct buffers; the payload buffer
+ * only grows when a larger frame than seen before arrives. When a listener
+ * claims a frame, its buffer goes with it and the parser continues in a
+ * recycled or new buffer. Released frames are kept for reuse with their 
+ * buffers, up to MAX_RECYCLED of them; the next frame is received into 
+ * the buffer of a recycled frame and claiming it hands out that same 
+ * frame object again, so a warm parser allocates nothing.
+ *
+ * With a ProgressiveDecoder the parser hands every PROTO_FRAME to the
+ * decoder as its payload arrives, so images are converted during the 
+ * transfer.
+ */
+public class FrameParser {
+	
+	public interface Listener {
+		void frameReceived(Frame frame);
+	}
+
+	final static int STATE_SIZE    = 0;
+	final static int STATE_HEADER  = 1;
+	final static int STATE_PAYLOAD = 2;
+	
+	final static int DEFAULT_MAX_FRAME_SIZE = 256 * 1024 * 1024;
+	final static int MAX_RECYCLED = 8;
+	
+	private final Listener listener;
+	private final ByteBuffer sizeBuffer;
+	private final Frame frame;
+	private final ArrayBlockingQueue<Frame> recycled;
+	private final int initialCapacity;
+	private ByteBuffer payload;
+	// the recycled frame the payload buffer came with, handed out by claim()
+	private Frame spare;
+	private int state;
+	private boolean started;
+	private int maxFrameSize;
+	private ProgressiveDecoder progressive;
+	private boolean converting;
+
+	public FrameParser(Listener listener)
+	{
+		this(listener, 1024*1024);
+	}
+	
+	public FrameParser(Listener listener, int initialCapacity)
+	{
+		this.listener = listener;
+		this.sizeBuffer = ByteBuffer.allocateDirect(4);
+		this.payload = ByteBuffer.allocateDirect(initialCapacity);
+		this.initialCapacity = initialCapacity;
+		this.recycled = new ArrayBlockingQueue<Frame>(MAX_RECYCLED);
+		this.frame = new Frame();
+		this.frame.parser = this;
+		this.state = STATE_SIZE;
+		this.maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	}
+	
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Sets the decoder converting images while frames arrive, or null to 
+	 * leave all decoding to the listener. Must not be called while a frame
+	 * is being received.
+	 */
+	public void setProgressiveDecoder(ProgressiveDecoder progressive)
+	{
+		if( this.progressive != null )
+			this.progressive.reset();
+		this.progressive = progressive;
+		this.converting = false;
+	}
+	
+	/**
+	 * Discards any partially received frame.
+	 */
+	public void reset()
+	{
+		sizeBuffer.clear();
+		if( payload != null )
+			payload.clear();
+		state = STATE_SIZE;
+		started = false;
+		if( progressive != null )
+			progressive.reset();
+		converting = false;
+	}
+	
+	/**
+	 * Takes back a released frame and its buffer. Can be called from any 
+	 * thread. Frames beyond MAX_RECYCLED are left to the garbage collector.
+	 */
+	void recycle(Frame released)
+	{
+		recycled.offer(released);
+	}
+	
+	/**
+	 * @return the frame object for claiming the current frame
+	 */
+	Frame owner()
+	{
+		Frame owner = spare;
+		spare = null;
+		if( owner == null )
+			owner = new Frame();
+		owner.reuse();
+		return owner;
+	}
+	
+	/**
+	 * @return the buffer of a recycled frame of at least the given size or
+	 * a new one
+	 */
+	private ByteBuffer takeBuffer(int size)
+	{
+		Frame released;
+		while( (released = recycled.poll()) != null )
+		{
+			// frames with buffers which are too small are left to the garbage collector
+			if( released.buffer.capacity() >= size )
+			{
+				spare = released;
+				return released.buffer;
+			}
+		}
+		spare = null;
+		return ByteBuffer.allocateDirect(Math.max(size, initialCapacity));
+	}
+	
+	/**
+	 * Reads as much as is available from the channel and hands every
+	 * completed frame to the listener.
+	 * 
+	 * @return number of bytes read, or -1 when the channel reached end of stream
+	 * @throws IOException on read errors or when the stream is corrupt
+	 */
+	public int read(ReadableByteChannel channel) throws IOException
+	{
+		return read(channel, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Like read(ReadableByteChannel), but stops after reading budget bytes 
+	 * so several connections can take turns.
+	 */
+	public int read(ReadableByteChannel channel, int budget) throws IOException
+	{
+		int total = 0;
+		while( total < budget )
+		{
+			ByteBuffer target = state == STATE_SIZE ? sizeBuffer : payload;
+			int limit = target.limit();
+			if( target.remaining() > budget - total )
+				target.limit(target.position() + budget - total);
+			int n = channel.read(target);
+			target.limit(limit);
+			if( n < 0 )
+				return total == 0 ? -1 : total;
+			total += n;
+			
+			if( n > 0 && !started )
+			{
+				frame.startNanos = System.nanoTime();
+				started = true;
+			}
+			if( !advance() )
+				return total;
+		}
+		return total;
+	}
+	
+	/**
+	 * Runs the state machine as far as the buffered data allows.
+	 * 
+	 * @return true if the current buffer was filled completely and more 
+	 * data may be read, false if the parser is waiting for more input
+	 */
+	private boolean advance() throws IOException
+	{
+		switch( state )
+		{
+		case STATE_SIZE:
+			if( sizeBuffer.hasRemaining() )
+				return false;
+			
+			int size = sizeBuffer.getInt(0);
+			if( size < Frame.HEADER_SIZE || size > maxFrameSize )
+				throw new IOException("Corrupt stream, invalid frame size " + size);
+			
+			if( payload == null || payload.capacity() < size )
+				payload = takeBuffer(size);
+			payload.clear();
+			payload.limit(size);
+			frame.size = size;
+			state = STATE_HEADER;
+			return true;
+			
+		case STATE_HEADER:
+			if( payload.position() < Frame.HEADER_SIZE )
+				return false;
+			
+			frame.type    = payload.getInt(0);
+			frame.serial  = payload.getInt(4);
+			frame.numargs = payload.getInt(8);
+			state = STATE_PAYLOAD;
+			converting = progressive != null && frame.type == Frame.PROTO_FRAME;
+			if( converting )
+				progressive.start(frame.numargs);
+			// small frames may already be complete
+			return completeFrame();
+			
+		case STATE_PAYLOAD:
+			return completeFrame();
+			
+		default:
+			throw new IllegalStateException("Invalid parser state " + state);
+		}
+	}
+	
+	/**
+	 * Waits for the rest of the payload and hands the complete frame to 
+	 * the listener.
+	 * 
+	 * @return true if the frame was complete
+	 */
+	private boolean completeFrame()
+	{
+		if( payload.hasRemaining() )
+		{
+			if( converting )
+				progressive.update(payload);
+			return false;
+		}
+		
+		frame.buffer = payload;
+		frame.converted = converting ? progressive.finish(payload) : null;
+		converting = false;
+		frame.receivedNanos = System.nanoTime();
+		listener.frameReceived(frame);
+		if( frame.claimed )
+		{
+			frame.claimed = false;
+			payload = null;
+		}
+		else if( frame.converted != null )
+		{
+			// nobody took the frame, nor the images converted from it
+			frame.converted.release();
+		}
+		frame.converted = null;
+		
+		sizeBuffer.clear();
+		started = false;
+		state = STATE_SIZE;
+		return true;
+	}
+}
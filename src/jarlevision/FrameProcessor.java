@@ -0,0 +1,201 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * Runs a chain of ProcessingStages on the images of decoded frames, in 
+ * the decode workers, before the frames are displayed. Every stage works
+ * in place or writes into a buffer from the NativeBufferPool, so the 
+ * chain copies no image per frame. Images large enough are processed in
+ * bands of rows on the common ForkJoinPool.
+ *
+ * The time every stage takes, including waiting for its bands, is 
+ * recorded in a latency histogram named after the stage, which is logged
+ * and registered with the other client metrics.
+ *
+ * Stages can be added while frames are processed; they apply from the 
+ * next frame on.
+ */
+public class FrameProcessor {
+	
+	/**
+	 * The scratch states of one decode thread and the band task it runs.
+	 */
+	private static class Pass implements RowBands.Task {
+		Object[] states = new Object[0];
+		ProcessingStage stage;
+		Object state;
+		NativeBuffer source;
+		NativeBuffer target;
+		
+		public void run(int band, int fromRow, int toRow) {
+			stage.process(state, band, source, target, fromRow, toRow);
+		}
+	}
+	
+	private final NativeBufferPool pool;
+	private final ThreadLocal<Pass> passes;
+	private volatile ProcessingStage[] stages;
+	private volatile LatencyHistogram[] timings;
+	
+	public FrameProcessor()
+	{
+		this(NativeBufferPool.getDefault());
+	}
+	
+	/**
+	 * @param pool the pool stages take differently sized buffers from
+	 */
+	public FrameProcessor(NativeBufferPool pool)
+	{
+		this.pool = pool;
+		this.stages = new ProcessingStage[0];
+		this.timings = new LatencyHistogram[0];
+		this.passes = new ThreadLocal<Pass>() {
+			@Override
+			protected Pass initialValue() {
+				return new Pass();
+			}
+		};
+	}
+	
+	/**
+	 * @return the most bands an image is split in, which is the number of
+	 * per band slots a stage state needs
+	 */
+	public static int maxBands() {
+		return RowBands.maxBands();
+	}
+	
+	/**
+	 * Appends a stage to the chain.
+	 */
+	public synchronized void add(ProcessingStage stage)
+	{
+		ProcessingStage[] s = new ProcessingStage[stages.length + 1];
+		LatencyHistogram[] t = new LatencyHistogram[s.length];
+		System.arraycopy(stages, 0, s, 0, stages.length);
+		System.arraycopy(timings, 0, t, 0, timings.length);
+		s[stages.length] = stage;
+		t[timings.length] = ClientMetrics.getDefault().processingStage(stage.getName());
+		// timings first, a reader seeing the new stage sees its histogram
+		timings = t;
+		stages = s;
+	}
+	
+	public boolean isEmpty() {
+		return stages.length == 0;
+	}
+	
+	/**
+	 * @return the timing histogram of the stage at the given index
+	 */
+	public LatencyHistogram getTiming(int index) {
+		return timings[index];
+	}
+	
+	/**
+	 * Runs all stages on a decoded matrix. A stage which writes into a 
+	 * new buffer replaces the matrix's buffer with it.
+	 */
+	public void process(CvMatData matrix, int serial)
+	{
+		ProcessingStage[] s = stages;
+		if( s.length == 0 || !matrix.isValid() )
+			return;
+		LatencyHistogram[] t = timings;
+		
+		Pass pass = passes.get();
+		if( pass.states.length < s.length )
+		{
+			Object[] states = new Object[s.length];
+			System.arraycopy(pass.states, 0, states, 0, pass.states.length);
+			for( int i=pass.states.length; i < s.length; ++i )
+				states[i] = s[i].createState();
+			pass.states = states;
+		}
+		
+		for( int i=0; i < s.length; ++i )
+		{
+			long start = System.nanoTime();
+			NativeBuffer source = matrix.getBuffer();
+			NativeBuffer target = s[i].begin(pass.states[i], source, pool);
+			int bands = RowBands.bandCount(target.width, target.height);
+			
+			pass.stage  = s[i];
+			pass.state  = pass.states[i];
+			pass.source = source;
+			pass.target = target;
+			try
+			{
+				RowBands.run(target.height, bands, pass);
+			}
+			catch( RuntimeException e )
+			{
+				if( target != source )
+					target.release();
+				throw e;
+			}
+			finally
+			{
+				pass.stage  = null;
+				pass.state  = null;
+				pass.source = null;
+				pass.target = null;
+			}
+			
+			if( target != source )
+				matrix.replaceBuffer(target);
+			s[i].end(pass.states[i], serial, target, bands);
+			t[i].record(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Creates a built in stage from a command line specification: 
+	 * "histogram", "threshold:<level>", "crop:<x>,<y>,<width>x<height>" or
+	 * "downscale:<factor>". Anything else is the class name of a 
+	 * ProcessingStage with a public no argument constructor.
+	 */
+	public static ProcessingStage createStage(String spec) throws ReflectiveOperationException
+	{
+		int colon = spec.indexOf(':');
+		String name = colon < 0 ? spec : spec.substring(0, colon);
+		String value = colon < 0 ? "" : spec.substring(colon + 1);
+		if( name.equals("histogram") )
+			return new HistogramStage();
+		if( name.equals("threshold") )
+			return new ThresholdStage(Integer.parseInt(value));
+		if( name.equals("downscale") )
+			return new DownscaleStage(Integer.parseInt(value));
+		if( name.equals("crop") )
+		{
+			String[] parts = value.split("[,x]");
+			if( parts.length != 4 )
+				throw new IllegalArgumentException("Expected crop:<x>,<y>,<width>x<height>, got " + spec);
+			return new CropStage(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), 
+					Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+		}
+		return (ProcessingStage) Class.forName(spec).getConstructor().newInstance();
+	}
+}
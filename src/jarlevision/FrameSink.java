@@ -0,0 +1,45 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * Receives the frames of the headless client. Sinks are called on the I/O
+ * thread, one frame after the other, and the frame is acked once all 
+ * sinks returned, so a slow sink slows the server down instead of 
+ * queueing frames. Sinks which do heavy work hand it to their own thread.
+ *
+ * HeadlessClient creates sinks given by class name with their public no
+ * argument constructor.
+ */
+public interface FrameSink {
+	
+	/**
+	 * Handles a frame. The frame is only valid during the call.
+	 */
+	void frameReceived(IngestFrame frame);
+	
+	/**
+	 * Called once when the client stops.
+	 */
+	void close();
+}
@@ -0,0 +1,444 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the PROTO_FRAMEs of a Parlevision server as IngestFrames to
+ * any number of Flow subscribers, for embedding the client in a service 
+ * without Qt. Frames are decoded on the I/O thread; matrices and images
+ * are views on the receive buffer, which is kept until every subscriber
+ * is done with the frame. A frame is valid until onNext returns, so 
+ * subscribers which keep data copy it, see RawMatrix.copy().
+ *
+ * Subscriber demand drives the ack window. A frame counts as consumed 
+ * once it was delivered to every subscriber with the BLOCK policy, and 
+ * the window shrinks to the smallest demand those subscribers signalled.
+ * A subscriber which stops requesting therefore stops the server after 
+ * a window of frames instead of letting buffers grow. Subscribers with 
+ * DROP_OLDEST or DROP_NEWEST never hold the server back: when their 
+ * buffer is full a frame is dropped for them instead.
+ *
+ * Every subscriber is called from tasks on the executor, one signal at a
+ * time as the Flow specification requires. The publisher completes its
+ * subscribers when the server closes the connection and signals onError
+ * when the connection fails.
+ */
+public class FrameSource implements Flow.Publisher<IngestFrame>, NioTransport.Listener {
+	
+	public enum DropPolicy {
+		/** never drop, hold acks back until the subscriber asks for more */
+		BLOCK,
+		/** drop the oldest buffered frame when the buffer is full */
+		DROP_OLDEST,
+		/** drop the arriving frame when the buffer is full */
+		DROP_NEWEST
+	}
+	
+	/**
+	 * A received frame shared by the subscriptions it was queued for.
+	 */
+	private class Shared {
+		final IngestFrame frame = new IngestFrame();
+		final AtomicInteger refs = new AtomicInteger();
+		final AtomicInteger blocking = new AtomicInteger();
+		Frame owner;
+		
+		/**
+		 * Called by every subscription once it delivered or dropped the 
+		 * frame.
+		 */
+		void done(boolean blockingSubscription)
+		{
+			if( blockingSubscription && blocking.decrementAndGet() == 0 )
+				ackWindow.consumed();
+			if( refs.decrementAndGet() == 0 )
+				owner.release();
+		}
+	}
+	
+	private class Subscription implements Flow.Subscription, Runnable {
+		final Flow.Subscriber<? super IngestFrame> subscriber;
+		final DropPolicy policy;
+		final int capacity;
+		final ArrayDeque<Shared> buffer;
+		final AtomicInteger wip = new AtomicInteger();
+		long demand;
+		boolean subscribed;
+		boolean cancelled;
+		boolean completed;
+		Throwable error;
+		
+		Subscription(Flow.Subscriber<? super IngestFrame> subscriber, DropPolicy policy, int capacity)
+		{
+			this.subscriber = subscriber;
+			this.policy = policy;
+			this.capacity = capacity;
+			this.buffer = new ArrayDeque<Shared>();
+		}
+		
+		boolean blocking() {
+			return policy == DropPolicy.BLOCK;
+		}
+		
+		/**
+		 * Queues a frame. Called on the I/O thread.
+		 */
+		void offer(Shared shared)
+		{
+			Shared dropped = null;
+			synchronized( this )
+			{
+				if( cancelled )
+					dropped = shared;
+				else if( blocking() || buffer.size() < capacity )
+					buffer.add(shared);
+				else if( policy == DropPolicy.DROP_OLDEST )
+				{
+					dropped = buffer.poll();
+					buffer.add(shared);
+				}
+				else
+					dropped = shared;
+			}
+			if( dropped != null )
+			{
+				ClientMetrics.getDefault().frameDropped();
+				dropped.done(blocking());
+			}
+			signal();
+		}
+		
+		synchronized long demand() {
+			return cancelled ? Long.MAX_VALUE : demand;
+		}
+		
+		public void request(long n)
+		{
+			synchronized( this )
+			{
+				if( n <= 0 )
+					error = new IllegalArgumentException("Requested " + n + " frames, must be positive");
+				else
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			signal();
+		}
+		
+		public void cancel()
+		{
+			synchronized( this )
+			{
+				cancelled = true;
+			}
+			subscriptions.remove(this);
+			signal();
+		}
+		
+		void complete(Throwable cause)
+		{
+			synchronized( this )
+			{
+				completed = true;
+				if( error == null )
+					error = cause;
+			}
+			signal();
+		}
+		
+		void signal()
+		{
+			if( wip.getAndIncrement() == 0 )
+				executor.execute(this);
+		}
+		
+		/**
+		 * Delivers what the demand allows; runs on the executor, never 
+		 * concurrently with itself.
+		 */
+		public void run()
+		{
+			do
+			{
+				if( drain() )
+				{
+					// give subscribers sharing the executor their turn
+					executor.execute(this);
+					return;
+				}
+			}
+			while( wip.decrementAndGet() != 0 );
+		}
+		
+		/**
+		 * @return true if it stopped after BATCH frames with more to deliver
+		 */
+		private boolean drain()
+		{
+			if( !subscribed )
+			{
+				subscribed = true;
+				subscriber.onSubscribe(this);
+			}
+			for( int delivered = 0; ; ++delivered )
+			{
+				if( delivered == BATCH )
+					return true;
+				Shared next;
+				Throwable failure = null;
+				boolean finish = false;
+				synchronized( this )
+				{
+					if( cancelled || error != null && !completed )
+					{
+						// a protocol violation by the subscriber ends the subscription
+						failure = cancelled ? null : error;
+						cancelled = true;
+						next = null;
+					}
+					else if( demand > 0 && !buffer.isEmpty() )
+					{
+						next = buffer.poll();
+						if( demand != Long.MAX_VALUE )
+							--demand;
+					}
+					else
+					{
+						next = null;
+						finish = completed && buffer.isEmpty();
+						if( finish )
+						{
+							failure = error;
+							cancelled = true;
+						}
+					}
+				}
+				
+				if( next != null )
+				{
+					try
+					{
+						subscriber.onNext(next.frame);
+					}
+					catch( RuntimeException e )
+					{
+						// onNext must not throw, drop the subscriber rather than the stream
+						System.err.println("Subscriber failed in onNext, cancelling: " + e);
+						synchronized( this )
+						{
+							cancelled = true;
+						}
+					}
+					finally
+					{
+						next.done(blocking());
+					}
+					continue;
+				}
+				
+				if( cancelled )
+				{
+					subscriptions.remove(this);
+					releaseAll();
+					if( failure != null )
+						subscriber.onError(failure);
+					else if( finish )
+						subscriber.onComplete();
+				}
+				return false;
+			}
+		}
+		
+		private void releaseAll()
+		{
+			Shared stale;
+			while( true )
+			{
+				synchronized( this )
+				{
+					stale = buffer.poll();
+				}
+				if( stale == null )
+					return;
+				stale.done(blocking());
+			}
+		}
+	}
+	
+	/** frames delivered to a subscriber before its task yields */
+	private final static int BATCH = 16;
+	
+	private final Executor executor;
+	private final AckWindow ackWindow;
+	private final NioTransport transport;
+	private final IngestFrame.Decoder decoder;
+	private final List<Subscription> subscriptions;
+	
+	/**
+	 * Creates a source which calls its subscribers on the common pool, or 
+	 * on daemon threads of its own when the common pool has a single 
+	 * worker, in which a busy subscriber would starve the others. 
+	 * Subscribers which block in onNext should bring their own executor.
+	 * 
+	 * @param window most frames the server may send beyond what the 
+	 * subscribers asked for
+	 */
+	public FrameSource(int window)
+	{
+		this(window, defaultExecutor());
+	}
+	
+	public FrameSource(int window, Executor executor)
+	{
+		this.executor = executor;
+		this.decoder = new IngestFrame.Decoder();
+		this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+		this.ackWindow = new AckWindow(window);
+		this.ackWindow.setPolicy(new AckWindow.Policy() {
+			public int window(int configured, int current) {
+				return (int) Math.max(1, Math.min(configured, minimumDemand()));
+			}
+		});
+		this.transport = new NioTransport(this);
+		this.transport.setAckWindow(ackWindow);
+		
+		Capabilities capabilities = new Capabilities();
+		capabilities.setWindow(window);
+		transport.setCapabilities(capabilities);
+	}
+	
+	private static Executor defaultExecutor()
+	{
+		if( ForkJoinPool.getCommonPoolParallelism() > 1 )
+			return ForkJoinPool.commonPool();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "jarlevision-source-" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * @return the smallest outstanding demand of the blocking subscribers
+	 */
+	private long minimumDemand()
+	{
+		long min = Long.MAX_VALUE;
+		for( Subscription s : subscriptions )
+			if( s.blocking() )
+				min = Math.min(min, s.demand());
+		return min;
+	}
+	
+	public NioTransport getTransport() {
+		return transport;
+	}
+	
+	public void connect(String host, int port) {
+		transport.connectToHost(host, port);
+	}
+	
+	/**
+	 * Closes the connection, which completes all subscribers.
+	 */
+	public void close() {
+		transport.close();
+	}
+	
+	/**
+	 * Subscribes with the BLOCK policy.
+	 */
+	public void subscribe(Flow.Subscriber<? super IngestFrame> subscriber) {
+		subscribe(subscriber, DropPolicy.BLOCK, ackWindow.getConfiguredWindow());
+	}
+	
+	/**
+	 * @param bufferSize frames buffered for a dropping subscriber; a 
+	 * blocking subscriber never buffers more than the ack window allows
+	 */
+	public void subscribe(Flow.Subscriber<? super IngestFrame> subscriber, DropPolicy policy, int bufferSize)
+	{
+		if( subscriber == null )
+			throw new NullPointerException("subscriber");
+		Subscription subscription = new Subscription(subscriber, policy, Math.max(1, bufferSize));
+		subscriptions.add(subscription);
+		subscription.signal();
+	}
+	
+	/**
+	 * @return number of current subscribers
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+	
+	public void connected() {
+	}
+	
+	public void frameReceived(Frame received)
+	{
+		if( received.type != Frame.PROTO_FRAME )
+		{
+			ackWindow.consumed();
+			return;
+		}
+		
+		Shared shared = new Shared();
+		if( !decoder.decode(received, shared.frame) )
+			ClientMetrics.getDefault().corruptStream();
+		
+		Object[] current = subscriptions.toArray();
+		int blocking = 0;
+		for( Object s : current )
+			if( ((Subscription) s).blocking() )
+				++blocking;
+		// a reference for us while handing out, so the frame survives subscribers finishing early
+		shared.refs.set(current.length + 1);
+		shared.blocking.set(blocking + 1);
+		shared.owner = received.claim();
+		for( Object s : current )
+			((Subscription) s).offer(shared);
+		shared.done(true);
+	}
+	
+	public void disconnected(IOException cause)
+	{
+		for( Subscription s : subscriptions )
+			s.complete(cause);
+	}
+}
@@ -0,0 +1,262 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives frames from a Parlevision server without Qt, for ingest boxes 
+ * with nobody watching. The client only uses the Qt independent parts: 
+ * NioTransport, AckWindow and VariantDecoder. Frames are decoded on the 
+ * I/O thread into IngestFrames whose matrices and images are views on the
+ * receive buffer, handed to the FrameSinks and acked once the sinks are
+ * done with them. Nothing is converted for display, no pools are kept 
+ * and no Qt class is loaded, so the client starts fast and stays small.
+ *
+ * Usage: HeadlessClient host:port [--sink stats|shm:name|class name]... 
+ *        [--window n] [--duration s] [--stats s] [--record base] [--no-init]
+ *
+ * Without a --sink the stats sink is used, which prints frames/s, MB/s 
+ * and matrices/s every second. shm:name publishes the matrices to a 
+ * SharedFrameRing. Any other value is the class name of a FrameSink.
+ */
+public class HeadlessClient implements NioTransport.Listener {
+	
+	/**
+	 * Prints throughput once per second.
+	 */
+	public static class StatsSink implements FrameSink {
+		private long frames, bytes, matrices;
+		private long report = System.nanoTime() + 1000000000L;
+		
+		public void frameReceived(IngestFrame frame)
+		{
+			++frames;
+			bytes += frame.getSize() + 4;
+			for( int i=0; i < frame.arguments.size(); ++i )
+				if( frame.arguments.get(i) instanceof RawMatrix )
+					++matrices;
+			
+			long now = System.nanoTime();
+			if( now >= report )
+			{
+				System.out.printf("%d frames/s %.1f MB/s %d matrices/s%n", frames, bytes / 1048576.0, matrices);
+				frames = bytes = matrices = 0;
+				report = now + 1000000000L;
+			}
+		}
+		
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Publishes the matrices to a SharedFrameRing for local processes.
+	 */
+	public static class RingSink implements FrameSink {
+		private final SharedFrameRing ring;
+		
+		public RingSink(SharedFrameRing ring) {
+			this.ring = ring;
+		}
+		
+		public void frameReceived(IngestFrame frame)
+		{
+			for( int i=0; i < frame.arguments.size(); ++i )
+				if( frame.arguments.get(i) instanceof RawMatrix )
+					ring.publish(frame.serial, i, (RawMatrix) frame.arguments.get(i), frame.receivedNanos);
+		}
+		
+		public void close() {
+			ring.close();
+		}
+	}
+	
+	private final List<FrameSink> sinks;
+	private final NioTransport transport;
+	private final AckWindow ackWindow;
+	private final IngestFrame.Decoder decoder;
+	private final IngestFrame frame;
+	private final CountDownLatch disconnected;
+	private volatile IOException failure;
+	
+	/**
+	 * @param window number of frames the server may send ahead
+	 */
+	public HeadlessClient(List<FrameSink> sinks, int window)
+	{
+		this.sinks = new ArrayList<FrameSink>(sinks);
+		this.ackWindow = new AckWindow(window);
+		this.decoder = new IngestFrame.Decoder();
+		this.frame = new IngestFrame();
+		this.disconnected = new CountDownLatch(1);
+		this.transport = new NioTransport(this);
+		this.transport.setAckWindow(ackWindow);
+		
+		// raw matrices need no decoding here, so they are preferred
+		Capabilities capabilities = new Capabilities();
+		capabilities.setWindow(window);
+		transport.setCapabilities(capabilities);
+	}
+	
+	public NioTransport getTransport() {
+		return transport;
+	}
+	
+	public void connect(String host, int port) {
+		transport.connectToHost(host, port);
+	}
+	
+	/**
+	 * Waits until the server closes the connection or the time is up.
+	 * 
+	 * @return true if the connection was closed
+	 */
+	public boolean awaitDisconnect(long millis) throws InterruptedException
+	{
+		if( millis <= 0 )
+		{
+			disconnected.await();
+			return true;
+		}
+		return disconnected.await(millis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return why the connection was lost, or null if the server closed it
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * Disconnects and closes all sinks.
+	 */
+	public void close()
+	{
+		transport.close();
+		for( int i=0; i < sinks.size(); ++i )
+			sinks.get(i).close();
+	}
+	
+	public void connected() {
+		System.out.println("Connected to " + transport.getHost() + ":" + transport.getPort());
+	}
+	
+	public void frameReceived(Frame received)
+	{
+		if( !decoder.decode(received, frame) )
+			ClientMetrics.getDefault().corruptStream();
+		try
+		{
+			for( int i=0; i < sinks.size(); ++i )
+				sinks.get(i).frameReceived(frame);
+		}
+		finally
+		{
+			frame.arguments.clear();
+			ackWindow.consumed();
+		}
+	}
+	
+	public void disconnected(IOException cause)
+	{
+		failure = cause;
+		disconnected.countDown();
+	}
+	
+	/**
+	 * Creates the sink for a --sink value.
+	 */
+	static FrameSink createSink(String spec) throws Exception
+	{
+		if( spec.equals("stats") )
+			return new StatsSink();
+		if( spec.startsWith("shm:") )
+			return new RingSink(new SharedFrameRing(SharedFrameRing.path(spec.substring(4)), 
+					SharedFrameRing.DEFAULT_SLOTS, SharedFrameRing.DEFAULT_SLOT_SIZE));
+		return (FrameSink) Class.forName(spec).getConstructor().newInstance();
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		String address = null;
+		List<FrameSink> sinks = new ArrayList<FrameSink>();
+		int window = Client.ACK_WINDOW;
+		int duration = 0;
+		boolean init = true;
+		String record = null;
+		for( int i=0; i < args.length; ++i )
+		{
+			if( args[i].equals("--no-init") )
+				init = false;
+			else if( args[i].startsWith("--") && i+1 >= args.length )
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			else if( args[i].equals("--sink") )
+				sinks.add(createSink(args[++i]));
+			else if( args[i].equals("--window") )
+				window = Integer.parseInt(args[++i]);
+			else if( args[i].equals("--duration") )
+				duration = Integer.parseInt(args[++i]);
+			else if( args[i].equals("--stats") )
+				ClientMetrics.getDefault().startLogging(Integer.parseInt(args[++i]));
+			else if( args[i].equals("--record") )
+				record = args[++i];
+			else
+				address = args[i];
+		}
+		if( address == null || address.lastIndexOf(':') < 0 )
+		{
+			System.err.println("Usage: HeadlessClient host:port [--sink stats|shm:name|class]... "
+					+ "[--window n] [--duration s] [--stats s] [--record base] [--no-init]");
+			System.exit(1);
+		}
+		if( sinks.isEmpty() )
+			sinks.add(new StatsSink());
+		
+		HeadlessClient client = new HeadlessClient(sinks, window);
+		if( !init )
+			client.getTransport().setCapabilities(null);
+		StreamRecorder recorder = record != null ? new StreamRecorder(new File(record)) : null;
+		client.getTransport().setRecorder(recorder);
+		
+		int colon = address.lastIndexOf(':');
+		client.connect(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		boolean closed = client.awaitDisconnect(duration * 1000L);
+		client.close();
+		if( recorder != null )
+			recorder.close();
+		
+		if( client.getFailure() != null )
+		{
+			System.err.println("Connection failed: " + client.getFailure().getMessage());
+			System.exit(1);
+		}
+		System.out.println(closed ? "Server closed the connection." : "Done.");
+	}
+}
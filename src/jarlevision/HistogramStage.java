@@ -0,0 +1,129 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.util.Arrays;
+
+/**
+ * Counts the brightness of every pixel in 256 bins: the value of gray 
+ * images and the luma of 32-bit images. The image is not changed. Bands
+ * count into their own bins, which are added up once all bands are done.
+ * The histogram of the last processed frame can be read at any time and
+ * a listener is told about every histogram.
+ */
+public class HistogramStage implements ProcessingStage {
+	
+	public final static int BINS = 256;
+	
+	public interface Listener {
+		/**
+		 * Called on a decode thread for every processed image. The counts
+		 * are only valid during the call.
+		 */
+		void histogram(int serial, int[] counts);
+	}
+	
+	private static class State {
+		final int[][] bands = new int[FrameProcessor.maxBands()][BINS];
+		final int[] merged = new int[BINS];
+	}
+	
+	private final int[] latest = new int[BINS];
+	private int latestSerial = -1;
+	private volatile Listener listener;
+	
+	public String getName() {
+		return "histogram";
+	}
+	
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Copies the histogram of the last processed image.
+	 * 
+	 * @param counts array of at least BINS counts to copy to
+	 * @return serial of the frame it belongs to, -1 if there was none yet
+	 */
+	public synchronized int getLatest(int[] counts)
+	{
+		System.arraycopy(latest, 0, counts, 0, BINS);
+		return latestSerial;
+	}
+	
+	public Object createState() {
+		return new State();
+	}
+	
+	public NativeBuffer begin(Object state, NativeBuffer source, NativeBufferPool pool) {
+		return source;
+	}
+	
+	public void process(Object state, int band, NativeBuffer source, NativeBuffer target, int fromRow, int toRow)
+	{
+		int[] counts = ((State) state).bands[band];
+		Arrays.fill(counts, 0);
+		
+		int width = target.width;
+		long row = target.address() + (long) fromRow * target.bytesPerLine;
+		for( int y=fromRow; y < toRow; ++y, row += target.bytesPerLine )
+		{
+			if( NativeBuffer.bytesPerPixel(target.format) == 1 )
+			{
+				for( int x=0; x < width; ++x )
+					++counts[NativeMemory.getByte(row + x) & 0xFF];
+			}
+			else
+			{
+				for( int x=0; x < width; ++x )
+					++counts[ThresholdStage.luma(NativeMemory.getInt(row + 4L * x))];
+			}
+		}
+	}
+	
+	public void end(Object state, int serial, NativeBuffer target, int bands)
+	{
+		State s = (State) state;
+		System.arraycopy(s.bands[0], 0, s.merged, 0, BINS);
+		for( int b=1; b < bands; ++b )
+		{
+			int[] counts = s.bands[b];
+			for( int i=0; i < BINS; ++i )
+				s.merged[i] += counts[i];
+		}
+		
+		synchronized( this )
+		{
+			// frames finish out of order, keep the newest
+			if( latestSerial < 0 || serial - latestSerial > 0 )
+			{
+				System.arraycopy(s.merged, 0, latest, 0, BINS);
+				latestSerial = serial;
+			}
+		}
+		Listener l = listener;
+		if( l != null )
+			l.histogram(serial, s.merged);
+	}
+}
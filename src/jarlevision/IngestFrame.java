@@ -0,0 +1,170 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A frame as the headless client hands it to its FrameSinks and a 
+ * FrameSource to its subscribers. Arguments are String, Integer, Long, 
+ * Double, Boolean, RawMatrix or EncodedImage objects; matrices and images
+ * are views on the receive buffer. The frame and its views are only valid
+ * during the FrameSink or onNext call; receivers which keep data copy it.
+ */
+public class IngestFrame {
+	int type;
+	int serial;
+	int size;
+	long receivedNanos;
+	final List<Object> arguments = new ArrayList<Object>();
+	
+	public int getType() {
+		return type;
+	}
+	
+	public int getSerial() {
+		return serial;
+	}
+	
+	/**
+	 * @return size of the message in bytes, excluding the size prefix
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return System.nanoTime() when the frame was received
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+	
+	public List<Object> getArguments() {
+		return arguments;
+	}
+	
+	/**
+	 * Decodes received messages into IngestFrames, with matrices and 
+	 * images as views on the message. A decoder is used by one thread.
+	 */
+	static class Decoder extends VariantDecoder.Visitor {
+		private final VariantDecoder decoder;
+		private IngestFrame frame;
+		
+		Decoder()
+		{
+			decoder = new VariantDecoder();
+			decoder.register(RawMatrix.USER_TYPE);
+			decoder.register(EncodedImage.WRAPPER_TYPE);
+		}
+		
+		/**
+		 * Replaces the contents of a frame with a received message.
+		 * 
+		 * @return false if the arguments could not all be decoded
+		 */
+		boolean decode(Frame received, IngestFrame into)
+		{
+			into.type = received.type;
+			into.serial = received.serial;
+			into.size = received.size;
+			into.receivedNanos = received.receivedNanos;
+			into.arguments.clear();
+			if( received.type != Frame.PROTO_FRAME )
+				return true;
+			
+			ByteBuffer message = received.message();
+			message.position(Frame.HEADER_SIZE);
+			frame = into;
+			try
+			{
+				for( int i=0; i < received.numargs; ++i )
+					if( !decoder.read(message, this) )
+						return false;
+				return true;
+			}
+			finally
+			{
+				frame = null;
+			}
+		}
+		
+		@Override
+		public void onBoolean(boolean value) {
+			frame.arguments.add(Boolean.valueOf(value));
+		}
+		
+		@Override
+		public void onInt(int value) {
+			frame.arguments.add(Integer.valueOf(value));
+		}
+		
+		@Override
+		public void onUInt(long value) {
+			frame.arguments.add(Long.valueOf(value));
+		}
+		
+		@Override
+		public void onLong(long value) {
+			frame.arguments.add(Long.valueOf(value));
+		}
+		
+		@Override
+		public void onDouble(double value) {
+			frame.arguments.add(Double.valueOf(value));
+		}
+		
+		@Override
+		public void onString(CharSequence value)
+		{
+			if( value != null )
+				frame.arguments.add(value.toString());
+		}
+		
+		@Override
+		public void onImage(ByteBuffer png, int length)
+		{
+			if( length > 0 )
+				frame.arguments.add(EncodedImage.ofPng(png, length));
+		}
+		
+		@Override
+		public void onUserType(VariantDecoder.UserType type, ByteBuffer data, int length)
+		{
+			if( type == RawMatrix.USER_TYPE )
+				frame.arguments.add(RawMatrix.readFrom(data));
+			else if( type == EncodedImage.WRAPPER_TYPE )
+				frame.arguments.add(EncodedImage.readWrapper(data));
+		}
+		
+		@Override
+		public void onUnsupported(int type, CharSequence name)
+		{
+			System.out.println("Warning: unsupported variant " + (name != null ? name.toString() : "type " + type));
+			ClientMetrics.getDefault().unsupportedVariant();
+		}
+	}
+}
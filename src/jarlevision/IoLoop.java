@@ -0,0 +1,191 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An I/O thread driving any number of NioTransport connections through a
+ * single Selector. Several connections can share one loop, so the number
+ * of threads does not grow with the number of servers.
+ *
+ * Scheduling is fair: in every pass each readable connection reads at most
+ * readBudget bytes before the loop moves on to the next one. A connection
+ * with more data left stays readable and simply continues in the next 
+ * pass, so a fast camera cannot starve the others. At the end of each pass
+ * every connection flushes its pending acks and messages.
+ */
+public class IoLoop implements Runnable {
+	
+	final static int DEFAULT_READ_BUDGET = 256 * 1024;
+	
+	private final String name;
+	private final int readBudget;
+	private final ConcurrentLinkedQueue<NioTransport> added;
+	private final ConcurrentLinkedQueue<NioTransport> removed;
+	private final ArrayList<NioTransport> transports;
+	private volatile boolean running;
+	private Selector selector;
+	private Thread thread;
+	
+	public IoLoop(String name)
+	{
+		this(name, DEFAULT_READ_BUDGET);
+	}
+	
+	public IoLoop(String name, int readBudget)
+	{
+		this.name = name;
+		this.readBudget = readBudget;
+		this.added = new ConcurrentLinkedQueue<NioTransport>();
+		this.removed = new ConcurrentLinkedQueue<NioTransport>();
+		this.transports = new ArrayList<NioTransport>();
+	}
+	
+	public synchronized void start() throws IOException
+	{
+		if( thread != null )
+			return;
+		selector = Selector.open();
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Closes all connections and stops the thread.
+	 */
+	public synchronized void shutdown()
+	{
+		if( thread == null )
+			return;
+		running = false;
+		selector.wakeup();
+		if( thread != Thread.currentThread() )
+		{
+			try
+			{
+				thread.join();
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+	
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	 * @return number of connections driven by this loop
+	 */
+	public int getConnectionCount() {
+		return transports.size() + added.size();
+	}
+	
+	void add(NioTransport transport)
+	{
+		added.add(transport);
+		selector.wakeup();
+	}
+	
+	void remove(NioTransport transport)
+	{
+		removed.add(transport);
+		selector.wakeup();
+	}
+	
+	void wakeup()
+	{
+		selector.wakeup();
+	}
+	
+	public void run()
+	{
+		try
+		{
+			while( running )
+			{
+				NioTransport t;
+				while( (t = added.poll()) != null )
+				{
+					if( t.open(selector) )
+						transports.add(t);
+				}
+				while( (t = removed.poll()) != null )
+				{
+					if( transports.remove(t) )
+						t.closed(null);
+				}
+				
+				selector.select();
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while( it.hasNext() )
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					
+					NioTransport transport = (NioTransport) key.attachment();
+					if( !transport.handle(key, readBudget) )
+						transports.remove(transport);
+				}
+				
+				for( int i=transports.size() - 1; i >= 0; --i )
+				{
+					if( !transports.get(i).flush() )
+						transports.remove(i);
+				}
+			}
+		}
+		catch( IOException e )
+		{
+			System.err.println("I/O loop " + name + " failed: " + e.getMessage());
+		}
+		finally
+		{
+			for( int i=0; i < transports.size(); ++i )
+				transports.get(i).closed(null);
+			transports.clear();
+			NioTransport t;
+			while( (t = added.poll()) != null )
+				t.closed(null);
+			try
+			{
+				selector.close();
+			}
+			catch( IOException e )
+			{
+				// nothing sensible left to do
+			}
+		}
+	}
+}
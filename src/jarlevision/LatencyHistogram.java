@@ -0,0 +1,179 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram in the style of HdrHistogram. Values in 
+ * nanoseconds are counted in log-linear buckets: every power of two range 
+ * is split in 32 sub-buckets, so any recorded value is known within about 
+ * 3% while the whole range of a long fits in fewer than 2000 counters.
+ * Recording is a single atomic increment and never allocates.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	
+	final static int SUB_BUCKET_BITS = 5;
+	final static int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+	final static int BUCKETS         = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private final String name;
+	private final AtomicLongArray counts;
+	
+	public LatencyHistogram(String name)
+	{
+		this.name = name;
+		this.counts = new AtomicLongArray(BUCKETS);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	static int index(long value)
+	{
+		if( value < SUB_BUCKETS )
+			return value < 0 ? 0 : (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+	}
+	
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	static long upperBound(int index)
+	{
+		if( index < SUB_BUCKETS )
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long mantissa = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+	
+	public void record(long nanos)
+	{
+		counts.incrementAndGet(index(nanos));
+	}
+	
+	/**
+	 * @return a copy of the bucket counts
+	 */
+	long[] snapshot()
+	{
+		long[] copy = new long[BUCKETS];
+		for( int i=0; i < BUCKETS; ++i )
+			copy[i] = counts.get(i);
+		return copy;
+	}
+	
+	/**
+	 * @return the bucket counts, resetting them to zero
+	 */
+	long[] snapshotAndReset()
+	{
+		long[] copy = new long[BUCKETS];
+		for( int i=0; i < BUCKETS; ++i )
+			copy[i] = counts.getAndSet(i, 0);
+		return copy;
+	}
+	
+	static long count(long[] counts)
+	{
+		long total = 0;
+		for( int i=0; i < counts.length; ++i )
+			total += counts[i];
+		return total;
+	}
+	
+	/**
+	 * @return the value below which the given fraction of the counted 
+	 * values lie, in nanoseconds
+	 */
+	static long percentile(long[] counts, double fraction)
+	{
+		long total = count(counts);
+		if( total == 0 )
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for( int i=0; i < counts.length; ++i )
+		{
+			seen += counts[i];
+			if( seen >= rank )
+				return upperBound(i);
+		}
+		return upperBound(counts.length - 1);
+	}
+	
+	static double mean(long[] counts)
+	{
+		long total = 0;
+		double sum = 0;
+		for( int i=0; i < counts.length; ++i )
+		{
+			if( counts[i] == 0 )
+				continue;
+			total += counts[i];
+			// middle of the bucket
+			long high = upperBound(i);
+			long low = i == 0 ? 0 : upperBound(i - 1) + 1;
+			sum += counts[i] * ((low + high) / 2.0);
+		}
+		return total == 0 ? 0 : sum / total;
+	}
+	
+	private static double millis(double nanos)
+	{
+		return nanos / 1e6;
+	}
+	
+	public long getCount() {
+		return count(snapshot());
+	}
+	
+	public double getMeanMillis() {
+		return millis(mean(snapshot()));
+	}
+	
+	public double getP50Millis() {
+		return millis(percentile(snapshot(), 0.50));
+	}
+	
+	public double getP90Millis() {
+		return millis(percentile(snapshot(), 0.90));
+	}
+	
+	public double getP99Millis() {
+		return millis(percentile(snapshot(), 0.99));
+	}
+	
+	public double getMaxMillis() {
+		return millis(percentile(snapshot(), 1.0));
+	}
+	
+	public void reset()
+	{
+		for( int i=0; i < BUCKETS; ++i )
+			counts.set(i, 0);
+	}
+}
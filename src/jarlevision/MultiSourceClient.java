@@ -0,0 +1,397 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.trolltech.qt.core.Qt;
+import com.trolltech.qt.gui.*;
+
+/**
+ * Shows the streams of several Parlevision servers side by side.
+ *
+ * The connections are multiplexed on a few shared IoLoops instead of one
+ * thread per server and all sources decode on one shared executor. Each 
+ * source keeps its own parser, ack window and display slot, so a slow or
+ * misbehaving server only affects its own tile. Every source asks its 
+ * server for images no larger than a tile in its PROTO_INIT message.
+ *
+ * Usage: MultiSourceClient host:port [host:port ...]
+ */
+public class MultiSourceClient extends QWidget {
+	
+	/**
+	 * One connected server and its tile in the mosaic.
+	 */
+	public class Source {
+		final int index;
+		final String host;
+		final int port;
+		final AckWindow ackWindow;
+		final DecodePipeline pipeline;
+		final NioTransport transport;
+		final QLabel imageLabel;
+		// reused for every displayed image
+		final QPixmap pixmap;
+		final AtomicInteger frames;
+		final DisplayThrottle throttle;
+		ChangeDetector changeDetector;
+		final Capabilities capabilities;
+		final BackpressureController controller;
+		
+		/**
+		 * @param workers share of the decode executor this source can count on
+		 * @param maxLatencyNanos latency bound for the BackpressureController,
+		 * 0 for none
+		 */
+		Source(int index, String host, int port, IoLoop loop, int workers, long maxLatencyNanos)
+		{
+			this.index = index;
+			this.host = host;
+			this.port = port;
+			this.frames = new AtomicInteger();
+			
+			imageLabel = new QLabel();
+			imageLabel.setScaledContents(true);
+			imageLabel.setMinimumSize(TILE_WIDTH, TILE_HEIGHT);
+			imageLabel.setToolTip(host + ":" + port);
+			QImage img = new QImage(TILE_WIDTH, TILE_HEIGHT, QImage.Format.Format_RGB32);
+			img.fill(new QColor(Qt.GlobalColor.black).rgb());
+			pixmap = QPixmap.fromImage(img);
+			imageLabel.setPixmap(pixmap);
+			
+			throttle = new DisplayThrottle(new Runnable() {
+				public void run() { displayLatestFrame(Source.this); }
+			}, DisplayThrottle.DEFAULT_MAX_FPS);
+			
+			ackWindow = new AckWindow(Client.ACK_WINDOW);
+			pipeline = new DecodePipeline(decoder, ackWindow,
+					new Runnable() {
+						public void run() 
+						{
+							QApplication.invokeLater(new Runnable() {
+								public void run() { throttle.request(); }
+							});
+						}
+					},
+					decodeExecutor, Client.ACK_WINDOW);
+			transport = new NioTransport(new NioTransport.Listener() {
+				public void connected() {}
+				
+				public void frameReceived(Frame frame) 
+				{
+					frames.incrementAndGet();
+					pipeline.submit(frame.claim());
+				}
+				
+				public void disconnected(final IOException cause) 
+				{
+					pipeline.clear();
+					QApplication.invokeLater(new Runnable() {
+						public void run() { sourceDisconnected(Source.this, cause); }
+					});
+				}
+			}, loop);
+			transport.setAckWindow(ackWindow);
+			
+			// a tile never shows more than its own size
+			capabilities = new Capabilities();
+			capabilities.setMaxSize(TILE_WIDTH, TILE_HEIGHT);
+			capabilities.setMaxFps(DisplayThrottle.DEFAULT_MAX_FPS);
+			capabilities.setWindow(Client.ACK_WINDOW);
+			transport.setCapabilities(capabilities);
+			
+			if( maxLatencyNanos > 0 )
+			{
+				controller = new BackpressureController(workers, maxLatencyNanos);
+				controller.setMaxDisplayFps(capabilities.getMaxFps());
+				controller.setTransport(transport, capabilities);
+				ackWindow.setPolicy(controller);
+				pipeline.setController(controller);
+			}
+			else
+			{
+				controller = null;
+				ackWindow.setPolicy(new AckWindow.DecodeLagPolicy(pipeline, 1));
+			}
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public int getPort() {
+			return port;
+		}
+		
+		/**
+		 * @return number of frames received since the last call
+		 */
+		public int takeFrameCount() {
+			return frames.getAndSet(0);
+		}
+	}
+	
+	// servers sharing one I/O thread
+	final static int SOURCES_PER_LOOP = 8;
+	final static int TILE_WIDTH = 320;
+	final static int TILE_HEIGHT = 240;
+	
+	private final FrameDecoder decoder;
+	private final ExecutorService decodeExecutor;
+	private final IoLoop[] loops;
+	private final List<Source> sources;
+	private final QLabel statusLabel;
+	
+	/**
+	 * @param maxLatencyMillis bound on the receive to display latency of 
+	 * every source, 0 to only shrink the ack window when decoding lags
+	 */
+	MultiSourceClient(List<String> addresses, long maxLatencyMillis) throws IOException
+	{
+		decoder = new FrameDecoder();
+		decoder.setProcessor(new FrameProcessor());
+		// tiles scale their images, so they are decoded at about tile size
+		decoder.setDisplaySize(TILE_WIDTH, TILE_HEIGHT);
+		decodeExecutor = Executors.newFixedThreadPool(DecodePipeline.defaultWorkerCount(), 
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable r) 
+				{
+					Thread t = new Thread(r, "jarlevision-decode-" + count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		
+		int loopCount = Math.min((addresses.size() + SOURCES_PER_LOOP - 1) / SOURCES_PER_LOOP,
+								 Runtime.getRuntime().availableProcessors());
+		loops = new IoLoop[Math.max(1, loopCount)];
+		for( int i=0; i < loops.length; ++i )
+		{
+			loops[i] = new IoLoop("jarlevision-io-" + i);
+			loops[i].start();
+		}
+		
+		sources = new ArrayList<Source>();
+		statusLabel = new QLabel();
+		
+		int workers = Math.max(1, DecodePipeline.defaultWorkerCount() / Math.max(1, addresses.size()));
+		int columns = (int) Math.ceil(Math.sqrt(addresses.size()));
+		QGridLayout mainLayout = new QGridLayout();
+		mainLayout.setSpacing(2);
+		for( int i=0; i < addresses.size(); ++i )
+		{
+			String address = addresses.get(i);
+			int colon = address.lastIndexOf(':');
+			if( colon < 0 )
+				throw new IllegalArgumentException("Expected host:port, got " + address);
+			String host = address.substring(0, colon);
+			int port = Integer.parseInt(address.substring(colon + 1));
+			
+			Source source = new Source(i, host, port, loops[i % loops.length], workers, maxLatencyMillis * 1000000);
+			sources.add(source);
+			mainLayout.addWidget(source.imageLabel, i / columns, i % columns);
+		}
+		mainLayout.addWidget(statusLabel, (addresses.size() + columns - 1) / columns, 0, 1, columns);
+		setLayout(mainLayout);
+		setWindowTitle(tr("ParleVision Client - ") + addresses.size() + tr(" sources"));
+	}
+	
+	public List<Source> getSources() {
+		return sources;
+	}
+	
+	/**
+	 * Limits the refresh rate of every tile, 0 for no limit.
+	 */
+	void setMaxFps(int maxFps)
+	{
+		for( int i=0; i < sources.size(); ++i )
+		{
+			sources.get(i).throttle.setMaxFps(maxFps);
+			sources.get(i).capabilities.setMaxFps(maxFps);
+			if( sources.get(i).controller != null )
+				sources.get(i).controller.setMaxDisplayFps(maxFps);
+		}
+	}
+	
+	/**
+	 * Adds a stage the decoded images of all sources go through before 
+	 * they are displayed.
+	 */
+	void addProcessingStage(ProcessingStage stage)
+	{
+		decoder.getProcessor().add(stage);
+	}
+	
+	/**
+	 * Skips the pixmap upload for images identical to the one a tile shows.
+	 */
+	void setSkipUnchanged(boolean skip)
+	{
+		for( int i=0; i < sources.size(); ++i )
+			sources.get(i).changeDetector = skip ? new ChangeDetector() : null;
+	}
+	
+	void connectAll()
+	{
+		for( int i=0; i < sources.size(); ++i )
+		{
+			Source source = sources.get(i);
+			source.transport.connectToHost(source.host, source.port);
+		}
+		statusLabel.setText(tr("Connecting to ") + sources.size() + tr(" servers"));
+	}
+	
+	void disconnectAll()
+	{
+		for( int i=0; i < sources.size(); ++i )
+			sources.get(i).transport.close();
+		for( int i=0; i < loops.length; ++i )
+			loops[i].shutdown();
+		decodeExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Shows the newest decoded frame of a source. Runs on the GUI thread.
+	 */
+	void displayLatestFrame(Source source)
+	{
+		DecodedFrame frame = source.pipeline.takeLatest();
+		if( frame == null )
+			return;
+		long start = System.nanoTime();
+		
+		List<Object> arguments = frame.getArguments();
+		for( int i=0; i < arguments.size(); ++i )
+		{
+			Object object = arguments.get(i);
+			
+			// the first image argument of each source is shown in its tile
+			if( object instanceof QImage || object instanceof CvMatData )
+			{
+				showImage(source, object);
+				break;
+			}
+		}
+		
+		// all tiles are the same size, follow it when the window is resized
+		decoder.setDisplaySize(source.imageLabel.width(), source.imageLabel.height());
+		
+		long now = System.nanoTime();
+		ClientMetrics.getDefault().decodedToDisplayed.record(now - frame.getDecodedNanos());
+		if( source.controller != null )
+			source.controller.displayed(now - start, now - frame.getReceivedNanos());
+		boolean corrupt = frame.isCorrupt();
+		frame.dispose();
+		
+		if( corrupt )
+		{
+			source.imageLabel.setToolTip(source.host + ":" + source.port + tr(" - datastream corrupt"));
+			System.err.println(source.host + ":" + source.port + ": datastream corrupt, closing the connection");
+			source.transport.close();
+		}
+	}
+	
+	private void showImage(Source source, Object image)
+	{
+		ClientMetrics metrics = ClientMetrics.getDefault();
+		QImage img = image instanceof CvMatData ? ((CvMatData) image).getImage() : (QImage) image;
+		if( source.changeDetector != null )
+		{
+			boolean changed = image instanceof CvMatData 
+					? source.changeDetector.update(((CvMatData) image).getBuffer())
+					: source.changeDetector.update(img);
+			if( !changed )
+			{
+				metrics.frameUnchanged();
+				return;
+			}
+		}
+		source.pixmap.convertFromImage(img);
+		source.imageLabel.setPixmap(source.pixmap);
+		metrics.frameDisplayed();
+	}
+	
+	void sourceDisconnected(Source source, IOException cause)
+	{
+		if( source.changeDetector != null )
+			source.changeDetector.reset();
+		if( source.controller != null )
+			source.controller.reset();
+		String reason = cause != null ? cause.getMessage() : tr("closed by server");
+		source.imageLabel.setToolTip(source.host + ":" + source.port + " - " + reason);
+		statusLabel.setText(source.host + ":" + source.port + tr(" disconnected: ") + reason);
+	}
+	
+	public static void main(String[] args) throws IOException, ReflectiveOperationException {
+		QApplication.initialize(args);
+		ClientMetrics.getDefault().register();
+		
+		List<String> addresses = new ArrayList<String>();
+		int maxFps = DisplayThrottle.DEFAULT_MAX_FPS;
+		boolean skipUnchanged = false;
+		List<ProcessingStage> stages = new ArrayList<ProcessingStage>();
+		long maxLatency = BackpressureController.DEFAULT_MAX_LATENCY_NANOS / 1000000;
+		for( int i=0; i < args.length; ++i )
+		{
+			if( args[i].equals("--stats") && i+1 < args.length )
+				ClientMetrics.getDefault().startLogging(Integer.parseInt(args[++i]));
+			else if( args[i].equals("--max-fps") && i+1 < args.length )
+				maxFps = Integer.parseInt(args[++i]);
+			else if( args[i].equals("--max-latency") && i+1 < args.length )
+				maxLatency = Long.parseLong(args[++i]);
+			else if( args[i].equals("--skip-unchanged") )
+				skipUnchanged = true;
+			else if( args[i].equals("--process") && i+1 < args.length )
+				stages.add(FrameProcessor.createStage(args[++i]));
+			else
+				addresses.add(args[i]);
+		}
+		if( addresses.isEmpty() )
+		{
+			System.err.println("Usage: MultiSourceClient [--stats <seconds>] [--max-fps <n>] [--max-latency <ms>] [--skip-unchanged] "
+					+ "[--process <stage>]... host:port [host:port ...]");
+			System.exit(1);
+		}
+		
+		MultiSourceClient client = new MultiSourceClient(addresses, maxLatency);
+		client.setMaxFps(maxFps);
+		client.setSkipUnchanged(skipUnchanged);
+		for( ProcessingStage stage : stages )
+			client.addProcessingStage(stage);
+		client.show();
+		client.connectAll();
+		
+		QApplication.exec();
+		
+		client.disconnectAll();
+	}
+}
@@ -0,0 +1,138 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.trolltech.qt.QNativePointer;
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * A reference counted block of native memory holding one image, together
+ * with the QImage that wraps it. Buffers are handed out by a 
+ * NativeBufferPool and go back to it when the last reference is released,
+ * so the QImage can be reused for the next frame of the same size.
+ */
+public class NativeBuffer {
+	
+	final NativeBufferPool pool;
+	final int width;
+	final int height;
+	final QImage.Format format;
+	final int bytesPerLine;
+	final int byteCount;
+	final AtomicInteger refs;
+	QNativePointer data;
+	QImage image;
+	long lastUsed;
+	
+	NativeBuffer(NativeBufferPool pool, int width, int height, QImage.Format format)
+	{
+		this.pool = pool;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.bytesPerLine = width * bytesPerPixel(format);
+		this.byteCount = bytesPerLine * height;
+		this.refs = new AtomicInteger();
+		this.data = new QNativePointer(QNativePointer.Type.Byte, byteCount);
+	}
+	
+	static int bytesPerPixel(QImage.Format format)
+	{
+		return format == QImage.Format.Format_Indexed8 ? 1 : 4;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public QImage.Format getFormat() {
+		return format;
+	}
+	
+	public int getBytesPerLine() {
+		return bytesPerLine;
+	}
+	
+	public int getByteCount() {
+		return byteCount;
+	}
+	
+	/**
+	 * @return the address of the first pixel
+	 */
+	public long address() {
+		return data.pointer();
+	}
+	
+	/**
+	 * @return the QImage wrapping this buffer. It is only valid as long as
+	 * a reference to the buffer is held.
+	 */
+	public QImage getImage()
+	{
+		if( image == null )
+			image = new QImage(data, width, height, bytesPerLine, format);
+		return image;
+	}
+	
+	/**
+	 * Adds a reference to this buffer.
+	 */
+	public NativeBuffer retain()
+	{
+		if( refs.getAndIncrement() <= 0 )
+			throw new IllegalStateException("NativeBuffer retained after release");
+		return this;
+	}
+	
+	/**
+	 * Drops a reference. The last release returns the buffer to its pool.
+	 */
+	public void release()
+	{
+		int count = refs.decrementAndGet();
+		if( count == 0 )
+			pool.recycle(this);
+		else if( count < 0 )
+			throw new IllegalStateException("NativeBuffer released too often");
+	}
+	
+	/**
+	 * Disposes the image and drops the native memory. Like before pooling
+	 * the memory itself is freed when the QNativePointer is collected.
+	 */
+	void dispose()
+	{
+		if( image != null )
+		{
+			image.dispose();
+			image = null;
+		}
+		data = null;
+	}
+}
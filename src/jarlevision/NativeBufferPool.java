@@ -0,0 +1,232 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * Pool of native image buffers, grouped in size classes of width, height 
+ * and format. A steady stream of equally sized frames keeps reusing the 
+ * same few buffers instead of allocating native memory for every frame.
+ *
+ * The pool keeps idle buffers up to a memory cap. The cap limits what the
+ * pool holds on to; buffers which are in use are never taken away, so the
+ * total can temporarily exceed it. When idle memory has to make room, the
+ * least recently used size classes are evicted first. A size class which
+ * loses its last idle buffer that way is dropped, so sizes which are no
+ * longer used, e.g. after the resolution changed, do not pile up.
+ */
+public class NativeBufferPool implements NativeBufferPoolMBean {
+
+	final static long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	
+	private static final NativeBufferPool defaultPool = new NativeBufferPool(DEFAULT_MAX_BYTES);
+	
+	private static class SizeClass {
+		final int width;
+		final int height;
+		final QImage.Format format;
+		final ArrayDeque<NativeBuffer> idle = new ArrayDeque<NativeBuffer>();
+		long lastUsed;
+		
+		SizeClass(int width, int height, QImage.Format format)
+		{
+			this.width = width;
+			this.height = height;
+			this.format = format;
+		}
+	}
+	
+	// only classes with idle or recently acquired buffers are kept, usually
+	// a handful, so a linear scan beats hashing
+	private final ArrayList<SizeClass> classes = new ArrayList<SizeClass>();
+	private long maxBytes;
+	private long allocatedBytes;
+	private long idleBytes;
+	private long tick;
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	public NativeBufferPool(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @return the pool shared by all CvMatData instances by default
+	 */
+	public static NativeBufferPool getDefault() {
+		return defaultPool;
+	}
+	
+	/**
+	 * Borrows a buffer with a single reference. Call release() on it to 
+	 * return it to the pool.
+	 */
+	public synchronized NativeBuffer acquire(int width, int height, QImage.Format format)
+	{
+		SizeClass c = sizeClass(width, height, format);
+		c.lastUsed = ++tick;
+		
+		NativeBuffer buffer = c.idle.pollFirst();
+		if( buffer != null )
+		{
+			++hits;
+			idleBytes -= buffer.byteCount;
+		}
+		else
+		{
+			++misses;
+			buffer = new NativeBuffer(this, width, height, format);
+			allocatedBytes += buffer.byteCount;
+			trim(maxBytes);
+		}
+		buffer.lastUsed = tick;
+		buffer.refs.set(1);
+		return buffer;
+	}
+	
+	synchronized void recycle(NativeBuffer buffer)
+	{
+		if( allocatedBytes > maxBytes )
+		{
+			evict(buffer);
+			SizeClass c = find(buffer.width, buffer.height, buffer.format);
+			if( c != null && c.idle.isEmpty() )
+				classes.remove(c);
+			return;
+		}
+		// most recently used first, so the same buffers keep cycling
+		SizeClass c = sizeClass(buffer.width, buffer.height, buffer.format);
+		c.idle.addFirst(buffer);
+		idleBytes += buffer.byteCount;
+	}
+	
+	/**
+	 * Evicts idle buffers, least recently used size class first, until 
+	 * the allocated memory fits in limit or no idle buffers are left.
+	 */
+	private void trim(long limit)
+	{
+		while( allocatedBytes > limit && idleBytes > 0 )
+		{
+			SizeClass oldest = null;
+			for( int i=0; i < classes.size(); ++i )
+			{
+				SizeClass c = classes.get(i);
+				if( !c.idle.isEmpty() && (oldest == null || c.lastUsed < oldest.lastUsed) )
+					oldest = c;
+			}
+			NativeBuffer buffer = oldest.idle.pollLast();
+			idleBytes -= buffer.byteCount;
+			evict(buffer);
+			if( oldest.idle.isEmpty() )
+				classes.remove(oldest);
+		}
+	}
+	
+	private void evict(NativeBuffer buffer)
+	{
+		++evictions;
+		allocatedBytes -= buffer.byteCount;
+		buffer.dispose();
+	}
+	
+	/**
+	 * @return the size class, created if there is none yet
+	 */
+	private SizeClass sizeClass(int width, int height, QImage.Format format)
+	{
+		SizeClass c = find(width, height, format);
+		if( c == null )
+		{
+			c = new SizeClass(width, height, format);
+			classes.add(c);
+		}
+		return c;
+	}
+	
+	private SizeClass find(int width, int height, QImage.Format format)
+	{
+		for( int i=0; i < classes.size(); ++i )
+		{
+			SizeClass c = classes.get(i);
+			if( c.width == width && c.height == height && c.format == format )
+				return c;
+		}
+		return null;
+	}
+	
+	/**
+	 * Evicts all idle buffers.
+	 */
+	public synchronized void clear()
+	{
+		trim(0);
+		classes.clear();
+	}
+	
+	public synchronized void setMaxBytes(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		trim(maxBytes);
+	}
+	
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * @return native memory of all buffers created by this pool and not 
+	 * yet evicted, in use or idle
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	public synchronized long getIdleBytes() {
+		return idleBytes;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "NativeBufferPool(hits " + hits + ", misses " + misses + ", evictions " + evictions 
+			+ ", " + allocatedBytes / 1024 + " KB allocated, " + idleBytes / 1024 + " KB idle)";
+	}
+}
@@ -0,0 +1,294 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk transfers between the Java heap and native memory. QNativePointer 
+ * only offers per element accessors, each of which is a JNI call. Copying 
+ * through the raw address of the native buffer moves a whole row or frame 
+ * in a single transfer instead.
+ *
+ * This is the only class which touches sun.misc.Unsafe; everything else,
+ * the pixel kernels and processing stages included, reads and writes 
+ * native memory through the accessors here. Unsafe is looked up by name 
+ * and called through constant method handles, which the JIT compiles to 
+ * the same plain loads and stores, so the build does not depend on an 
+ * internal API.
+ *
+ * None of these methods check bounds. Callers have to make sure the native
+ * range lies within memory they own.
+ */
+final class NativeMemory {
+	
+	static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	
+	private static final long BYTE_ARRAY_OFFSET;
+	private static final long INT_ARRAY_OFFSET;
+	private static final long BUFFER_ADDRESS_OFFSET;
+	
+	private static final MethodHandle GET_BYTE;
+	private static final MethodHandle PUT_BYTE;
+	private static final MethodHandle GET_INT;
+	private static final MethodHandle PUT_INT;
+	private static final MethodHandle GET_LONG;
+	private static final MethodHandle GET_FIELD_LONG;
+	private static final MethodHandle COPY;
+	private static final MethodHandle COPY_NATIVE;
+	private static final MethodHandle ALLOCATE;
+	private static final MethodHandle FREE;
+	
+	static {
+		try
+		{
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field f = type.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Object unsafe = f.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			
+			GET_BYTE = lookup.findVirtual(type, "getByte", MethodType.methodType(byte.class, long.class)).bindTo(unsafe);
+			PUT_BYTE = lookup.findVirtual(type, "putByte", MethodType.methodType(void.class, long.class, byte.class)).bindTo(unsafe);
+			GET_INT  = lookup.findVirtual(type, "getInt", MethodType.methodType(int.class, long.class)).bindTo(unsafe);
+			PUT_INT  = lookup.findVirtual(type, "putInt", MethodType.methodType(void.class, long.class, int.class)).bindTo(unsafe);
+			GET_LONG = lookup.findVirtual(type, "getLong", MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+			GET_FIELD_LONG = lookup.findVirtual(type, "getLong", 
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			COPY = lookup.findVirtual(type, "copyMemory", 
+					MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+			COPY_NATIVE = lookup.findVirtual(type, "copyMemory", 
+					MethodType.methodType(void.class, long.class, long.class, long.class)).bindTo(unsafe);
+			ALLOCATE = lookup.findVirtual(type, "allocateMemory", MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+			FREE     = lookup.findVirtual(type, "freeMemory", MethodType.methodType(void.class, long.class)).bindTo(unsafe);
+			
+			MethodHandle arrayBaseOffset = lookup.findVirtual(type, "arrayBaseOffset", 
+					MethodType.methodType(int.class, Class.class)).bindTo(unsafe);
+			MethodHandle objectFieldOffset = lookup.findVirtual(type, "objectFieldOffset", 
+					MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+			BYTE_ARRAY_OFFSET = (int) arrayBaseOffset.invokeExact((Class<?>) byte[].class);
+			INT_ARRAY_OFFSET  = (int) arrayBaseOffset.invokeExact((Class<?>) int[].class);
+			BUFFER_ADDRESS_OFFSET = (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+		}
+		catch( Throwable e )
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private NativeMemory()
+	{
+	}
+	
+	/**
+	 * Wraps what a method handle threw. Unsafe accessors do not throw, so 
+	 * this does not happen in practice.
+	 */
+	private static Error failed(Throwable e)
+	{
+		if( e instanceof Error )
+			return (Error) e;
+		return new AssertionError(e);
+	}
+	
+	static byte getByte(long address)
+	{
+		try
+		{
+			return (byte) GET_BYTE.invokeExact(address);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	static void putByte(long address, byte value)
+	{
+		try
+		{
+			PUT_BYTE.invokeExact(address, value);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * @return the int at the address, in native byte order
+	 */
+	static int getInt(long address)
+	{
+		try
+		{
+			return (int) GET_INT.invokeExact(address);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * Stores an int in native byte order.
+	 */
+	static void putInt(long address, int value)
+	{
+		try
+		{
+			PUT_INT.invokeExact(address, value);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * @return the long at the address, in native byte order
+	 */
+	static long getLong(long address)
+	{
+		try
+		{
+			return (long) GET_LONG.invokeExact(address);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * Copies length bytes from src, starting at offset, to the native address.
+	 */
+	static void copy(byte[] src, int offset, long address, int length)
+	{
+		assert( offset >= 0 && offset + length <= src.length );
+		copy(src, BYTE_ARRAY_OFFSET + offset, null, address, length);
+	}
+	
+	/**
+	 * Copies length bytes from the native address to dst, starting at offset.
+	 */
+	static void copy(long address, byte[] dst, int offset, int length)
+	{
+		assert( offset >= 0 && offset + length <= dst.length );
+		copy(null, address, dst, BYTE_ARRAY_OFFSET + offset, length);
+	}
+	
+	/**
+	 * Copies count ints from src, starting at offset, to the native address.
+	 * The ints are stored in native byte order, like QNativePointer.setIntAt().
+	 */
+	static void copy(int[] src, int offset, long address, int count)
+	{
+		assert( offset >= 0 && offset + count <= src.length );
+		copy(src, INT_ARRAY_OFFSET + 4L * offset, null, address, 4L * count);
+	}
+	
+	/**
+	 * Copies count ints in native byte order from the native address to 
+	 * dst, starting at offset.
+	 */
+	static void copy(long address, int[] dst, int offset, int count)
+	{
+		assert( offset >= 0 && offset + count <= dst.length );
+		copy(null, address, dst, INT_ARRAY_OFFSET + 4L * offset, 4L * count);
+	}
+	
+	private static void copy(Object src, long srcOffset, Object dst, long dstOffset, long length)
+	{
+		try
+		{
+			COPY.invokeExact(src, srcOffset, dst, dstOffset, length);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * Copies length bytes between two native addresses.
+	 */
+	static void copy(long src, long dst, long length)
+	{
+		try
+		{
+			COPY_NATIVE.invokeExact(src, dst, length);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	/**
+	 * @return the native address of the first element of a direct buffer,
+	 * which includes the offset of a slice
+	 */
+	static long address(ByteBuffer buffer)
+	{
+		if( !buffer.isDirect() )
+			throw new IllegalArgumentException("Not a direct buffer");
+		try
+		{
+			return (long) GET_FIELD_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	static long allocate(long bytes)
+	{
+		try
+		{
+			return (long) ALLOCATE.invokeExact(bytes);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+	
+	static void free(long address)
+	{
+		try
+		{
+			FREE.invokeExact(address);
+		}
+		catch( Throwable e )
+		{
+			throw failed(e);
+		}
+	}
+}
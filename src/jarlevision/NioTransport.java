@@ -0,0 +1,449 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Non-blocking replacement for QTcpSocket. An IoLoop thread drives the 
+ * SocketChannel through a Selector, feeds incoming data to a FrameParser 
+ * and writes queued outgoing messages. Network throughput therefore no 
+ * longer depends on the Qt event loop.
+ *
+ * A transport either runs its own IoLoop or shares one with other 
+ * connections, see MultiSourceClient. Each connection has its own parser,
+ * serial tracking and ack stream.
+ *
+ * With setCapabilities() the transport opens every connection with a 
+ * PROTO_INIT message. A PROTO_INIT reply is kept as the negotiated
+ * capabilities and not passed to the listener; servers which ignore INIT
+ * leave them null.
+ *
+ * All Listener callbacks are made from the I/O thread. Listeners which 
+ * touch widgets have to hand the work over to the GUI thread themselves,
+ * e.g. using QApplication.invokeLater().
+ */
+public class NioTransport implements FrameParser.Listener {
+	
+	public interface Listener {
+		void connected();
+		void frameReceived(Frame frame);
+		void disconnected(IOException cause);
+	}
+	
+	private final Listener listener;
+	private final FrameParser parser;
+	private final ConcurrentLinkedQueue<ByteBuffer> outgoing;
+	private final ByteBuffer acks;
+	private final IoLoop sharedLoop;
+	private AckWindow ackWindow;
+	private volatile StreamRecorder recorder;
+	private volatile Capabilities capabilities;
+	private volatile Capabilities negotiated;
+	private volatile boolean running;
+	private volatile boolean connected;
+	private volatile IoLoop loop;
+	private CountDownLatch closed;
+	private IOException failure;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private String host;
+	private int port;
+	
+	/**
+	 * Creates a transport running its own I/O thread.
+	 */
+	public NioTransport(Listener listener)
+	{
+		this(listener, null);
+	}
+	
+	/**
+	 * Creates a transport driven by a shared, started IoLoop.
+	 */
+	public NioTransport(Listener listener, IoLoop loop)
+	{
+		this.listener = listener;
+		this.sharedLoop = loop;
+		this.parser = new FrameParser(this);
+		this.outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.acks = ByteBuffer.allocateDirect(64 * AckWindow.ACK_MESSAGE_SIZE);
+		this.acks.limit(0);
+	}
+	
+	/**
+	 * Lets the transport acknowledge received frames through the given 
+	 * window. Ready acks are coalesced into a single write per event loop
+	 * pass. Must be set before connecting.
+	 */
+	public void setAckWindow(AckWindow window)
+	{
+		ackWindow = window;
+		window.setWakeup(new Runnable() {
+			public void run() 
+			{
+				IoLoop l = loop;
+				if( l != null )
+					l.wakeup();
+			}
+		});
+	}
+	
+	/**
+	 * Converts images while frames are received, on the I/O thread, or
+	 * leaves all decoding to the listener when null. Must be set before 
+	 * connecting.
+	 */
+	public void setProgressiveDecoder(ProgressiveDecoder decoder) {
+		parser.setProgressiveDecoder(decoder);
+	}
+	
+	/**
+	 * Records every received frame, or stops recording when null. The 
+	 * caller remains responsible for closing the recorder.
+	 */
+	public void setRecorder(StreamRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * Sets the capabilities to announce in a PROTO_INIT message when a 
+	 * connection is established, or null to not send one.
+	 */
+	public void setCapabilities(Capabilities capabilities) {
+		this.capabilities = capabilities;
+	}
+	
+	public Capabilities getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * @return what the server said it will send in reply to our 
+	 * capabilities, or null if it has not replied (yet)
+	 */
+	public Capabilities getNegotiated() {
+		return negotiated;
+	}
+	
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * Starts connecting to the given host. The connected() callback is 
+	 * called once the connection is established.
+	 */
+	public synchronized void connectToHost(String host, int port)
+	{
+		close();
+		
+		this.host = host;
+		this.port = port;
+		this.failure = null;
+		this.closed = new CountDownLatch(1);
+		this.running = true;
+		
+		IoLoop l = sharedLoop;
+		try
+		{
+			if( l == null )
+			{
+				l = new IoLoop("jarlevision-io " + host + ":" + port);
+				l.start();
+			}
+		}
+		catch( IOException e )
+		{
+			running = false;
+			closed.countDown();
+			listener.disconnected(e);
+			return;
+		}
+		loop = l;
+		l.add(this);
+	}
+	
+	/**
+	 * Closes the connection and, for a transport with its own I/O thread,
+	 * stops the thread. Waits until the connection is closed unless it is
+	 * called from the I/O thread itself.
+	 */
+	public synchronized void close()
+	{
+		IoLoop l = loop;
+		if( l == null )
+			return;
+		
+		if( running )
+			l.remove(this);
+		if( !l.inLoop() )
+		{
+			try
+			{
+				closed.await();
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		if( l != sharedLoop )
+			l.shutdown();
+		loop = null;
+	}
+	
+	/**
+	 * Queues a message for sending. The buffer is sent from its position to
+	 * its limit and must not be modified by the caller afterwards. Can be 
+	 * called from any thread.
+	 */
+	public void send(ByteBuffer message)
+	{
+		outgoing.add(message);
+		IoLoop l = loop;
+		if( l != null )
+			l.wakeup();
+	}
+	
+	/**
+	 * Opens the channel and registers it. Called on the I/O thread.
+	 * 
+	 * @return false if opening failed
+	 */
+	boolean open(Selector selector)
+	{
+		if( !running )
+		{
+			closed(null);
+			return false;
+		}
+		try
+		{
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(host, port));
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			parser.reset();
+			negotiated = null;
+			acks.limit(0);
+			if( ackWindow != null )
+				ackWindow.reset();
+			return true;
+		}
+		catch( UnresolvedAddressException e )
+		{
+			failure = new UnknownHostException(host);
+		}
+		catch( IOException e )
+		{
+			failure = e;
+		}
+		closed(failure);
+		return false;
+	}
+	
+	/**
+	 * Handles a ready key, reading at most budget bytes. Called on the I/O
+	 * thread.
+	 * 
+	 * @return false if the connection was closed
+	 */
+	boolean handle(SelectionKey key, int budget)
+	{
+		try
+		{
+			if( key.isConnectable() && channel.finishConnect() )
+			{
+				connected = true;
+				key.interestOps(SelectionKey.OP_READ);
+				Capabilities caps = capabilities;
+				if( caps != null )
+					outgoing.add(caps.toMessage());
+				listener.connected();
+			}
+			if( key.isValid() && key.isReadable() )
+			{
+				if( parser.read(channel, budget) < 0 )
+				{
+					closed(null);
+					return false;
+				}
+			}
+			return true;
+		}
+		catch( IOException e )
+		{
+			closed(e);
+			return false;
+		}
+		catch( AckWindow.OverrunException e )
+		{
+			closed(new IOException(e.getMessage()));
+			return false;
+		}
+		catch( RuntimeException e )
+		{
+			// a listener failed on the shared I/O thread: drop this 
+			// connection only, the others on the loop keep running
+			System.err.println("Closing " + host + ":" + port + " after " + e);
+			closed(new IOException(e.toString(), e));
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes the ready acks and as much of the outgoing queue as the socket
+	 * accepts and registers interest in OP_WRITE for the remainder. Called
+	 * on the I/O thread at the end of each pass.
+	 * 
+	 * @return false if the connection was closed
+	 */
+	boolean flush()
+	{
+		if( !connected )
+			return true;
+		try
+		{
+			if( ackWindow != null )
+			{
+				if( !acks.hasRemaining() && ackWindow.hasReady() )
+				{
+					acks.clear();
+					ackWindow.drain(acks);
+					acks.flip();
+				}
+				if( acks.hasRemaining() )
+					channel.write(acks);
+			}
+			
+			ByteBuffer message;
+			while( (message = outgoing.peek()) != null )
+			{
+				channel.write(message);
+				if( message.hasRemaining() )
+					break;
+				outgoing.poll();
+			}
+			
+			boolean pending = !outgoing.isEmpty() || acks.hasRemaining() 
+							  || (ackWindow != null && ackWindow.hasReady());
+			int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			if( key.interestOps() != ops )
+				key.interestOps(ops);
+			return true;
+		}
+		catch( IOException e )
+		{
+			closed(e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Releases the channel and reports the disconnect. Called on the I/O 
+	 * thread, at most once per connection.
+	 */
+	void closed(IOException cause)
+	{
+		if( !running && closed.getCount() == 0 )
+			return;
+		
+		boolean wasConnected = connected;
+		running = false;
+		connected = false;
+		outgoing.clear();
+		try
+		{
+			if( channel != null )
+				channel.close();
+		}
+		catch( IOException e )
+		{
+			// nothing sensible left to do
+		}
+		channel = null;
+		key = null;
+		closed.countDown();
+		
+		if( wasConnected || cause != null )
+			listener.disconnected(cause);
+	}
+	
+	@Override
+	public void frameReceived(Frame frame)
+	{
+		if( frame.type == Frame.PROTO_INIT )
+		{
+			// the server's answer to our capabilities, not a frame to ack
+			negotiated = Capabilities.read(frame.getArguments(), frame.numargs);
+			if( negotiated != null && ackWindow != null )
+				ackWindow.setServerWindow(negotiated.getWindow());
+			if( negotiated != null )
+				System.out.println("Server " + host + ":" + port + " sends " + negotiated);
+			else
+				System.out.println("Ignoring malformed PROTO_INIT message.");
+			return;
+		}
+		ClientMetrics.getDefault().frameReceived(frame.size, frame.startNanos, frame.receivedNanos);
+		if( ackWindow != null )
+			ackWindow.received(frame.serial, frame.receivedNanos);
+		
+		StreamRecorder r = recorder;
+		if( r != null )
+		{
+			try
+			{
+				r.record(frame, System.nanoTime());
+			}
+			catch( IOException e )
+			{
+				System.err.println("Recording stopped: " + e.getMessage());
+				recorder = null;
+			}
+		}
+		listener.frameReceived(frame);
+	}
+}
@@ -0,0 +1,432 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Conversion kernels from OpenCV pixel layouts to the layouts QImage uses.
+ * Each kernel has a row variant, converting into a Java int array, and a 
+ * buffer variant which converts a complete image into native memory. The 
+ * buffer variants convert into a per thread scratch array and write every 
+ * block with a single bulk transfer instead of one JNI call per pixel.
+ * Direct buffers, such as the receive buffer of the FrameParser, are 
+ * converted straight from their native memory into the destination.
+ *
+ * The loops are kept free of branches and method calls so HotSpot can 
+ * unroll and vectorize them.
+ */
+public final class PixelKernels {
+	
+	/** Number of pixels converted per bulk transfer */
+	final static int BLOCK_PIXELS = 64 * 1024;
+	
+	private static final VarHandle INT_LE = 
+		MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	private static final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[BLOCK_PIXELS];
+		}
+	};
+	
+	/** Longest row box() works on in per thread arrays */
+	final static int LINE_BYTES = BLOCK_PIXELS;
+	/** Largest factor box() can shrink by, 257 bytes fill a 16-bit lane */
+	final static int MAX_BOX_FACTOR = 257;
+	
+	private static final VarHandle LONG_LE = 
+		MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long EVEN_BYTES = 0x00ff00ff00ff00ffL;
+	
+	private static final ThreadLocal<byte[]> lines = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[LINE_BYTES];
+		}
+	};
+	
+	private static final ThreadLocal<long[]> laneScratch = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[LINE_BYTES / 4];
+		}
+	};
+	
+	private PixelKernels()
+	{
+	}
+	
+	/**
+	 * Copies 8-bit single channel pixels to native memory.
+	 */
+	public static void gray8(byte[] src, int srcOffset, long dst, int pixels)
+	{
+		NativeMemory.copy(src, srcOffset, dst, pixels);
+	}
+	
+	/**
+	 * Converts a row of 3 channel pixels to ARGB32.
+	 * 
+	 * Note that this keeps the channel order the client has always used:
+	 * the first byte ends up in red, the second in blue and the third in 
+	 * green. We know OpenCV stores data as BGR but the server sends RBG?
+	 */
+	public static void bgrToArgb32(byte[] src, int srcOffset, int[] dst, int dstOffset, int pixels)
+	{
+		for( int i=0; i < pixels; ++i )
+		{
+			int idx   = srcOffset + i*3;
+			int red   = src[idx]   & 0xff;
+			int blue  = src[idx+1] & 0xff;
+			int green = src[idx+2] & 0xff;
+			dst[dstOffset + i] = 0xff000000 | (red << 16) | (green << 8) | blue;
+		}
+	}
+	
+	/**
+	 * Converts a row of BGRA pixels to ARGB32, disregarding alpha.
+	 * Read as a little endian int a BGRA pixel already is ARGB, so this
+	 * only has to force the alpha channel to opaque.
+	 */
+	public static void bgraToArgb32(byte[] src, int srcOffset, int[] dst, int dstOffset, int pixels)
+	{
+		for( int i=0; i < pixels; ++i )
+		{
+			int bgra = (int) INT_LE.get(src, srcOffset + i*4);
+			dst[dstOffset + i] = 0xff000000 | bgra;
+		}
+	}
+	
+	/**
+	 * Converts a buffer of 3 channel pixels to ARGB32 in native memory.
+	 * See bgrToArgb32(byte[], int, int[], int, int) for the channel order.
+	 */
+	public static void bgrToArgb32(byte[] src, int srcOffset, long dst, int pixels)
+	{
+		int[] block = scratch.get();
+		for( int done=0; done < pixels; done += BLOCK_PIXELS )
+		{
+			int n = Math.min(BLOCK_PIXELS, pixels - done);
+			bgrToArgb32(src, srcOffset + done*3, block, 0, n);
+			NativeMemory.copy(block, 0, dst + 4L*done, n);
+		}
+	}
+	
+	/**
+	 * Converts a buffer of BGRA pixels to ARGB32 in native memory.
+	 */
+	public static void bgraToArgb32(byte[] src, int srcOffset, long dst, int pixels)
+	{
+		int[] block = scratch.get();
+		for( int done=0; done < pixels; done += BLOCK_PIXELS )
+		{
+			int n = Math.min(BLOCK_PIXELS, pixels - done);
+			bgraToArgb32(src, srcOffset + done*4, block, 0, n);
+			NativeMemory.copy(block, 0, dst + 4L*done, n);
+		}
+	}
+	
+	/**
+	 * Copies 8-bit single channel pixels from a direct or array backed 
+	 * buffer to native memory. The offset is relative to the start of the 
+	 * buffer, its position is ignored.
+	 */
+	public static void gray8(ByteBuffer src, int srcOffset, long dst, int pixels)
+	{
+		assert( srcOffset >= 0 && srcOffset + pixels <= src.capacity() );
+		if( !src.isDirect() )
+			gray8(src.array(), src.arrayOffset() + srcOffset, dst, pixels);
+		else
+			NativeMemory.copy(NativeMemory.address(src) + srcOffset, dst, pixels);
+	}
+	
+	/**
+	 * Converts 3 channel pixels from a direct or array backed buffer to 
+	 * ARGB32 in native memory. See bgrToArgb32(byte[], int, int[], int, int)
+	 * for the channel order.
+	 */
+	public static void bgrToArgb32(ByteBuffer src, int srcOffset, long dst, int pixels)
+	{
+		assert( srcOffset >= 0 && srcOffset + 3L*pixels <= src.capacity() );
+		if( !src.isDirect() )
+		{
+			bgrToArgb32(src.array(), src.arrayOffset() + srcOffset, dst, pixels);
+			return;
+		}
+		
+		long s = NativeMemory.address(src) + srcOffset;
+		for( int i=0; i < pixels; ++i )
+		{
+			long idx  = s + i*3L;
+			int red   = NativeMemory.getByte(idx)   & 0xff;
+			int blue  = NativeMemory.getByte(idx+1) & 0xff;
+			int green = NativeMemory.getByte(idx+2) & 0xff;
+			NativeMemory.putInt(dst + 4L*i, 0xff000000 | (red << 16) | (green << 8) | blue);
+		}
+	}
+	
+	/**
+	 * Converts BGRA pixels from a direct or array backed buffer to ARGB32 
+	 * in native memory.
+	 */
+	public static void bgraToArgb32(ByteBuffer src, int srcOffset, long dst, int pixels)
+	{
+		assert( srcOffset >= 0 && srcOffset + 4L*pixels <= src.capacity() );
+		if( !src.isDirect() )
+		{
+			bgraToArgb32(src.array(), src.arrayOffset() + srcOffset, dst, pixels);
+			return;
+		}
+		
+		// staging cache sized blocks in the scratch array lets the alpha
+		// loop vectorize, which is faster than converting pixel by pixel
+		int[] block = scratch.get();
+		long s = NativeMemory.address(src) + srcOffset;
+		for( int done=0; done < pixels; done += BLOCK_PIXELS )
+		{
+			int n = Math.min(BLOCK_PIXELS, pixels - done);
+			NativeMemory.copy(s + 4L*done, block, 0, n);
+			if( NativeMemory.LITTLE_ENDIAN )
+			{
+				for( int i=0; i < n; ++i )
+					block[i] |= 0xff000000;
+			}
+			else
+			{
+				for( int i=0; i < n; ++i )
+					block[i] = 0xff000000 | Integer.reverseBytes(block[i]);
+			}
+			NativeMemory.copy(block, 0, dst + 4L*done, n);
+		}
+	}
+	
+	/**
+	 * Shrinks 8-bit pixels with 1, 3 or 4 channels by an integer factor 
+	 * while converting them, averaging each block of factor x factor 
+	 * pixels. Only rows fromRow to toRow (exclusive) of the target are 
+	 * written, so bands of rows can be shrunk in parallel. Source columns 
+	 * and rows which do not fill a whole block are skipped.
+	 *
+	 * Gray pixels become gray8, 3 channels become ARGB32 in the channel 
+	 * order of bgrToArgb32 and 4 channels become opaque ARGB32 like 
+	 * bgraToArgb32, so a shrunk image looks like the converted one.
+	 *
+	 * The source rows of a block are summed eight bytes at a time, as 
+	 * 16-bit lanes of the even and of the odd bytes of a long, and only 
+	 * then split into columns and summed across, once per target row.
+	 *
+	 * @param src direct or array backed buffer holding the whole image
+	 * @param width source width in pixels, the source rows are not padded
+	 * @param factor at most MAX_BOX_FACTOR, so the lanes cannot overflow
+	 * @param dstWidth target width, width / factor
+	 */
+	public static void box(ByteBuffer src, int srcOffset, int width, int channels, int factor, 
+			long dst, int dstWidth, int fromRow, int toRow)
+	{
+		int rowBytes = width * channels;
+		boolean staged = rowBytes <= LINE_BYTES;
+		box(src, srcOffset, width, channels, factor, dst, dstWidth, fromRow, toRow, 
+				staged ? scratch.get() : new int[rowBytes], 
+				staged ? laneScratch.get() : new long[rowBytes / 4], 
+				staged ? lines.get() : new byte[rowBytes]);
+	}
+	
+	/**
+	 * Like box() above, with the scratch arrays given by the caller. Bands 
+	 * running on the common ForkJoinPool need this: its threads drop their
+	 * thread locals after every task, so per thread scratch would be 
+	 * allocated again for every band.
+	 * 
+	 * @param sums at least width * channels elements
+	 * @param lanes at least width * channels / 4 elements
+	 * @param line at least width * channels elements, only used for direct
+	 * buffers
+	 */
+	public static void box(ByteBuffer src, int srcOffset, int width, int channels, int factor, 
+			long dst, int dstWidth, int fromRow, int toRow, int[] sums, long[] lanes, byte[] line)
+	{
+		if( factor < 1 || factor > MAX_BOX_FACTOR )
+			throw new IllegalArgumentException("Box factor must be between 1 and " + MAX_BOX_FACTOR);
+		
+		int rowBytes = width * channels;
+		int words = rowBytes >>> 3;
+		long address = 0;
+		if( src.isDirect() )
+			address = NativeMemory.address(src) + srcOffset;
+		else
+		{
+			line = src.array();
+			srcOffset += src.arrayOffset();
+		}
+		long dstStride = channels == 1 ? dstWidth : 4L * dstWidth;
+		int area = factor * factor;
+		int round = area / 2;
+		
+		for( int ty=fromRow; ty < toRow; ++ty )
+		{
+			// sum the factor source rows of this target row
+			Arrays.fill(lanes, 0, 2 * words, 0);
+			Arrays.fill(sums, 8 * words, rowBytes, 0);
+			for( int dy=0; dy < factor; ++dy )
+			{
+				long row = (long) (ty * factor + dy) * rowBytes;
+				int offset;
+				if( address != 0 )
+				{
+					NativeMemory.copy(address + row, line, 0, rowBytes);
+					offset = 0;
+				}
+				else
+					offset = (int) (srcOffset + row);
+				for( int k=0, i=offset; k < words; ++k, i += 8 )
+				{
+					long w = (long) LONG_LE.get(line, i);
+					lanes[2*k]     += w & EVEN_BYTES;
+					lanes[2*k + 1] += (w >>> 8) & EVEN_BYTES;
+				}
+				for( int i=8 * words; i < rowBytes; ++i )
+					sums[i] += line[offset + i] & 0xff;
+			}
+			for( int k=0; k < words; ++k )
+			{
+				long even = lanes[2*k];
+				long odd  = lanes[2*k + 1];
+				int i = 8 * k;
+				sums[i]     = (int) even & 0xffff;
+				sums[i + 1] = (int) odd & 0xffff;
+				sums[i + 2] = (int) (even >>> 16) & 0xffff;
+				sums[i + 3] = (int) (odd >>> 16) & 0xffff;
+				sums[i + 4] = (int) (even >>> 32) & 0xffff;
+				sums[i + 5] = (int) (odd >>> 32) & 0xffff;
+				sums[i + 6] = (int) (even >>> 48);
+				sums[i + 7] = (int) (odd >>> 48);
+			}
+			
+			// then sum factor columns per target pixel
+			long out = dst + ty * dstStride;
+			if( channels == 1 )
+			{
+				for( int tx=0, i=0; tx < dstWidth; ++tx )
+				{
+					int sum = 0;
+					for( int dx=0; dx < factor; ++dx )
+						sum += sums[i++];
+					NativeMemory.putByte(out + tx, (byte) ((sum + round) / area));
+				}
+			}
+			else
+			{
+				for( int tx=0; tx < dstWidth; ++tx )
+				{
+					int first = 0, second = 0, third = 0;
+					for( int dx=0, i=tx * factor * channels; dx < factor; ++dx, i += channels )
+					{
+						first  += sums[i];
+						second += sums[i + 1];
+						third  += sums[i + 2];
+					}
+					first  = (first  + round) / area;
+					second = (second + round) / area;
+					third  = (third  + round) / area;
+					int argb = channels == 3 
+							? first << 16 | third << 8 | second
+							: third << 16 | second << 8 | first;
+					NativeMemory.putInt(out + 4L * tx, 0xff000000 | argb);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reports the throughput of each kernel in MB/s of source data for a
+	 * frame size given as width and height on the command line (default 
+	 * 1920x1080), from a Java array and from a direct buffer. Runs without 
+	 * Qt.
+	 */
+	public static void main(String[] args)
+	{
+		int width  = args.length > 1 ? Integer.parseInt(args[0]) : 1920;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+		int pixels = width * height;
+		
+		byte[] src = new byte[pixels * 4];
+		for( int i=0; i < src.length; ++i )
+			src[i] = (byte) (i * 31);
+		ByteBuffer direct = ByteBuffer.allocateDirect(src.length);
+		direct.put(src);
+		long dst = NativeMemory.allocate(pixels * 4L);
+		
+		try
+		{
+			for( int run=0; run < 6; ++run )
+			{
+				int kernel = run % 3;
+				boolean buffer = run >= 3;
+				int bpp = kernel == 0 ? 1 : kernel == 1 ? 3 : 4;
+				String name = (kernel == 0 ? "gray8" : kernel == 1 ? "bgr->argb32" : "bgra->argb32") 
+						+ (buffer ? " (direct)" : "");
+				
+				// warm up, then measure
+				for( int pass=0; pass < 2; ++pass )
+				{
+					int frames = pass == 0 ? 50 : 200;
+					long start = System.nanoTime();
+					for( int f=0; f < frames; ++f )
+					{
+						if( buffer )
+						{
+							if( kernel == 0 )
+								gray8(direct, 0, dst, pixels);
+							else if( kernel == 1 )
+								bgrToArgb32(direct, 0, dst, pixels);
+							else
+								bgraToArgb32(direct, 0, dst, pixels);
+						}
+						else if( kernel == 0 )
+							gray8(src, 0, dst, pixels);
+						else if( kernel == 1 )
+							bgrToArgb32(src, 0, dst, pixels);
+						else
+							bgraToArgb32(src, 0, dst, pixels);
+					}
+					long elapsed = System.nanoTime() - start;
+					if( pass == 1 )
+					{
+						double mb = (double) pixels * bpp * frames / (1024 * 1024);
+						System.out.printf("%-23s %dx%d: %8.1f MB/s %8.1f frames/s%n", name, width, height,
+								mb / (elapsed / 1e9), frames / (elapsed / 1e9));
+					}
+				}
+			}
+		}
+		finally
+		{
+			NativeMemory.free(dst);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * A step of client side image processing, such as a threshold or a crop,
+ * which a FrameProcessor runs on every decoded image between decoding 
+ * and display. Stages work on the native image buffers the images were 
+ * decoded into: 8-bit gray images (Format_Indexed8, one byte per pixel) 
+ * and 32-bit images (RGB32 or ARGB32, one native int per pixel).
+ *
+ * A stage runs in three steps. begin() is called on the decoding thread
+ * and chooses the buffer the stage writes. process() then runs once per 
+ * band of rows of that buffer; large images are split in bands which run
+ * in parallel on the common ForkJoinPool, see RowBands. end() is called 
+ * on the decoding thread once all bands are done.
+ *
+ * Several decode threads process frames at the same time, so stages keep
+ * no per frame data in fields. Every thread has its own state object 
+ * from createState(), which is handed to all three steps and reused for 
+ * all frames the thread processes, so nothing needs to be allocated per
+ * frame. Bands of the same image share that state; they can keep partial
+ * results in per band slots, see FrameProcessor.maxBands().
+ */
+public interface ProcessingStage {
+	
+	/**
+	 * @return the name the stage's timings are recorded under
+	 */
+	String getName();
+	
+	/**
+	 * Creates the scratch state of one decode thread. 
+	 * 
+	 * @return the state, which may be null if the stage needs none
+	 */
+	Object createState();
+	
+	/**
+	 * Prepares processing an image.
+	 * 
+	 * @param pool pool to take a differently sized buffer from
+	 * @return source to work in place, or a buffer acquired from the pool 
+	 * which replaces the source once the stage is done
+	 */
+	NativeBuffer begin(Object state, NativeBuffer source, NativeBufferPool pool);
+	
+	/**
+	 * Processes rows fromRow (inclusive) to toRow (exclusive) of the 
+	 * target. Called concurrently for the bands of an image.
+	 * 
+	 * @param band index of the band, below FrameProcessor.maxBands()
+	 */
+	void process(Object state, int band, NativeBuffer source, NativeBuffer target, int fromRow, int toRow);
+	
+	/**
+	 * Finishes processing an image, e.g. by merging per band results.
+	 * 
+	 * @param serial serial of the frame the image belongs to
+	 * @param bands number of bands the image was processed in
+	 */
+	void end(Object state, int serial, NativeBuffer target, int bands);
+}
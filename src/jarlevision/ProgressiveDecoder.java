@@ -0,0 +1,307 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+
+import com.trolltech.qt.gui.QImage.Format;
+
+/**
+ * Converts the 8-bit CvMatData images of a frame into native images while
+ * the frame is still being received, so conversion overlaps the transfer
+ * instead of starting once the last byte arrived.
+ *
+ * The FrameParser calls update() on the I/O thread whenever data for the 
+ * current frame arrived. The decoder walks the arguments received so far;
+ * as soon as the header of a matrix is in, it takes a buffer from the 
+ * NativeBufferPool and converts every complete row which has arrived. 
+ * When the frame is complete the converted images travel with the Frame
+ * and the decode worker adopts them instead of converting the matrix 
+ * again. Everything else, including 16-bit and floating point matrices 
+ * which are scaled over the whole image, is decoded by the worker as 
+ * before. The decoder reads from the receive buffer and keeps no copy of
+ * the data, so the received frame stays intact for recording and sharing.
+ *
+ * A decoder belongs to one parser and is only used on its I/O thread.
+ */
+public class ProgressiveDecoder {
+	
+	/**
+	 * The images converted for one frame, by the offset of their CvMatData
+	 * value in the message.
+	 */
+	static class Result {
+		private int count;
+		private int[] offsets = new int[2];
+		private NativeBuffer[] buffers = new NativeBuffer[2];
+		
+		void add(int offset, NativeBuffer buffer)
+		{
+			if( count == offsets.length )
+			{
+				int[] o = new int[count * 2];
+				NativeBuffer[] b = new NativeBuffer[count * 2];
+				System.arraycopy(offsets, 0, o, 0, count);
+				System.arraycopy(buffers, 0, b, 0, count);
+				offsets = o;
+				buffers = b;
+			}
+			offsets[count] = offset;
+			buffers[count] = buffer;
+			++count;
+		}
+		
+		/**
+		 * Takes over the image converted from the value at the offset.
+		 * 
+		 * @return the image, with the reference to it, or null
+		 */
+		synchronized NativeBuffer take(int offset)
+		{
+			for( int i=0; i < count; ++i )
+			{
+				if( offsets[i] == offset && buffers[i] != null )
+				{
+					NativeBuffer buffer = buffers[i];
+					buffers[i] = null;
+					return buffer;
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * Releases the images nobody took.
+		 */
+		synchronized void release()
+		{
+			for( int i=0; i < count; ++i )
+			{
+				if( buffers[i] != null )
+					buffers[i].release();
+				buffers[i] = null;
+			}
+		}
+	}
+	
+	private final static int NEED_MORE  = -2;
+	private final static int NOT_MATRIX = -1;
+	private final static int MATRIX_HEADER_SIZE = 16;
+	
+	private final NativeBufferPool pool;
+	private final VariantDecoder skipper;
+	private final VariantDecoder.Visitor ignore;
+	private Result result;
+	private int numargs;
+	private int arguments;
+	private int scan;
+	private boolean active;
+	
+	// the matrix being converted
+	private NativeBuffer target;
+	private int valueOffset;
+	private int dataOffset;
+	private int dataLength;
+	private int width;
+	private int height;
+	private int channels;
+	private int rowsDone;
+	
+	public ProgressiveDecoder()
+	{
+		this(NativeBufferPool.getDefault());
+	}
+	
+	public ProgressiveDecoder(NativeBufferPool pool)
+	{
+		this.pool = pool;
+		this.skipper = new VariantDecoder();
+		this.skipper.register(RawMatrix.USER_TYPE);
+		this.skipper.register(EncodedImage.WRAPPER_TYPE);
+		this.ignore = new VariantDecoder.Visitor() {};
+	}
+	
+	/**
+	 * Starts on a frame whose header has been received.
+	 */
+	void start(int numargs)
+	{
+		reset();
+		this.numargs = numargs;
+		this.arguments = 0;
+		this.scan = Frame.HEADER_SIZE;
+		this.active = true;
+	}
+	
+	/**
+	 * Converts what arrived of the current frame, which is everything in
+	 * the buffer before its position.
+	 */
+	void update(ByteBuffer payload)
+	{
+		int available = payload.position();
+		while( active )
+		{
+			if( target != null )
+			{
+				int rowBytes = width * channels;
+				int ready = available < dataOffset ? 0 : Math.min(height, (available - dataOffset) / rowBytes);
+				if( ready > rowsDone )
+				{
+					convert(payload, rowsDone, ready);
+					rowsDone = ready;
+				}
+				if( rowsDone < height )
+					return;
+				
+				if( result == null )
+					result = new Result();
+				result.add(valueOffset, target);
+				target = null;
+				scan = dataOffset + dataLength;
+				++arguments;
+				continue;
+			}
+			
+			if( arguments == numargs )
+			{
+				active = false;
+				return;
+			}
+			
+			int value = matrixValue(payload, scan, available);
+			if( value == NEED_MORE || (value >= 0 && available < value + MATRIX_HEADER_SIZE) )
+				return;
+			if( value >= 0 && startMatrix(payload, value) )
+				continue;
+			
+			// not a matrix we convert, skip the complete variant
+			ByteBuffer view = payload.duplicate();
+			view.limit(available);
+			view.position(scan);
+			if( !skipper.read(view, ignore) )
+				return;
+			scan = view.position();
+			++arguments;
+		}
+	}
+	
+	/**
+	 * Finishes the current frame, which has been received completely.
+	 * 
+	 * @return the images converted from it, or null if there are none
+	 */
+	Result finish(ByteBuffer payload)
+	{
+		update(payload);
+		// a matrix still in conversion was cut short by a corrupt frame
+		if( target != null )
+		{
+			target.release();
+			target = null;
+		}
+		active = false;
+		Result r = result;
+		result = null;
+		return r;
+	}
+	
+	/**
+	 * Drops the current frame, e.g. when the connection is closed while it
+	 * is being received.
+	 */
+	void reset()
+	{
+		if( target != null )
+			target.release();
+		if( result != null )
+			result.release();
+		target = null;
+		result = null;
+		active = false;
+	}
+	
+	/**
+	 * @return the offset of the CvMatData value if the variant at offset 
+	 * is a CvMatData, NOT_MATRIX if it is something else and NEED_MORE if
+	 * that is not known yet
+	 */
+	private static int matrixValue(ByteBuffer payload, int offset, int available)
+	{
+		if( available - offset < 8 )
+			return NEED_MORE;
+		if( payload.getInt(offset) != VariantDecoder.TYPE_USER_TYPE )
+			return NOT_MATRIX;
+		int nameLength = payload.getInt(offset + 4);
+		if( nameLength < 0 || nameLength > payload.limit() - offset - 8 )
+			return NOT_MATRIX;
+		if( available - offset - 8 < nameLength )
+			return NEED_MORE;
+		if( !RawMatrix.USER_TYPE.matches(payload, offset + 8, nameLength) )
+			return NOT_MATRIX;
+		return offset + 8 + nameLength;
+	}
+	
+	/**
+	 * Takes a target image for the matrix at the offset if it has a format
+	 * which is converted row by row, as in CvMatData.
+	 * 
+	 * @return true if the matrix is converted progressively
+	 */
+	private boolean startMatrix(ByteBuffer payload, int offset)
+	{
+		int type   = payload.getInt(offset);
+		int rows   = payload.getInt(offset + 4);
+		int cols   = payload.getInt(offset + 8);
+		int length = payload.getInt(offset + 12);
+		int data   = offset + MATRIX_HEADER_SIZE;
+		if( length > payload.limit() - data )
+			return false;
+		Format format = CvMatData.imageFormat(type, cols, rows, length);
+		if( format == null )
+			return false;
+		
+		target = pool.acquire(cols, rows, format);
+		valueOffset = offset;
+		dataOffset = data;
+		dataLength = length;
+		width = cols;
+		height = rows;
+		channels = CvMatData.CV_MAT_CN(type);
+		rowsDone = 0;
+		return true;
+	}
+	
+	private void convert(ByteBuffer payload, int fromRow, int toRow)
+	{
+		int pixels = (toRow - fromRow) * width;
+		int src = dataOffset + fromRow * width * channels;
+		long dst = target.address() + (long) fromRow * target.bytesPerLine;
+		if( channels == 1 )
+			PixelKernels.gray8(payload, src, dst, pixels);
+		else if( channels == 3 )
+			PixelKernels.bgrToArgb32(payload, src, dst, pixels);
+		else
+			PixelKernels.bgraToArgb32(payload, src, dst, pixels);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.nio.ByteBuffer;
+
+import com.trolltech.qt.core.QByteArray;
+import com.trolltech.qt.gui.QImage;
+
+/**
+ * Maps the plv::QImageWrapper user type, a compressed image, to a QImage.
+ * The value is the width, height and QImage format of the image followed
+ * by the size and contents of a PNG or JPEG file. Servers send these 
+ * instead of raw CvMatData to save bandwidth; the client pays with the
+ * CPU time to decompress them, which the decode workers spend off the 
+ * network thread.
+ */
+public class QImageWrapper {
+	
+	/**
+	 * The plv::QImageWrapper user type, see EncodedImage.
+	 */
+	public static final VariantDecoder.UserType USER_TYPE = EncodedImage.WRAPPER_TYPE;
+	
+	private QImageWrapper()
+	{
+	}
+	
+	/**
+	 * Decompresses the value at the position of the buffer. The file 
+	 * format is taken from its signature.
+	 * 
+	 * @return the image or null if it could not be decoded
+	 */
+	public static QImage decode(ByteBuffer in)
+	{
+		int width     = in.getInt();
+		int height    = in.getInt();
+		in.getInt(); // format
+		int byteCount = in.getInt();
+		
+		// QImage decodes from its own copy of the compressed data
+		byte[] data = new byte[byteCount];
+		in.get(data);
+		
+		QImage img = new QImage();
+		String format = EncodedImage.formatOf(ByteBuffer.wrap(data));
+		boolean loaded = format != null ? img.loadFromData(new QByteArray(data), format) 
+									   : img.loadFromData(new QByteArray(data));
+		if( !loaded || img.isNull() )
+		{
+			System.out.println("Failed to decode QImageWrapper of " + width + "x" + height + ", " + byteCount + " bytes");
+			return null;
+		}
+		return img;
+	}
+}
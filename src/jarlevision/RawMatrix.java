@@ -0,0 +1,131 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A plv::CvMatData value as it was received: the CV type, the size and a 
+ * view on the matrix data in the receive buffer. Unlike CvMatData nothing
+ * is converted for display and no Qt classes are involved, which is what
+ * the headless client and the shared ring need. A view is only valid as 
+ * long as the buffer it was read from; copy() keeps a matrix for later.
+ */
+public class RawMatrix {
+	
+	/**
+	 * The plv::CvMatData user type: a type, rows, columns and byte length 
+	 * header followed by the matrix data.
+	 */
+	public static final VariantDecoder.UserType USER_TYPE = new VariantDecoder.UserType("plv::CvMatData") {
+		@Override
+		protected int length(ByteBuffer in, int offset)
+		{
+			if( in.limit() - offset < 16 )
+				throw new BufferUnderflowException();
+			int length = in.getInt(offset + 12);
+			if( length < 0 )
+				throw new BufferUnderflowException();
+			return 16 + length;
+		}
+	};
+	
+	int type;
+	int width;
+	int height;
+	ByteBuffer data;
+	
+	/**
+	 * Reads the matrix at the position of a big endian buffer and advances
+	 * the position past it. The data is not copied.
+	 * 
+	 * @throws BufferUnderflowException if the buffer ends within the matrix
+	 */
+	public static RawMatrix readFrom(ByteBuffer in)
+	{
+		RawMatrix matrix = new RawMatrix();
+		matrix.type   = in.getInt();
+		matrix.height = in.getInt();
+		matrix.width  = in.getInt();
+		int length    = in.getInt();
+		if( length < 0 || length > in.remaining() )
+			throw new BufferUnderflowException();
+		
+		ByteBuffer data = in.duplicate();
+		data.limit(in.position() + length);
+		matrix.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+		in.position(in.position() + length);
+		return matrix;
+	}
+	
+	public int getType() {
+		return type;
+	}
+	
+	// the CvMatData constants are compile time constants, using them does
+	// not load the Qt dependent class
+	public int getDepth() {
+		return type & CvMatData.CV_MAT_DEPTH_MASK;
+	}
+	
+	public int getChannels() {
+		return ((type & CvMatData.CV_MAT_CN_MASK) >> CvMatData.CV_CN_SHIFT) + 1;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return the matrix data in the little endian layout of an OpenCV 
+	 * matrix, from position 0 to the limit
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * @return a matrix with its own copy of the data
+	 */
+	public RawMatrix copy()
+	{
+		RawMatrix copy = new RawMatrix();
+		copy.type = type;
+		copy.width = width;
+		copy.height = height;
+		copy.data = ByteBuffer.allocate(data.limit()).order(ByteOrder.LITTLE_ENDIAN);
+		copy.data.put(data.duplicate());
+		copy.data.clear();
+		return copy;
+	}
+	
+	public String toString() {
+		return "type " + type + " (" + getChannels() + " channels) " + width + "x" + height;
+	}
+}
@@ -0,0 +1,222 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits image work in horizontal bands of rows which run in parallel on 
+ * the common ForkJoinPool. Small images are processed on the calling 
+ * thread, where forking would cost more than it saves.
+ *
+ * Every calling thread reuses its own band tasks, so running bands 
+ * allocates nothing. run() only returns, normally or with an exception, 
+ * once no band touches the image anymore.
+ */
+final class RowBands {
+	
+	/** Images with fewer pixels than this are not split */
+	final static int MIN_PARALLEL_PIXELS = 512 * 1024;
+	
+	interface Task {
+		/**
+		 * Processes rows fromRow (inclusive) to toRow (exclusive).
+		 * 
+		 * @param band index of the band, from 0 to the band count
+		 */
+		void run(int band, int fromRow, int toRow);
+	}
+	
+	/**
+	 * A band forked to the pool. It reports to its Fork instead of through 
+	 * the ForkJoinTask, whose waiting allocates.
+	 */
+	private static class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final Fork fork;
+		Task task;
+		int band;
+		int fromRow;
+		int toRow;
+		
+		Band(Fork fork) {
+			this.fork = fork;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			try
+			{
+				task.run(band, fromRow, toRow);
+			}
+			catch( Throwable t )
+			{
+				fork.fail(t);
+			}
+			finally
+			{
+				fork.done();
+			}
+		}
+	}
+	
+	/**
+	 * The bands of one calling thread.
+	 */
+	private static class Fork {
+		final Band[] bands;
+		final AtomicInteger pending = new AtomicInteger();
+		Thread caller;
+		volatile Throwable failure;
+		boolean busy;
+		
+		Fork(int maxForked)
+		{
+			bands = new Band[maxForked];
+			for( int i=0; i < maxForked; ++i )
+				bands[i] = new Band(this);
+		}
+		
+		void fail(Throwable t)
+		{
+			if( failure == null )
+				failure = t;
+		}
+		
+		void done()
+		{
+			if( pending.decrementAndGet() == 0 )
+				LockSupport.unpark(caller);
+		}
+	}
+	
+	private static final ThreadLocal<Fork> forks = new ThreadLocal<Fork>() {
+		@Override
+		protected Fork initialValue() {
+			return new Fork(maxBands() - 1);
+		}
+	};
+	
+	private RowBands()
+	{
+	}
+	
+	/**
+	 * @return the most bands bandCount() splits an image in
+	 */
+	static int maxBands()
+	{
+		return ForkJoinPool.getCommonPoolParallelism() + 1;
+	}
+	
+	/**
+	 * @return number of bands to split an image of the given size in
+	 */
+	static int bandCount(int width, int height)
+	{
+		if( (long) width * height < MIN_PARALLEL_PIXELS )
+			return 1;
+		return Math.max(1, Math.min(height, maxBands()));
+	}
+	
+	/**
+	 * Runs the task for every band and waits for all of them. The first 
+	 * band runs on the calling thread. If a band throws, the others are 
+	 * still waited for, or not started at all, before the exception is 
+	 * rethrown.
+	 */
+	static void run(int height, int bands, Task task)
+	{
+		Fork fork = forks.get();
+		bands = Math.min(bands, fork.bands.length + 1);
+		if( bands <= 1 || fork.busy )
+		{
+			// a band calling run() again works through its rows alone
+			task.run(0, 0, height);
+			return;
+		}
+		
+		fork.busy = true;
+		fork.caller = Thread.currentThread();
+		fork.failure = null;
+		fork.pending.set(bands - 1);
+		for( int b=1; b < bands; ++b )
+		{
+			Band band = fork.bands[b - 1];
+			band.reinitialize();
+			band.task    = task;
+			band.band    = b;
+			band.fromRow = (int) ((long) height * b / bands);
+			band.toRow   = (int) ((long) height * (b + 1) / bands);
+			band.fork();
+		}
+		
+		boolean ran = false;
+		try
+		{
+			task.run(0, 0, (int) ((long) height / bands));
+			ran = true;
+		}
+		finally
+		{
+			// take back the bands no worker started yet: run them, or skip
+			// them if this band failed
+			for( int b=bands - 1; b >= 1; --b )
+			{
+				Band band = fork.bands[b - 1];
+				if( band.tryUnfork() )
+				{
+					if( ran )
+						band.invoke();
+					else
+					{
+						band.quietlyComplete();
+						fork.done();
+					}
+				}
+			}
+			while( fork.pending.get() != 0 )
+				LockSupport.park(fork);
+			// the status of a band is set right after it counted down
+			for( int b=1; b < bands; ++b )
+			{
+				while( !fork.bands[b - 1].isDone() )
+					Thread.onSpinWait();
+				fork.bands[b - 1].task = null;
+			}
+			fork.caller = null;
+			fork.busy = false;
+		}
+		
+		Throwable failure = fork.failure;
+		fork.failure = null;
+		if( failure instanceof RuntimeException )
+			throw (RuntimeException) failure;
+		if( failure instanceof Error )
+			throw (Error) failure;
+	}
+}
@@ -0,0 +1,301 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the matrices a SharedFrameRing publishes, from another process.
+ * The reader maps the ring read only and hands out views on the slots, 
+ * so reading a matrix copies nothing.
+ *
+ * A reader that falls more than the ring size behind is lapped: the 
+ * writer has overwritten matrices it did not read yet. poll() then skips
+ * to the oldest matrix still in the ring and counts the missed ones, see
+ * getLappedCount(). The writer may also overwrite a slot while a view on
+ * it is in use; View.isValid() tells whether the data read from the view
+ * so far is intact, so a consumer checks it after using the data, or 
+ * copies the data and checks it then.
+ *
+ * A reader is not thread safe; use one per thread. It does not need 
+ * Qt, so consumers only need this class and SharedFrameRing.
+ *
+ * Usage: SharedFrameReader name|path
+ * prints the matrices per second and lapped count of a ring.
+ */
+public class SharedFrameReader {
+	
+	/**
+	 * A matrix in the ring. Only valid until the next poll().
+	 */
+	public static class View {
+		private MappedByteBuffer map;
+		private int slot;
+		private long sequence;
+		int serial;
+		int index;
+		int cvType;
+		int width;
+		int height;
+		long receivedNanos;
+		ByteBuffer data;
+		
+		public int getSerial() {
+			return serial;
+		}
+		
+		/**
+		 * @return position of the matrix among the arguments of its frame
+		 */
+		public int getIndex() {
+			return index;
+		}
+		
+		public int getCvType() {
+			return cvType;
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		/**
+		 * @return System.nanoTime() of the client when it received the frame
+		 */
+		public long getReceivedNanos() {
+			return receivedNanos;
+		}
+		
+		/**
+		 * @return read only view of the matrix data in the ring, in the 
+		 * little endian layout of an OpenCV matrix
+		 */
+		public ByteBuffer getData() {
+			return data;
+		}
+		
+		/**
+		 * @return false if the writer started overwriting the slot, in 
+		 * which case everything read from this view since poll() must be
+		 * discarded
+		 */
+		public boolean isValid()
+		{
+			VarHandle.loadLoadFence();
+			return (long) SharedFrameRing.LONG.getOpaque(map, slot + SharedFrameRing.SEQUENCE_OFFSET) == sequence;
+		}
+	}
+	
+	private final File file;
+	private final MappedByteBuffer map;
+	private final int slots;
+	private final int slotSize;
+	private long next;
+	private long lapped;
+	
+	/**
+	 * Opens a ring and positions the reader at the newest matrix, so only
+	 * matrices published from now on are read.
+	 */
+	public SharedFrameReader(File file) throws IOException
+	{
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if( channel.size() < SharedFrameRing.FILE_HEADER_SIZE )
+				throw new IOException(file + " is not a frame ring");
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+		map.order(ByteOrder.nativeOrder());
+		
+		if( map.getInt(SharedFrameRing.MAGIC_OFFSET) != SharedFrameRing.MAGIC )
+			throw new IOException(file + " is not a frame ring");
+		VarHandle.loadLoadFence();
+		if( map.getInt(SharedFrameRing.VERSION_OFFSET) != SharedFrameRing.VERSION )
+			throw new IOException(file + " has unsupported version " + map.getInt(SharedFrameRing.VERSION_OFFSET));
+		if( map.getInt(SharedFrameRing.ORDER_OFFSET) != SharedFrameRing.BYTE_ORDER_MARK )
+			throw new IOException(file + " was written with another byte order");
+		slots = map.getInt(SharedFrameRing.SLOTS_OFFSET);
+		slotSize = map.getInt(SharedFrameRing.SLOT_SIZE_OFFSET);
+		if( SharedFrameRing.FILE_HEADER_SIZE + (long) slots * slotSize > map.capacity() )
+			throw new IOException(file + " is truncated");
+		
+		next = published();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Moves back to the oldest matrix still in the ring.
+	 */
+	public void seekToOldest() {
+		next = Math.max(0, published() - slots);
+	}
+	
+	/**
+	 * @return number of matrices the writer overwrote before this reader 
+	 * got to them
+	 */
+	public long getLappedCount() {
+		return lapped;
+	}
+	
+	/**
+	 * @return number of matrices published and not read yet, including 
+	 * any which are already lost
+	 */
+	public long getBacklog() {
+		return Math.max(0, published() - next);
+	}
+	
+	/**
+	 * @return true once the writer closed the ring or a new ring replaced
+	 * it; reopen the file to continue with a new writer
+	 */
+	public boolean isClosed() {
+		return map.getInt(SharedFrameRing.CLOSED_OFFSET) != 0;
+	}
+	
+	private long published() {
+		return (long) SharedFrameRing.LONG.getAcquire(map, SharedFrameRing.PUBLISHED_OFFSET);
+	}
+	
+	/**
+	 * Reads the next matrix into the view, skipping any the writer has
+	 * lapped.
+	 * 
+	 * @return false if there is no new matrix
+	 */
+	public boolean poll(View view)
+	{
+		while( true )
+		{
+			long published = published();
+			if( next >= published )
+				return false;
+			if( published - next > slots )
+			{
+				lapped += published - slots - next;
+				next = published - slots;
+			}
+			
+			int slot = SharedFrameRing.FILE_HEADER_SIZE + (int) (next % slots) * slotSize;
+			long expected = 2 * next + 2;
+			long sequence = (long) SharedFrameRing.LONG.getAcquire(map, slot + SharedFrameRing.SEQUENCE_OFFSET);
+			if( sequence != expected )
+			{
+				// overwritten since we read the count
+				++lapped;
+				++next;
+				continue;
+			}
+			
+			view.map = map;
+			view.slot = slot;
+			view.sequence = sequence;
+			view.serial   = map.getInt(slot + SharedFrameRing.SERIAL_OFFSET);
+			view.index    = map.getInt(slot + SharedFrameRing.INDEX_OFFSET);
+			view.cvType   = map.getInt(slot + SharedFrameRing.TYPE_OFFSET);
+			view.width    = map.getInt(slot + SharedFrameRing.WIDTH_OFFSET);
+			view.height   = map.getInt(slot + SharedFrameRing.HEIGHT_OFFSET);
+			view.receivedNanos = map.getLong(slot + SharedFrameRing.RECEIVED_OFFSET);
+			int length = map.getInt(slot + SharedFrameRing.LENGTH_OFFSET);
+			++next;
+			
+			if( !view.isValid() || length < 0 || length > slotSize - SharedFrameRing.SLOT_HEADER_SIZE )
+			{
+				++lapped;
+				continue;
+			}
+			
+			ByteBuffer data = map.duplicate();
+			data.limit(slot + SharedFrameRing.SLOT_HEADER_SIZE + length);
+			data.position(slot + SharedFrameRing.SLOT_HEADER_SIZE);
+			view.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+			return true;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		if( args.length != 1 )
+		{
+			System.err.println("Usage: SharedFrameReader name|path");
+			System.exit(1);
+		}
+		SharedFrameReader reader = new SharedFrameReader(SharedFrameRing.path(args[0]));
+		View view = new View();
+		long matrices = 0, bytes = 0, torn = 0;
+		long report = System.nanoTime() + 1000000000L;
+		while( !reader.isClosed() )
+		{
+			if( reader.poll(view) )
+			{
+				// touch the data like a consumer would, then check it is intact
+				ByteBuffer data = view.getData();
+				long sum = 0;
+				for( int i=0; i < data.limit(); i += 4096 )
+					sum += data.get(i);
+				if( view.isValid() && sum != Long.MIN_VALUE )
+				{
+					++matrices;
+					bytes += data.limit();
+				}
+				else
+					++torn;
+			}
+			else
+				Thread.sleep(1);
+			
+			if( System.nanoTime() >= report )
+			{
+				System.out.printf("%d matrices/s %.1f MB/s, last %dx%d type %d serial %d, lapped %d, torn %d%n", 
+						matrices, bytes / 1048576.0, view.width, view.height, view.cvType, view.serial, 
+						reader.getLappedCount(), torn);
+				matrices = 0;
+				bytes = 0;
+				report += 1000000000L;
+			}
+		}
+		System.out.println("Ring closed.");
+	}
+}
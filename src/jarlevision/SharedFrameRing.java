@@ -0,0 +1,325 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Publishes the CvMatData arguments of received frames to a memory mapped
+ * ring buffer, usually under /dev/shm, so other processes on the same 
+ * host can use the frames without their own connection to the server. 
+ * Matrices are published as the server sent them, before they are 
+ * converted for display, so readers get the original type and depth.
+ *
+ * The file starts with a 64 byte header (magic, version, slot count, slot
+ * size, a byte order mark, a closed flag and the number of published 
+ * matrices) followed by fixed size slots. Each slot has a 64 byte header 
+ * (sequence, serial, argument index, CV type, width, height, data length
+ * and receive time) followed by the matrix data. Numbers are in native 
+ * byte order.
+ *
+ * There is one writer and any number of readers, which never write to 
+ * the file, so no locks are needed. Each slot is a seqlock: the writer 
+ * makes the slot sequence odd before it touches the slot and sets it to 
+ * 2 * (n + 1) for the n-th matrix when done, then publishes the count. A 
+ * reader which sees a different sequence after reading a slot knows it 
+ * was lapped by the writer, see SharedFrameReader.
+ *
+ * The writer is meant to be called from the I/O thread, which delivers 
+ * frames in order. The data is copied from the receive buffer into the 
+ * slot in one go.
+ */
+public class SharedFrameRing {
+	
+	final static int MAGIC   = 0x504c5652; // "PLVR"
+	final static int VERSION = 1;
+	final static int BYTE_ORDER_MARK = 0x01020304;
+	
+	final static int FILE_HEADER_SIZE = 64;
+	final static int SLOT_HEADER_SIZE = 64;
+	
+	// file header
+	final static int MAGIC_OFFSET      = 0;
+	final static int VERSION_OFFSET    = 4;
+	final static int SLOTS_OFFSET      = 8;
+	final static int SLOT_SIZE_OFFSET  = 12;
+	final static int ORDER_OFFSET      = 16;
+	final static int CLOSED_OFFSET     = 20;
+	final static int PUBLISHED_OFFSET  = 32;
+	
+	// slot header
+	final static int SEQUENCE_OFFSET   = 0;
+	final static int SERIAL_OFFSET     = 8;
+	final static int INDEX_OFFSET      = 12;
+	final static int TYPE_OFFSET       = 16;
+	final static int WIDTH_OFFSET      = 20;
+	final static int HEIGHT_OFFSET     = 24;
+	final static int LENGTH_OFFSET     = 28;
+	final static int RECEIVED_OFFSET   = 32;
+	
+	final static int DEFAULT_SLOTS = 8;
+	final static int DEFAULT_SLOT_SIZE = 8 * 1024 * 1024;
+	
+	/** long view with the access modes needed for the sequences */
+	static final VarHandle LONG = 
+		MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
+	private final File file;
+	private final MappedByteBuffer map;
+	private final long base;
+	private final int slots;
+	private final int slotSize;
+	private final VariantDecoder decoder;
+	private final MatrixCollector collector;
+	private long published;
+	private long oversized;
+	
+	/**
+	 * Finds the CvMatData arguments of a frame.
+	 */
+	private class MatrixCollector extends VariantDecoder.Visitor {
+		Frame frame;
+		int index;
+		
+		@Override
+		public void onUserType(VariantDecoder.UserType type, ByteBuffer data, int length)
+		{
+			if( type == RawMatrix.USER_TYPE )
+				publish(frame.serial, index, RawMatrix.readFrom(data), frame.receivedNanos);
+		}
+	}
+	
+	/**
+	 * @return the path of a ring name, which goes to /dev/shm unless it 
+	 * is a path itself
+	 */
+	public static File path(String name)
+	{
+		if( name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0 )
+			return new File(name);
+		return new File("/dev/shm", name);
+	}
+	
+	/**
+	 * Creates a ring, replacing an existing file. Readers of a replaced
+	 * ring see it closed and have to open the new one.
+	 * 
+	 * @param slots number of matrices the ring holds
+	 * @param slotSize largest matrix in bytes; larger ones are not published
+	 */
+	public SharedFrameRing(File file, int slots, int slotSize) throws IOException
+	{
+		if( slots < 1 || slotSize < 1 )
+			throw new IllegalArgumentException("Need at least one slot of at least one byte");
+		// whole cache lines, so slot headers are aligned
+		int size = (SLOT_HEADER_SIZE + slotSize + 63) & ~63;
+		if( FILE_HEADER_SIZE + (long) slots * size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException("Ring of " + slots + " x " + slotSize + " bytes is too large");
+		
+		this.file = file;
+		this.slots = slots;
+		this.slotSize = size;
+		
+		// a new file, readers of an old one keep their mapping until they close
+		markClosed(file);
+		file.delete();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + (long) slots * size);
+		}
+		finally
+		{
+			raf.close();
+		}
+		map.order(ByteOrder.nativeOrder());
+		base = NativeMemory.address(map);
+		
+		map.putInt(VERSION_OFFSET, VERSION);
+		map.putInt(SLOTS_OFFSET, slots);
+		map.putInt(SLOT_SIZE_OFFSET, size);
+		map.putInt(ORDER_OFFSET, BYTE_ORDER_MARK);
+		LONG.setRelease(map, PUBLISHED_OFFSET, 0L);
+		// readers check the magic last
+		VarHandle.storeStoreFence();
+		map.putInt(MAGIC_OFFSET, MAGIC);
+		
+		decoder = new VariantDecoder();
+		decoder.register(RawMatrix.USER_TYPE);
+		collector = new MatrixCollector();
+	}
+	
+	/**
+	 * Sets the closed flag of an existing ring, if any.
+	 */
+	private static void markClosed(File file) throws IOException
+	{
+		if( !file.exists() || file.length() < FILE_HEADER_SIZE )
+			return;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			ByteBuffer one = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+			one.putInt(0, 1);
+			raf.getChannel().write(one, CLOSED_OFFSET);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public int getSlotCount() {
+		return slots;
+	}
+	
+	/**
+	 * @return the largest matrix a slot holds, in bytes
+	 */
+	public int getMaxLength() {
+		return slotSize - SLOT_HEADER_SIZE;
+	}
+	
+	/**
+	 * @return number of matrices published so far
+	 */
+	public long getPublishedCount() {
+		return published;
+	}
+	
+	/**
+	 * @return number of matrices which did not fit a slot
+	 */
+	public long getOversizedCount() {
+		return oversized;
+	}
+	
+	/**
+	 * Publishes the CvMatData arguments of a received frame. The frame is
+	 * not modified.
+	 */
+	public void publish(Frame frame)
+	{
+		if( frame.type != Frame.PROTO_FRAME )
+			return;
+		ByteBuffer message = frame.message();
+		message.position(Frame.HEADER_SIZE);
+		collector.frame = frame;
+		try
+		{
+			for( collector.index = 0; collector.index < frame.numargs; ++collector.index )
+			{
+				if( !decoder.read(message, collector) )
+					break;
+			}
+		}
+		finally
+		{
+			collector.frame = null;
+		}
+	}
+	
+	/**
+	 * Publishes one matrix.
+	 * 
+	 * @param index position of the matrix among the arguments of its frame
+	 * @return false if the matrix is larger than a slot
+	 */
+	public boolean publish(int serial, int index, RawMatrix matrix, long receivedNanos)
+	{
+		return publish(serial, index, matrix.type, matrix.width, matrix.height, 
+				matrix.data, 0, matrix.data.limit(), receivedNanos);
+	}
+	
+	/**
+	 * Publishes one matrix.
+	 * 
+	 * @param index position of the matrix among the arguments of its frame
+	 * @param data buffer holding the matrix data at the given offset
+	 * @return false if the matrix is larger than a slot
+	 */
+	public boolean publish(int serial, int index, int cvType, int width, int height, 
+			ByteBuffer data, int offset, int length, long receivedNanos)
+	{
+		if( length < 0 || length > slotSize - SLOT_HEADER_SIZE )
+		{
+			++oversized;
+			return false;
+		}
+		
+		long n = published;
+		int slot = FILE_HEADER_SIZE + (int) (n % slots) * slotSize;
+		
+		// odd while writing; the fence keeps the data writes behind it
+		LONG.setOpaque(map, slot + SEQUENCE_OFFSET, 2 * n + 1);
+		VarHandle.storeStoreFence();
+		
+		map.putInt(slot + SERIAL_OFFSET, serial);
+		map.putInt(slot + INDEX_OFFSET, index);
+		map.putInt(slot + TYPE_OFFSET, cvType);
+		map.putInt(slot + WIDTH_OFFSET, width);
+		map.putInt(slot + HEIGHT_OFFSET, height);
+		map.putInt(slot + LENGTH_OFFSET, length);
+		map.putLong(slot + RECEIVED_OFFSET, receivedNanos);
+		if( data.isDirect() )
+		{
+			NativeMemory.copy(NativeMemory.address(data) + offset, base + slot + SLOT_HEADER_SIZE, length);
+		}
+		else
+		{
+			ByteBuffer src = data.duplicate();
+			src.limit(offset + length).position(offset);
+			ByteBuffer dst = map.duplicate();
+			dst.position(slot + SLOT_HEADER_SIZE);
+			dst.put(src);
+		}
+		
+		LONG.setRelease(map, slot + SEQUENCE_OFFSET, 2 * n + 2);
+		LONG.setRelease(map, PUBLISHED_OFFSET, n + 1);
+		published = n + 1;
+		return true;
+	}
+	
+	/**
+	 * Tells readers that no more frames follow. The file is left in place
+	 * for readers still using it.
+	 */
+	public void close()
+	{
+		VarHandle.storeStoreFence();
+		map.putInt(CLOSED_OFFSET, 1);
+	}
+}
@@ -0,0 +1,228 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the raw frames received from the server to disk, so a session 
+ * can be replayed later by StreamReplay without a Parlevision server.
+ *
+ * Frames are appended to a log split in segment files. A record is a 16
+ * byte header (frame size, serial and the receive timestamp in 
+ * nanoseconds) followed by the frame exactly as it was received, without
+ * the size prefix. A record with size 0 marks the end of a segment. The 
+ * header and the frame are written straight from their buffers in one 
+ * gathering write, so recording adds no copies on the Java side, and the
+ * segment files end where their data ends. They are not memory mapped: 
+ * a mapping would keep them at the full segment size, as a mapped file 
+ * cannot be cut shorter on every platform.
+ *
+ * An index file holds one entry per record (serial, segment, offset and
+ * timestamp) for seeking.
+ *
+ * Files for a recording with base name "session" are session.idx and
+ * session-000000.seg, session-000001.seg and so on.
+ */
+public class StreamRecorder {
+	
+	final static int RECORD_HEADER_SIZE = 4 + 4 + 8;
+	final static int INDEX_ENTRY_SIZE   = 4 + 4 + 4 + 8;
+	final static long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+	
+	private final File base;
+	private final long segmentSize;
+	private final FileChannel index;
+	private final ByteBuffer indexBuffer;
+	private final ByteBuffer header;
+	private final ByteBuffer endMarker;
+	private final ByteBuffer[] record;
+	private FileChannel segment;
+	private long segmentPosition;
+	private int segmentNumber;
+	private boolean closed;
+	private long records;
+	private long bytes;
+	
+	public StreamRecorder(File base) throws IOException
+	{
+		this(base, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Starts a new recording, overwriting an existing one with the same 
+	 * base name.
+	 */
+	public StreamRecorder(File base, long segmentSize) throws IOException
+	{
+		this.base = base;
+		this.segmentSize = segmentSize;
+		this.segmentNumber = -1;
+		
+		RandomAccessFile file = new RandomAccessFile(indexFile(base), "rw");
+		file.setLength(0);
+		this.index = file.getChannel();
+		this.indexBuffer = ByteBuffer.allocateDirect(256 * INDEX_ENTRY_SIZE);
+		this.header = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+		this.endMarker = ByteBuffer.allocateDirect(4);
+		this.record = new ByteBuffer[2];
+		
+		for( int i=0; segmentFile(base, i).exists(); ++i )
+			segmentFile(base, i).delete();
+	}
+	
+	static File indexFile(File base)
+	{
+		return new File(base.getPath() + ".idx");
+	}
+	
+	static File segmentFile(File base, int number)
+	{
+		return new File(String.format("%s-%06d.seg", base.getPath(), number));
+	}
+	
+	/**
+	 * Appends a frame with its receive time. Called on the I/O thread.
+	 * Does nothing once the recorder is closed, as the I/O thread may still
+	 * hand it a frame while recording is stopped.
+	 */
+	public synchronized void record(Frame frame, long receivedNanos) throws IOException
+	{
+		if( closed )
+			return;
+		
+		int size = frame.size;
+		// keep room for the end of segment marker; a frame larger than a 
+		// segment gets a segment of its own
+		if( segment == null 
+				|| (segmentPosition > 0 && segmentSize - segmentPosition < RECORD_HEADER_SIZE + size + 4) )
+			nextSegment();
+		
+		long offset = segmentPosition;
+		header.clear();
+		header.putInt(size);
+		header.putInt(frame.serial);
+		header.putLong(receivedNanos);
+		header.flip();
+		
+		ByteBuffer src = frame.buffer;
+		int position = src.position();
+		int limit = src.limit();
+		src.limit(size).position(0);
+		record[0] = header;
+		record[1] = src;
+		try
+		{
+			while( src.hasRemaining() )
+				segment.write(record);
+		}
+		finally
+		{
+			record[1] = null;
+			src.limit(limit).position(position);
+		}
+		segmentPosition += RECORD_HEADER_SIZE + size;
+		
+		indexBuffer.putInt(frame.serial);
+		indexBuffer.putInt(segmentNumber);
+		indexBuffer.putInt((int) offset);
+		indexBuffer.putLong(receivedNanos);
+		if( !indexBuffer.hasRemaining() )
+			flushIndex();
+		
+		++records;
+		bytes += size;
+	}
+	
+	private void nextSegment() throws IOException
+	{
+		endSegment();
+		
+		++segmentNumber;
+		RandomAccessFile file = new RandomAccessFile(segmentFile(base, segmentNumber), "rw");
+		file.setLength(0);
+		segment = file.getChannel();
+		segmentPosition = 0;
+	}
+	
+	/**
+	 * Writes the end of segment marker and closes the current segment.
+	 */
+	private void endSegment() throws IOException
+	{
+		if( segment == null )
+			return;
+		try
+		{
+			endMarker.clear();
+			while( endMarker.hasRemaining() )
+				segment.write(endMarker);
+			segment.force(false);
+		}
+		finally
+		{
+			segment.close();
+			segment = null;
+		}
+	}
+	
+	private void flushIndex() throws IOException
+	{
+		indexBuffer.flip();
+		while( indexBuffer.hasRemaining() )
+			index.write(indexBuffer);
+		indexBuffer.clear();
+	}
+	
+	public synchronized long getRecordCount() {
+		return records;
+	}
+	
+	public synchronized long getByteCount() {
+		return bytes;
+	}
+	
+	/**
+	 * Ends the recording and forces the data to disk.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if( closed )
+			return;
+		closed = true;
+		
+		try
+		{
+			endSegment();
+			flushIndex();
+			index.force(true);
+		}
+		finally
+		{
+			index.close();
+		}
+	}
+}
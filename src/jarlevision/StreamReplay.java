@@ -0,0 +1,240 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Feeds the frames of a recording made by StreamRecorder to a 
+ * FrameParser.Listener, the same way the transport hands out received 
+ * frames. Frames are replayed either at the pace they were received or as
+ * fast as possible, which gives deterministic throughput runs without a 
+ * network or a Parlevision server.
+ */
+public class StreamReplay implements Runnable {
+	
+	private final File base;
+	private final FrameParser.Listener listener;
+	private final Frame frame;
+	private int[] serials;
+	private int[] segments;
+	private int[] offsets;
+	private int entries;
+	private volatile boolean running;
+	private boolean paced;
+	private int startSegment;
+	private int startOffset;
+	
+	public StreamReplay(File base, FrameParser.Listener listener) throws IOException
+	{
+		this.base = base;
+		this.listener = listener;
+		this.frame = new Frame();
+		this.paced = true;
+		
+		if( !StreamRecorder.segmentFile(base, 0).exists() )
+			throw new IOException("No recording found at " + base);
+		readIndex();
+	}
+	
+	private void readIndex() throws IOException
+	{
+		File file = StreamRecorder.indexFile(base);
+		serials = new int[0];
+		if( !file.exists() )
+			return;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			MappedByteBuffer index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			entries = (int) (raf.length() / StreamRecorder.INDEX_ENTRY_SIZE);
+			serials  = new int[entries];
+			segments = new int[entries];
+			offsets  = new int[entries];
+			for( int i=0; i < entries; ++i )
+			{
+				serials[i]  = index.getInt();
+				segments[i] = index.getInt();
+				offsets[i]  = index.getInt();
+				index.getLong();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * @param paced true to replay at the original pace, false to replay
+	 * as fast as the listener consumes the frames
+	 */
+	public void setPaced(boolean paced) {
+		this.paced = paced;
+	}
+	
+	/**
+	 * @return number of frames in the index
+	 */
+	public int getFrameCount() {
+		return entries;
+	}
+	
+	/**
+	 * Makes the next run() start at the first frame with the given serial.
+	 * 
+	 * @return false if the serial is not in the index
+	 */
+	public boolean seek(int serial)
+	{
+		for( int i=0; i < entries; ++i )
+		{
+			if( serials[i] == serial )
+			{
+				startSegment = segments[i];
+				startOffset  = offsets[i];
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public void stop() {
+		running = false;
+	}
+	
+	/**
+	 * Replays from the current seek position to the end of the recording,
+	 * or until stop() is called.
+	 */
+	public void run()
+	{
+		running = true;
+		long firstTimestamp = 0;
+		long startNanos = 0;
+		boolean first = true;
+		
+		try
+		{
+			for( int s=startSegment; running && StreamRecorder.segmentFile(base, s).exists(); ++s )
+			{
+				MappedByteBuffer segment = map(StreamRecorder.segmentFile(base, s));
+				if( s == startSegment )
+					segment.position(startOffset);
+				
+				while( running && segment.remaining() >= StreamRecorder.RECORD_HEADER_SIZE )
+				{
+					int size = segment.getInt();
+					if( size == 0 )
+						break;
+					segment.getInt(); // serial, also in the frame header
+					long timestamp = segment.getLong();
+					
+					if( paced )
+					{
+						if( first )
+						{
+							firstTimestamp = timestamp;
+							startNanos = System.nanoTime();
+							first = false;
+						}
+						long wait = (timestamp - firstTimestamp) - (System.nanoTime() - startNanos);
+						if( wait > 0 )
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					}
+					
+					ByteBuffer message = segment.duplicate();
+					message.limit(message.position() + size);
+					message = message.slice();
+					segment.position(segment.position() + size);
+					
+					frame.type    = message.getInt(0);
+					frame.serial  = message.getInt(4);
+					frame.numargs = message.getInt(8);
+					frame.size    = size;
+					frame.buffer  = message;
+					frame.startNanos = frame.receivedNanos = System.nanoTime();
+					listener.frameReceived(frame);
+				}
+			}
+		}
+		catch( IOException e )
+		{
+			System.err.println("Replay of " + base + " failed: " + e.getMessage());
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+	}
+	
+	private static MappedByteBuffer map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Decodes a recording as fast as possible and reports the throughput.
+	 * Usage: StreamReplay base [--paced]
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if( args.length < 1 )
+		{
+			System.err.println("Usage: StreamReplay <recording base name> [--paced]");
+			System.exit(1);
+		}
+		
+		final FrameDecoder decoder = new FrameDecoder();
+		final long[] totals = new long[2];
+		StreamReplay replay = new StreamReplay(new File(args[0]), new FrameParser.Listener() {
+			public void frameReceived(Frame frame)
+			{
+				decoder.decode(frame).dispose();
+				totals[0]++;
+				totals[1] += frame.size;
+			}
+		});
+		replay.setPaced(args.length > 1 && args[1].equals("--paced"));
+		
+		long start = System.nanoTime();
+		replay.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Replayed %d frames, %.1f MB in %.2f s: %.1f frames/s %.1f MB/s%n", 
+				totals[0], totals[1] / 1048576.0, seconds, totals[0] / seconds, totals[1] / 1048576.0 / seconds);
+	}
+}
@@ -0,0 +1,646 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Parlevision TCP server, for benchmarking the client 
+ * without a real pipeline. It sends PROTO_FRAME messages with a serial, a
+ * status String, an Int frame counter and a configurable number of image
+ * arguments, and reads the PROTO_ACK replies. Images are raw CvMatData,
+ * a PNG QImage or a JPEG or PNG compressed QImageWrapper. Like the real server it 
+ * stops sending while a window of frames is unacknowledged.
+ *
+ * Every second it reports frames/s, MB/s and the latency between sending
+ * a serial and receiving its ack. With --loopback it also starts a 
+ * headless client in the same process, which receives and acks the frames
+ * through NioTransport and AckWindow, for end-to-end runs on loopback.
+ * With --clients n that many loopback clients share a single IoLoop, as 
+ * in MultiSourceClient. --mbps limits the bandwidth of every session to
+ * simulate a slow link.
+ *
+ * Clients which open with a PROTO_INIT message get a stream shaped to 
+ * their Capabilities: the most preferred of the --formats the server may
+ * switch to, images scaled down to the requested size and the lower of 
+ * the two frame rates and windows. The server answers with a PROTO_INIT
+ * describing the stream it sends. --ignore-init makes it behave like a
+ * server which does not know INIT. Loopback clients announce their
+ * window, and --client-max-size and --client-formats if given.
+ *
+ * Usage: SyntheticServer [--port n] [--size WxH] 
+ *        [--format gray8|bgr|bgra|depth16|float|png|jpeg|wrapped-png] 
+ *        [--formats f,f,...] [--images n] [--fps n] [--window n] 
+ *        [--duration s] [--mbps n] [--ignore-init] [--loopback] 
+ *        [--clients n] [--client-max-size WxH] [--client-formats f,f,...]
+ */
+public class SyntheticServer {
+	
+	static class Options {
+		int port = 2323;
+		int width = 640;
+		int height = 480;
+		String format = "bgr";
+		int images = 1;
+		int fps = 0;
+		int window = 4;
+		int duration = 0;
+		boolean loopback = false;
+		int clients = 1;
+		double mbps = 0;
+		List<String> formats = new ArrayList<String>();
+		boolean ignoreInit = false;
+		int clientMaxWidth = 0;
+		int clientMaxHeight = 0;
+		List<String> clientFormats = null;
+		
+		/**
+		 * @return the formats the server may send, the configured one first
+		 */
+		List<String> available()
+		{
+			List<String> available = new ArrayList<String>();
+			available.add(format);
+			available.addAll(formats);
+			return available;
+		}
+		
+		/**
+		 * @return these options changed to what a client asked for
+		 */
+		Options negotiate(Capabilities caps)
+		{
+			Options o = new Options();
+			o.port = port;
+			o.images = images;
+			o.duration = duration;
+			o.mbps = mbps;
+			
+			String chosen = caps.choose(available());
+			o.format = chosen != null ? chosen : format;
+			int[] size = caps.fit(width, height);
+			o.width = size[0];
+			o.height = size[1];
+			o.fps = fps;
+			if( caps.getMaxFps() > 0 )
+				o.fps = fps > 0 ? Math.min(fps, caps.getMaxFps()) : caps.getMaxFps();
+			o.window = window;
+			if( caps.getWindow() > 0 )
+				o.window = Math.min(window, caps.getWindow());
+			return o;
+		}
+		
+		/**
+		 * @return the PROTO_INIT reply describing a negotiated stream
+		 */
+		Capabilities describe()
+		{
+			Capabilities caps = new Capabilities();
+			caps.setFormats(Collections.singletonList(format));
+			caps.setMaxSize(width, height);
+			caps.setMaxFps(fps);
+			caps.setWindow(window);
+			return caps;
+		}
+		
+		static Options parse(String[] args)
+		{
+			Options o = new Options();
+			for( int i=0; i < args.length; ++i )
+			{
+				String arg = args[i];
+				if( arg.equals("--loopback") )
+				{
+					o.loopback = true;
+					continue;
+				}
+				if( arg.equals("--ignore-init") )
+				{
+					o.ignoreInit = true;
+					continue;
+				}
+				if( i+1 >= args.length )
+					throw new IllegalArgumentException("Missing value for " + arg);
+				String value = args[++i];
+				if( arg.equals("--port") )
+					o.port = Integer.parseInt(value);
+				else if( arg.equals("--size") )
+				{
+					int x = value.indexOf('x');
+					o.width  = Integer.parseInt(value.substring(0, x));
+					o.height = Integer.parseInt(value.substring(x+1));
+				}
+				else if( arg.equals("--format") )
+					o.format = value;
+				else if( arg.equals("--formats") )
+					o.formats = Arrays.asList(value.split(","));
+				else if( arg.equals("--client-max-size") )
+				{
+					int x = value.indexOf('x');
+					o.clientMaxWidth  = Integer.parseInt(value.substring(0, x));
+					o.clientMaxHeight = Integer.parseInt(value.substring(x+1));
+				}
+				else if( arg.equals("--client-formats") )
+					o.clientFormats = Arrays.asList(value.split(","));
+				else if( arg.equals("--images") )
+					o.images = Integer.parseInt(value);
+				else if( arg.equals("--fps") )
+					o.fps = Integer.parseInt(value);
+				else if( arg.equals("--window") )
+					o.window = Integer.parseInt(value);
+				else if( arg.equals("--duration") )
+					o.duration = Integer.parseInt(value);
+				else if( arg.equals("--clients") )
+					o.clients = Integer.parseInt(value);
+				else if( arg.equals("--mbps") )
+					o.mbps = Double.parseDouble(value);
+				else
+					throw new IllegalArgumentException("Unknown option " + arg);
+			}
+			for( int i=0; i < o.formats.size(); ++i )
+				cvType(o.formats.get(i));
+			return o;
+		}
+	}
+	
+	private final Options options;
+	private final byte[] images;
+	private final AtomicLong sentFrames = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong ackedFrames = new AtomicLong();
+	private final AtomicLong ackLatencySum = new AtomicLong();
+	private final AtomicLong ackLatencyMax = new AtomicLong();
+	private ServerSocketChannel server;
+	
+	public SyntheticServer(Options options) throws IOException
+	{
+		this.options = options;
+		this.images = encodeImages(options);
+	}
+	
+	/**
+	 * @return the CV type for a format name, or -1 for the QImage and 
+	 * QImageWrapper formats
+	 */
+	static int cvType(String format)
+	{
+		if( format.equals("gray8") )
+			return CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, 1);
+		if( format.equals("bgr") )
+			return CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, 3);
+		if( format.equals("bgra") )
+			return CvMatData.CV_MAKE_TYPE(CvMatData.CV_8U, 4);
+		if( format.equals("depth16") )
+			return CvMatData.CV_MAKE_TYPE(CvMatData.CV_16U, 1);
+		if( format.equals("float") )
+			return CvMatData.CV_MAKE_TYPE(CvMatData.CV_32F, 1);
+		if( format.equals("png") || format.equals("jpeg") || format.equals("wrapped-png") )
+			return -1;
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+	
+	/**
+	 * Generates a diagonal gradient test pattern for the given CV type, 
+	 * in the little endian layout of an OpenCV matrix.
+	 */
+	static byte[] pattern(int cvType, int width, int height)
+	{
+		int depth = CvMatData.CV_MAT_DEPTH(cvType);
+		int channels = CvMatData.CV_MAT_CN(cvType);
+		int elementSize = DepthRenderer.elementSize(depth);
+		ByteBuffer data = ByteBuffer.allocate(width * height * channels * elementSize);
+		data.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		
+		for( int y=0; y < height; ++y )
+		{
+			for( int x=0; x < width; ++x )
+			{
+				int v = (x + y) & 0xff;
+				for( int c=0; c < channels; ++c )
+				{
+					if( depth == CvMatData.CV_16U )
+						data.putShort((short) ((x + y) * 16));
+					else if( depth == CvMatData.CV_32F )
+						data.putFloat((x + y) / 10.0f);
+					else
+						data.put((byte) (v + c * 85));
+				}
+			}
+		}
+		return data.array();
+	}
+	
+	/**
+	 * Encodes the image arguments once; they are the same in every frame.
+	 */
+	static byte[] encodeImages(Options o) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		VariantWriter writer = new VariantWriter(bytes);
+		int cvType = cvType(o.format);
+		for( int i=0; i < o.images; ++i )
+		{
+			if( cvType < 0 )
+			{
+				BufferedImage image = new BufferedImage(o.width, o.height, BufferedImage.TYPE_INT_RGB);
+				for( int y=0; y < o.height; ++y )
+					for( int x=0; x < o.width; ++x )
+						image.setRGB(x, y, ((x + y) & 0xff) * 0x010101);
+				if( o.format.equals("jpeg") )
+					writer.writeQImageWrapper(image, "jpeg");
+				else if( o.format.equals("wrapped-png") )
+					writer.writeQImageWrapper(image, "png");
+				else
+					writer.writeImage(image);
+			}
+			else
+			{
+				writer.writeCvMatData(cvType, o.width, o.height, pattern(cvType, o.width, o.height));
+			}
+		}
+		writer.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Binds the server socket; returns the port it listens on.
+	 */
+	public int bind() throws IOException
+	{
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(options.port));
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+	
+	/**
+	 * Accepts clients until the server socket is closed, serving each on
+	 * its own thread.
+	 */
+	public void serve()
+	{
+		try
+		{
+			while( true )
+			{
+				final SocketChannel channel = server.accept();
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						new Session(channel).run();
+					}
+				}, "synthetic-session");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		catch( IOException e )
+		{
+			// server socket closed
+		}
+	}
+	
+	public void close() throws IOException
+	{
+		server.close();
+	}
+	
+	// how long a session waits for a PROTO_INIT before sending with defaults
+	final static int INIT_TIMEOUT_MS = 200;
+	
+	/**
+	 * One connected client: a sending loop on the session thread and an
+	 * ack reading thread. The reading thread also picks up PROTO_INIT 
+	 * messages, which the sending loop applies before its next frame.
+	 */
+	class Session implements Runnable {
+		private final SocketChannel channel;
+		private final long[] sendTimes = new long[4096];
+		private final Object lock = new Object();
+		private int unacked;
+		private Capabilities requested;
+		private volatile boolean open = true;
+		
+		Session(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+		
+		public void run()
+		{
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readAcks();
+				}
+			}, "synthetic-acks");
+			reader.setDaemon(true);
+			reader.start();
+			
+			System.out.println("Client connected: " + channel.socket().getRemoteSocketAddress());
+			try
+			{
+				ByteBuffer head = ByteBuffer.allocate(1024);
+				byte[] images = SyntheticServer.this.images;
+				int numImages = options.images;
+				int window = options.window;
+				long interval = options.fps > 0 ? 1000000000L / options.fps : 0;
+				
+				// give the client a moment to announce what it wants
+				if( !options.ignoreInit )
+				{
+					long deadline = System.currentTimeMillis() + INIT_TIMEOUT_MS;
+					synchronized( lock )
+					{
+						long wait;
+						while( open && requested == null && (wait = deadline - System.currentTimeMillis()) > 0 )
+							lock.wait(wait);
+					}
+				}
+				long next = System.nanoTime();
+				long linkStart = next;
+				long linkBytes = 0;
+				
+				for( int serial=0; open; ++serial )
+				{
+					Capabilities caps;
+					synchronized( lock )
+					{
+						caps = requested;
+						requested = null;
+					}
+					if( caps != null )
+					{
+						Options shaped = options.negotiate(caps);
+						images = encodeImages(shaped);
+						numImages = shaped.images;
+						window = shaped.window;
+						interval = shaped.fps > 0 ? 1000000000L / shaped.fps : 0;
+						
+						ByteBuffer reply = shaped.describe().toMessage();
+						while( reply.hasRemaining() )
+							channel.write(reply);
+						System.out.println("Client asked for " + caps + ", sending " + shaped.describe());
+					}
+					
+					synchronized( lock )
+					{
+						while( open && unacked >= window )
+							lock.wait();
+						++unacked;
+					}
+					
+					if( interval > 0 )
+					{
+						long wait = next - System.nanoTime();
+						if( wait > 0 )
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						next += interval;
+					}
+					
+					head.clear();
+					ByteArrayOutputStream args = new ByteArrayOutputStream(64);
+					VariantWriter writer = new VariantWriter(args);
+					writer.writeString("Synthetic frame " + serial);
+					writer.writeInt(serial);
+					writer.flush();
+					
+					int size = 3*4 + args.size() + images.length;
+					head.putInt(size);
+					head.putInt(Frame.PROTO_FRAME);
+					head.putInt(serial);
+					head.putInt(2 + numImages);
+					head.put(args.toByteArray());
+					head.flip();
+					
+					sendTimes[serial & (sendTimes.length - 1)] = System.nanoTime();
+					ByteBuffer[] message = { head, ByteBuffer.wrap(images) };
+					while( message[1].hasRemaining() )
+						channel.write(message);
+					
+					sentFrames.incrementAndGet();
+					sentBytes.addAndGet(size + 4);
+					
+					if( options.mbps > 0 )
+					{
+						// hold back until the link would have carried the frame
+						linkBytes += size + 4;
+						long due = linkStart + (long) (linkBytes * 8000.0 / options.mbps);
+						long wait = due - System.nanoTime();
+						if( wait > 0 )
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					}
+				}
+			}
+			catch( IOException e )
+			{
+				// client went away
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			close();
+			System.out.println("Client disconnected.");
+		}
+		
+		private void readAcks()
+		{
+			ByteBuffer message = ByteBuffer.allocate(4096);
+			try
+			{
+				while( open )
+				{
+					message.clear().limit(4);
+					readFully(message);
+					int size = message.getInt(0);
+					if( size < 4 || size > message.capacity() )
+						throw new IOException("Unexpected message of " + size + " bytes");
+					message.clear().limit(size);
+					readFully(message);
+					
+					int type = message.getInt(0);
+					if( type == Frame.PROTO_ACK )
+						acked(message.getInt(4));
+					else if( type == Frame.PROTO_INIT && !options.ignoreInit )
+					{
+						message.flip().position(Frame.HEADER_SIZE);
+						Capabilities caps = Capabilities.read(message, message.getInt(8));
+						if( caps != null )
+						{
+							synchronized( lock )
+							{
+								requested = caps;
+								lock.notifyAll();
+							}
+						}
+					}
+				}
+			}
+			catch( IOException e )
+			{
+				close();
+			}
+		}
+		
+		private void acked(int serial)
+		{
+			long latency = System.nanoTime() - sendTimes[serial & (sendTimes.length - 1)];
+			ackedFrames.incrementAndGet();
+			ackLatencySum.addAndGet(latency);
+			long max;
+			while( latency > (max = ackLatencyMax.get()) && !ackLatencyMax.compareAndSet(max, latency) )
+				;
+			synchronized( lock )
+			{
+				--unacked;
+				lock.notifyAll();
+			}
+		}
+		
+		private void readFully(ByteBuffer buffer) throws IOException
+		{
+			while( buffer.hasRemaining() )
+				if( channel.read(buffer) < 0 )
+					throw new EOFException();
+		}
+		
+		private void close()
+		{
+			open = false;
+			synchronized( lock )
+			{
+				lock.notifyAll();
+			}
+			try
+			{
+				channel.close();
+			}
+			catch( IOException e )
+			{
+				// already closed
+			}
+		}
+	}
+	
+	/**
+	 * Starts a headless client which counts and acks the frames without
+	 * decoding them, so the run measures transport and flow control only.
+	 */
+	static NioTransport startLoopbackClient(int port, int window, IoLoop loop, 
+			Capabilities capabilities, final AtomicLong frames, final AtomicLong bytes)
+	{
+		final AckWindow ackWindow = new AckWindow(window);
+		NioTransport transport = new NioTransport(new NioTransport.Listener() {
+			public void connected() {
+			}
+			
+			public void frameReceived(Frame frame)
+			{
+				frames.incrementAndGet();
+				bytes.addAndGet(frame.getSize() + 4);
+				ackWindow.consumed();
+			}
+			
+			public void disconnected(IOException cause) {
+			}
+		}, loop);
+		transport.setAckWindow(ackWindow);
+		transport.setCapabilities(capabilities);
+		transport.connectToHost("localhost", port);
+		return transport;
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		Options options = Options.parse(args);
+		if( options.loopback )
+		{
+			options.port = 0;
+			if( options.duration == 0 )
+				options.duration = 10;
+		}
+		
+		final SyntheticServer server = new SyntheticServer(options);
+		int port = server.bind();
+		System.out.println("Serving " + options.images + " x " + options.format + " " + options.width + "x" + options.height 
+				+ " on port " + port + ", " + (options.fps > 0 ? options.fps + " fps" : "unlimited fps")
+				+ ", window " + options.window);
+		
+		Thread serving = new Thread(new Runnable() {
+			public void run() {
+				server.serve();
+			}
+		}, "synthetic-server");
+		serving.setDaemon(true);
+		serving.start();
+		
+		AtomicLong clientFrames = new AtomicLong();
+		AtomicLong clientBytes = new AtomicLong();
+		NioTransport[] clients = new NioTransport[options.loopback ? options.clients : 0];
+		IoLoop loop = null;
+		if( options.loopback )
+		{
+			loop = new IoLoop("jarlevision-io-loopback");
+			loop.start();
+		}
+		Capabilities capabilities = new Capabilities();
+		capabilities.setWindow(options.window);
+		capabilities.setMaxSize(options.clientMaxWidth, options.clientMaxHeight);
+		if( options.clientFormats != null )
+			capabilities.setFormats(options.clientFormats);
+		for( int i=0; i < clients.length; ++i )
+			clients[i] = startLoopbackClient(port, options.window, loop, capabilities, clientFrames, clientBytes);
+		
+		for( int second=1; options.duration == 0 || second <= options.duration; ++second )
+		{
+			Thread.sleep(1000);
+			long frames = server.sentFrames.getAndSet(0);
+			long bytes = server.sentBytes.getAndSet(0);
+			long acked = server.ackedFrames.getAndSet(0);
+			long latencySum = server.ackLatencySum.getAndSet(0);
+			long latencyMax = server.ackLatencyMax.getAndSet(0);
+			
+			String line = String.format("sent %6d frames/s %8.1f MB/s, ack latency avg %7.2f ms max %7.2f ms", 
+					frames, bytes / 1048576.0, acked > 0 ? latencySum / acked / 1e6 : 0.0, latencyMax / 1e6);
+			if( clients.length > 0 )
+				line += String.format(", client received %6d frames/s %8.1f MB/s", 
+						clientFrames.getAndSet(0), clientBytes.getAndSet(0) / 1048576.0);
+			System.out.println(line);
+		}
+		
+		for( int i=0; i < clients.length; ++i )
+			clients[i].close();
+		if( loop != null )
+			loop.shutdown();
+		server.close();
+	}
+}
@@ -0,0 +1,101 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+
+package jarlevision;
+
+/**
+ * Turns every pixel white whose brightness is at least the level and all
+ * others black, in place. Gray images are compared by value, 32-bit 
+ * images by luma.
+ */
+public class ThresholdStage implements ProcessingStage {
+	
+	private final static int WHITE = 0xFFFFFFFF;
+	private final static int BLACK = 0xFF000000;
+	
+	private volatile int level;
+	
+	/**
+	 * @param level lowest brightness, 0 to 255, which becomes white
+	 */
+	public ThresholdStage(int level)
+	{
+		setLevel(level);
+	}
+	
+	public void setLevel(int level)
+	{
+		if( level < 0 || level > 255 )
+			throw new IllegalArgumentException("Threshold level must be between 0 and 255");
+		this.level = level;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	public String getName() {
+		return "threshold";
+	}
+	
+	/**
+	 * @return the ITU-R BT.601 luma of an ARGB32 pixel, 0 to 255
+	 */
+	static int luma(int argb)
+	{
+		return (77 * ((argb >> 16) & 0xFF) + 150 * ((argb >> 8) & 0xFF) + 29 * (argb & 0xFF)) >> 8;
+	}
+	
+	public Object createState() {
+		return null;
+	}
+	
+	public NativeBuffer begin(Object state, NativeBuffer source, NativeBufferPool pool) {
+		return source;
+	}
+	
+	public void process(Object state, int band, NativeBuffer source, NativeBuffer target, int fromRow, int toRow)
+	{
+		int level = this.level;
+		int width = target.width;
+		long row = target.address() + (long) fromRow * target.bytesPerLine;
+		for( int y=fromRow; y < toRow; ++y, row += target.bytesPerLine )
+		{
+			if( NativeBuffer.bytesPerPixel(target.format) == 1 )
+			{
+				for( int x=0; x < width; ++x )
+					NativeMemory.putByte(row + x, (NativeMemory.getByte(row + x) & 0xFF) >= level ? (byte) 0xFF : 0);
+			}
+			else
+			{
+				for( int x=0; x < width; ++x )
+				{
+					long p = row + 4L * x;
+					NativeMemory.putInt(p, luma(NativeMemory.getInt(p)) >= level ? WHITE : BLACK);
+				}
+			}
+		}
+	}
+	
+	public void end(Object state, int serial, NativeBuffer target, int bands) {
+	}
+}
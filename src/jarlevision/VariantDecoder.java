@@ -0,0 +1,365 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming decoder for QVariants as written by a QDataStream at version 
+ * Qt_4_0, the version the Parlevision server uses. Instead of returning
+ * boxed values it reports every value to a Visitor through a method for 
+ * its type, so scalars are passed as primitives and strings through a 
+ * reused CharSequence. Variable length values such as byte arrays, images
+ * and user types are passed as the buffer they were received in, 
+ * positioned at their data.
+ *
+ * User types are looked up in a registry of UserTypes, whose names are 
+ * encoded once and compared in place. Decoding scalar and string 
+ * arguments therefore allocates nothing once the string buffer has grown
+ * to the longest string seen.
+ *
+ * A decoder keeps a string buffer and is not thread safe; use one per 
+ * thread. The registry should be filled before decoding starts.
+ */
+public class VariantDecoder {
+	
+	/**
+	 * Receives the decoded values. The default implementations ignore the
+	 * value, so subclasses only override the types they are interested in.
+	 * 
+	 * Buffers passed to a visitor are positioned at the start of the data
+	 * and hold length more bytes. A visitor may move the position, the 
+	 * decoder continues after the value regardless. Buffers and strings
+	 * are only valid during the call.
+	 */
+	public static abstract class Visitor {
+		public void onInvalid() {}
+		public void onBoolean(boolean value) {}
+		public void onInt(int value) {}
+		public void onUInt(long value) {}
+		public void onLong(long value) {}
+		public void onDouble(double value) {}
+		public void onChar(char value) {}
+		
+		/**
+		 * @param value the string, or null for a null QString
+		 */
+		public void onString(CharSequence value) {}
+		
+		/**
+		 * @param length number of bytes, or -1 for a null QByteArray
+		 */
+		public void onByteArray(ByteBuffer data, int length) {}
+		
+		public void onBitArray(ByteBuffer data, int bits) {}
+		
+		/**
+		 * A QImage, streamed as a PNG file. length is 0 for a null image.
+		 */
+		public void onImage(ByteBuffer png, int length) {}
+		
+		/**
+		 * A QBitmap, streamed like an image.
+		 */
+		public void onBitmap(ByteBuffer png, int length) {}
+		
+		/**
+		 * A value of a registered user type.
+		 */
+		public void onUserType(UserType type, ByteBuffer data, int length) {}
+		
+		/**
+		 * Called for a type the decoder does not know the size of. The rest
+		 * of the stream can not be decoded after it.
+		 * 
+		 * @param name the name of an unregistered user type, null otherwise
+		 */
+		public void onUnsupported(int type, CharSequence name) {}
+	}
+	
+	/**
+	 * A user type, identified by its name on the stream. Subclasses tell 
+	 * the decoder how long a value is.
+	 */
+	public static abstract class UserType {
+		private final String name;
+		private final byte[] encoded;
+		
+		protected UserType(String name)
+		{
+			this.name = name;
+			this.encoded = name.getBytes(StandardCharsets.US_ASCII);
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return the number of bytes of the value starting at offset
+		 * @throws BufferUnderflowException if the buffer ends before the 
+		 * length is known
+		 */
+		protected abstract int length(ByteBuffer in, int offset);
+		
+		/**
+		 * Compares the name in place. Depending on the server the name is 
+		 * streamed with or without its terminating null character.
+		 */
+		boolean matches(ByteBuffer in, int offset, int length)
+		{
+			int n = encoded.length;
+			if( length != n && !(length == n + 1 && in.get(offset + n) == 0) )
+				return false;
+			for( int i=0; i < n; ++i )
+			{
+				if( in.get(offset + i) != encoded[i] )
+					return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	// Qt 4 type ids, see QVariant::Type
+	final static int TYPE_INVALID    = 0;
+	final static int TYPE_BOOL       = 1;
+	final static int TYPE_INT        = 2;
+	final static int TYPE_UINT       = 3;
+	final static int TYPE_LONGLONG   = 4;
+	final static int TYPE_ULONGLONG  = 5;
+	final static int TYPE_DOUBLE     = 6;
+	final static int TYPE_CHAR       = 7;
+	final static int TYPE_STRING     = 10;
+	final static int TYPE_BYTEARRAY  = 12;
+	final static int TYPE_BITARRAY   = 13;
+	final static int TYPE_IMAGE      = 70;
+	final static int TYPE_BITMAP     = 73;
+	final static int TYPE_USER_TYPE  = 127;
+	
+	private static final int PNG_IEND = 0x49454e44;
+	
+	private UserType[] userTypes;
+	private final StringBuilder string;
+	
+	public VariantDecoder()
+	{
+		userTypes = new UserType[0];
+		string = new StringBuilder(64);
+	}
+	
+	/**
+	 * Adds a user type to the registry of this decoder.
+	 */
+	public void register(UserType type)
+	{
+		UserType[] types = new UserType[userTypes.length + 1];
+		System.arraycopy(userTypes, 0, types, 0, userTypes.length);
+		types[userTypes.length] = type;
+		userTypes = types;
+	}
+	
+	/**
+	 * Decodes the QVariant at the position of a big endian buffer, reports
+	 * it to the visitor and advances the position past it.
+	 * 
+	 * @return false if the buffer ends within the value or its type is not
+	 * supported; the position is undefined afterwards
+	 */
+	public boolean read(ByteBuffer in, Visitor visitor)
+	{
+		try
+		{
+			int type = in.getInt();
+			switch( type )
+			{
+				case TYPE_INVALID:
+					// an invalid variant is followed by a null QString
+					skip(in, 4);
+					visitor.onInvalid();
+					return true;
+				case TYPE_BOOL:
+					visitor.onBoolean(in.get() != 0);
+					return true;
+				case TYPE_INT:
+					visitor.onInt(in.getInt());
+					return true;
+				case TYPE_UINT:
+					visitor.onUInt(in.getInt() & 0xffffffffL);
+					return true;
+				case TYPE_LONGLONG:
+				case TYPE_ULONGLONG:
+					visitor.onLong(in.getLong());
+					return true;
+				case TYPE_DOUBLE:
+					visitor.onDouble(in.getDouble());
+					return true;
+				case TYPE_CHAR:
+					visitor.onChar(in.getChar());
+					return true;
+				case TYPE_STRING:
+					visitor.onString(readString(in));
+					return true;
+				case TYPE_BYTEARRAY:
+				{
+					int length = in.getInt();
+					int offset = in.position();
+					if( length != -1 )
+						skip(in, length);
+					in.position(offset);
+					visitor.onByteArray(in, length);
+					in.position(length == -1 ? offset : offset + length);
+					return true;
+				}
+				case TYPE_BITARRAY:
+				{
+					int bits = in.getInt();
+					int length = (int) (((bits & 0xffffffffL) + 7) >> 3);
+					int offset = in.position();
+					skip(in, length);
+					in.position(offset);
+					visitor.onBitArray(in, bits);
+					in.position(offset + length);
+					return true;
+				}
+				case TYPE_IMAGE:
+				case TYPE_BITMAP:
+				{
+					int length = in.getInt() != 0 ? pngLength(in, in.position()) : 0;
+					int offset = in.position();
+					if( type == TYPE_IMAGE )
+						visitor.onImage(in, length);
+					else
+						visitor.onBitmap(in, length);
+					in.position(offset + length);
+					return true;
+				}
+				case TYPE_USER_TYPE:
+				{
+					int nameLength = in.getInt();
+					int nameOffset = in.position();
+					skip(in, nameLength);
+					
+					UserType userType = lookup(in, nameOffset, nameLength);
+					if( userType == null )
+					{
+						visitor.onUnsupported(type, ascii(in, nameOffset, nameLength));
+						return false;
+					}
+					
+					int offset = in.position();
+					int length = userType.length(in, offset);
+					skip(in, length);
+					in.position(offset);
+					visitor.onUserType(userType, in, length);
+					in.position(offset + length);
+					return true;
+				}
+				default:
+					visitor.onUnsupported(type, null);
+					return false;
+			}
+		}
+		catch( BufferUnderflowException e )
+		{
+			return false;
+		}
+	}
+	
+	private UserType lookup(ByteBuffer in, int offset, int length)
+	{
+		UserType[] types = userTypes;
+		for( int i=0; i < types.length; ++i )
+		{
+			if( types[i].matches(in, offset, length) )
+				return types[i];
+		}
+		return null;
+	}
+	
+	private static void skip(ByteBuffer in, int length)
+	{
+		if( length < 0 || length > in.remaining() )
+			throw new BufferUnderflowException();
+		in.position(in.position() + length);
+	}
+	
+	/**
+	 * Reads a QString, a byte length followed by big endian UTF-16, into 
+	 * the reused string buffer.
+	 */
+	private CharSequence readString(ByteBuffer in)
+	{
+		int length = in.getInt();
+		if( length == -1 )
+			return null;
+		if( length < 0 || length > in.remaining() )
+			throw new BufferUnderflowException();
+		
+		string.setLength(0);
+		for( int i=0; i < length / 2; ++i )
+			string.append(in.getChar());
+		skip(in, length & 1);
+		return string;
+	}
+	
+	/**
+	 * PNG has no length field, the end is found by walking its chunks up 
+	 * to IEND.
+	 */
+	private static int pngLength(ByteBuffer in, int offset)
+	{
+		int position = offset + 8;
+		int type;
+		do
+		{
+			if( in.limit() - position < 8 )
+				throw new BufferUnderflowException();
+			int length = in.getInt(position);
+			type = in.getInt(position + 4);
+			// chunk header, data and crc
+			if( length < 0 || in.limit() - position - 12 < length )
+				throw new BufferUnderflowException();
+			position += 12 + length;
+		}
+		while( type != PNG_IEND );
+		return position - offset;
+	}
+	
+	private CharSequence ascii(ByteBuffer in, int offset, int length)
+	{
+		string.setLength(0);
+		for( int i=0; i < length; ++i )
+		{
+			byte c = in.get(offset + i);
+			if( c != 0 )
+				string.append((char) (c & 0xff));
+		}
+		return string;
+	}
+}
@@ -0,0 +1,168 @@
+/**
+  * Copyright (C)2011 by Richard Loos
+  * All rights reserved.
+  *
+  * This file is part of the JarleVision client example program.
+  *
+  * JarleVision is free software: you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License as published by
+  * the Free Software Foundation, either version 3 of the License, or
+  * (at your option) any later version.
+  *
+  * ParleVision is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  * GNU General Public License for more details.
+  *
+  * A copy of the GNU General Public License can be found in the root
+  * of this software package directory in the file LICENSE.LGPL.
+  * If not, see <http://www.gnu.org/licenses/>.
+  */
+
+package jarlevision;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes values in the QDataStream (Qt_4_0) encoding of QVariant, the 
+ * format the Parlevision server sends frame arguments in. This is the 
+ * counterpart of VariantDecoder and does not need Qt, so it can
+ * be used by stand-in servers and to generate test streams.
+ */
+public class VariantWriter {
+	
+	// QVariant type ids, see com.trolltech.qt.QVariant
+	final static int TYPE_INT       = 2;
+	final static int TYPE_DOUBLE    = 6;
+	final static int TYPE_STRING    = 10;
+	final static int TYPE_IMAGE     = 70;
+	final static int TYPE_USER_TYPE = 127;
+	
+	final static String CVMATDATA_NAME = "plv::CvMatData";
+	final static String QIMAGEWRAPPER_NAME = "plv::QImageWrapper";
+	
+	// QImage::Format_RGB32
+	final static int QIMAGE_FORMAT_RGB32 = 4;
+	
+	private final DataOutputStream out;
+	
+	public VariantWriter(OutputStream out)
+	{
+		this.out = new DataOutputStream(out);
+	}
+	
+	public void writeInt(int value) throws IOException
+	{
+		out.writeInt(TYPE_INT);
+		out.writeInt(value);
+	}
+	
+	public void writeDouble(double value) throws IOException
+	{
+		out.writeInt(TYPE_DOUBLE);
+		out.writeDouble(value);
+	}
+	
+	public void writeString(String value) throws IOException
+	{
+		out.writeInt(TYPE_STRING);
+		writeQString(value);
+	}
+	
+	/**
+	 * Writes a QImage, which Qt streams as a flag followed by a PNG file.
+	 */
+	public void writeImage(BufferedImage image) throws IOException
+	{
+		out.writeInt(TYPE_IMAGE);
+		out.writeInt(1);
+		ImageIO.write(image, "png", out);
+	}
+	
+	/**
+	 * Writes a plv::CvMatData user type holding a continuous matrix.
+	 */
+	public void writeCvMatData(int cvType, int width, int height, byte[] data) throws IOException
+	{
+		writeUserTypeName(CVMATDATA_NAME);
+		out.writeInt(cvType);
+		out.writeInt(height);
+		out.writeInt(width);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	/**
+	 * Writes a plv::QImageWrapper user type holding an image compressed in
+	 * the given ImageIO format, such as "png" or "jpeg".
+	 */
+	public void writeQImageWrapper(BufferedImage image, String format) throws IOException
+	{
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		if( !ImageIO.write(image, format, compressed) )
+			throw new IOException("No image writer for " + format);
+		
+		writeUserTypeName(QIMAGEWRAPPER_NAME);
+		out.writeInt(image.getWidth());
+		out.writeInt(image.getHeight());
+		out.writeInt(QIMAGE_FORMAT_RGB32);
+		out.writeInt(compressed.size());
+		compressed.writeTo(out);
+	}
+	
+	/**
+	 * Writes the header of a user type. The caller writes the value itself.
+	 */
+	public void writeUserTypeName(String name) throws IOException
+	{
+		out.writeInt(TYPE_USER_TYPE);
+		byte[] bytes = name.getBytes("US-ASCII");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Writes a QString: the length in bytes followed by UTF-16 characters,
+	 * or 0xffffffff for a null string.
+	 */
+	public void writeQString(String value) throws IOException
+	{
+		if( value == null )
+		{
+			out.writeInt(0xffffffff);
+			return;
+		}
+		out.writeInt(value.length() * 2);
+		out.writeChars(value);
+	}
+	
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+	
+	/**
+	 * Convenience method encoding a single CvMatData variant.
+	 */
+	static byte[] encodeCvMatData(int cvType, int width, int height, byte[] data)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+			VariantWriter writer = new VariantWriter(bytes);
+			writer.writeCvMatData(cvType, width, height, data);
+			writer.flush();
+			return bytes.toByteArray();
+		}
+		catch( IOException e )
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}